@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DevicesBenchmark {
+
+    @Param({"iPhone XR (iPhone11,8)", "iPad Pro 3 12.9 (Cellular)(iPad8,8)", "Apple TV 4K"})
+    public String deviceModel;
+
+    @Benchmark
+    public String nameToIdentifier() {
+        return Devices.nameToIdentifier(deviceModel);
+    }
+
+    @Benchmark
+    public String textToIdentifier() {
+        return Shared.textToIdentifier(deviceModel);
+    }
+}
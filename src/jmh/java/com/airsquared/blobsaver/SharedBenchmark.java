@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the helpers in {@link Shared} that run for every version of every preset.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SharedBenchmark {
+
+    private String savedLog;
+    private String notSignedLog;
+    private String firmwaresJson;
+    private String ecidPlist;
+
+    @Setup
+    public void setup() {
+        savedLog = BenchmarkResources.read("tsschecker_saved.log");
+        notSignedLog = BenchmarkResources.read("tsschecker_not_signed.log");
+        firmwaresJson = BenchmarkResources.read("firmwares_iPhone11_8.json");
+        ecidPlist = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<!DOCTYPE plist PUBLIC \"-//Apple//DTD PLIST 1.0//EN\" \"http://www.apple.com/DTDs/PropertyList-1.0.dtd\">\n"
+                + "<plist version=\"1.0\">\n<integer>28772997619311</integer>\n</plist>\n";
+    }
+
+    @Benchmark
+    public boolean containsIgnoreCaseSaved() {
+        return Shared.containsIgnoreCase(savedLog, "Saved");
+    }
+
+    /**
+     * Worst case: the whole log is scanned without finding the string.
+     */
+    @Benchmark
+    public boolean containsIgnoreCaseMiss() {
+        return Shared.containsIgnoreCase(notSignedLog, "[Error] ERROR: TSS request failed: Could not resolve host:");
+    }
+
+    @Benchmark
+    public TSSCheckerResult classifyLog() {
+        return TSSCheckerResult.fromLog(notSignedLog);
+    }
+
+    @Benchmark
+    public List<Firmware> parseFirmwares() {
+        return FirmwareStore.parseFirmwares(firmwaresJson);
+    }
+
+    @Benchmark
+    public long plistIntegerValue() {
+        return Long.parseLong(Shared.plistIntegerValue(ecidPlist));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VersionBenchmark {
+
+    private Version older;
+    private Version newer;
+    private List<Version> firmwareList;
+    private List<String> firmwareStrings;
+
+    @Setup
+    public void setup() {
+        older = new Version("12.3.1");
+        newer = new Version("12.4");
+        firmwareList = new ArrayList<>();
+        for (int major = 7; major <= 12; major++) {
+            for (int minor = 0; minor <= 4; minor++) {
+                for (int patch = 0; patch <= 2; patch++) {
+                    firmwareList.add(new Version(major + "." + minor + "." + patch));
+                }
+            }
+        }
+        Collections.shuffle(firmwareList);
+        firmwareStrings = new ArrayList<>();
+        for (Version version : firmwareList) {
+            firmwareStrings.add(version.get());
+        }
+        // the same firmware is listed once per device, so a merged list has lots of duplicates
+        firmwareStrings.addAll(new ArrayList<>(firmwareStrings));
+    }
+
+    @Benchmark
+    public Version parse() {
+        return new Version("13.0 beta 2");
+    }
+
+    @Benchmark
+    public int hashCodeOfVersion() {
+        return newer.hashCode();
+    }
+
+    @Benchmark
+    public int compareTo() {
+        return older.compareTo(newer);
+    }
+
+    @Benchmark
+    public List<Version> sortFirmwareList() {
+        List<Version> toSort = new ArrayList<>(firmwareList);
+        Collections.sort(toSort);
+        return toSort;
+    }
+
+    @Benchmark
+    public List<Version> parseDeduplicateAndSort() {
+        LinkedHashSet<Version> unique = new LinkedHashSet<>();
+        for (String version : firmwareStrings) {
+            unique.add(new Version(version));
+        }
+        List<Version> sorted = new ArrayList<>(unique);
+        Collections.sort(sorted);
+        return sorted;
+    }
+}
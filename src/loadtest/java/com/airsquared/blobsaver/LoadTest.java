@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link Background#saveBlobs(Preset, java.util.function.Consumer)} over thousands of synthetic presets against
+ * {@link StandInServers} and a fake tsschecker, then reports throughput, latency and peak memory.
+ * <p>
+ * Run with {@code ./gradlew loadTest -PloadTestArgs="--presets=2000 --threads=8"}. Options (all optional):
+ * {@code --presets}, {@code --threads}, {@code --signed} (signed versions per device), {@code --api-latency} and
+ * {@code --tss-latency} (milliseconds), {@code --error-rate} (0 to 1), and {@code --keep} to keep the saved blobs.
+ * The fake tsschecker is a shell script that uses curl, so this doesn't run on Windows.
+ */
+public class LoadTest {
+
+    private static final String[] identifiers = {"iPhone11,8", "iPhone11,2", "iPhone10,3", "iPhone10,6", "iPad7,5", "iPad8,1"};
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int presetCount = Integer.parseInt(options.getOrDefault("presets", "1000"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "4"));
+        int signedVersions = Integer.parseInt(options.getOrDefault("signed", "2"));
+        long apiLatency = Long.parseLong(options.getOrDefault("api-latency", "20"));
+        long tssLatency = Long.parseLong(options.getOrDefault("tss-latency", "50"));
+        double errorRate = Double.parseDouble(options.getOrDefault("error-rate", "0.01"));
+
+        StandInServers servers = new StandInServers(apiLatency, tssLatency, errorRate, signedVersions, threads * 2);
+        File workDir = Files.createTempDirectory("blobsaver-loadtest").toFile();
+        File tsschecker = writeFakeTsschecker(workDir, servers.tssURL());
+        // these have to be set before Shared is loaded
+        System.setProperty("blobsaver.ipswApi", servers.apiURL());
+        System.setProperty("blobsaver.tsschecker", tsschecker.getPath());
+        System.setProperty("blobsaver.logDir", new File(workDir, "logs").getPath());
+        System.setProperty("blobsaver.dataDir", workDir.getPath());
+
+        List<Preset> presets = createPresets(presetCount, new File(workDir, "blobs"));
+        long[] presetNanos = new long[presetCount];
+        ConcurrentLinkedQueue<SaveResult> results = new ConcurrentLinkedQueue<>();
+
+        System.out.println("load test: " + presetCount + " presets, " + threads + " threads, " + signedVersions
+                + " signed versions, " + apiLatency + "ms api latency, " + tssLatency + "ms tss latency, "
+                + errorRate + " error rate");
+        warmUp(presets.get(0));
+        resetPeakUsage();
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        try {
+            // like a background sweep
+            Background.refreshFirmwares(presets);
+            for (Preset preset : presets) {
+                executor.execute(() -> {
+                    long presetStart = System.nanoTime();
+                    Background.saveBlobs(preset, results::add);
+                    presetNanos[preset.number - 1] = System.nanoTime() - presetStart;
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.DAYS);
+        } finally {
+            Log.flush();
+            System.setOut(out);
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        report(presetCount, elapsedNanos, presetNanos, results, servers);
+        servers.stop();
+        if (!options.containsKey("keep")) {
+            deleteRecursively(workDir);
+        } else {
+            System.out.println("saved blobs are in " + workDir);
+        }
+        System.exit(0);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("unknown argument: " + arg);
+            }
+            int equals = arg.indexOf('=');
+            if (equals == -1) {
+                options.put(arg.substring(2), "");
+            } else {
+                options.put(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+        }
+        return options;
+    }
+
+    private static File writeFakeTsschecker(File workDir, String tssURL) throws IOException {
+        String script;
+        try (InputStream input = LoadTest.class.getResourceAsStream("fake_tsschecker.sh")) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            script = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+        File tsschecker = new File(workDir, "tsschecker");
+        Files.write(tsschecker.toPath(), script.replace("@TSS_URL@", tssURL).getBytes(StandardCharsets.UTF_8));
+        //noinspection ResultOfMethodCallIgnored
+        tsschecker.setExecutable(true);
+        return tsschecker;
+    }
+
+    private static List<Preset> createPresets(int count, File blobsDir) {
+        Random random = new Random(42);
+        List<Preset> presets = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            String ecid = Long.toHexString(random.nextLong() & 0xFFFFFFFFFFFFL).toUpperCase();
+            presets.add(new Preset(i, "Load test " + i, "none", identifiers[i % identifiers.length], ecid,
+                    new File(blobsDir, String.valueOf(i)).getPath(), "none", ""));
+        }
+        return presets;
+    }
+
+    /**
+     * Loads the classes and opens the first connections before measuring, so that it doesn't count toward the first
+     * few presets.
+     */
+    private static void warmUp(Preset preset) {
+        List<SaveResult> results = new ArrayList<>();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            Background.saveBlobs(preset, results::add);
+        } finally {
+            Log.flush();
+            System.setOut(out);
+        }
+        System.out.println("warm up: " + results);
+    }
+
+    private static void report(int presetCount, long elapsedNanos, long[] presetNanos,
+                               ConcurrentLinkedQueue<SaveResult> results, StandInServers servers) {
+        double seconds = elapsedNanos / 1e9;
+        Map<TSSCheckerResult, Integer> counts = new EnumMap<>(TSSCheckerResult.class);
+        long[] saveMillis = new long[results.size()];
+        int i = 0;
+        for (SaveResult result : results) {
+            counts.merge(result.result, 1, Integer::sum);
+            saveMillis[i++] = result.durationMillis;
+        }
+        Arrays.sort(presetNanos);
+        Arrays.sort(saveMillis);
+
+        System.out.println();
+        System.out.printf("elapsed:      %.2f s%n", seconds);
+        System.out.printf("throughput:   %.1f presets/s, %.1f saves/s%n", presetCount / seconds, results.size() / seconds);
+        System.out.printf("per preset:   p50 %d ms, p99 %d ms, max %d ms%n",
+                TimeUnit.NANOSECONDS.toMillis(percentile(presetNanos, 0.50)),
+                TimeUnit.NANOSECONDS.toMillis(percentile(presetNanos, 0.99)),
+                TimeUnit.NANOSECONDS.toMillis(percentile(presetNanos, 1)));
+        System.out.printf("per save:     p50 %d ms, p99 %d ms, max %d ms%n",
+                percentile(saveMillis, 0.50), percentile(saveMillis, 0.99), percentile(saveMillis, 1));
+        System.out.println("results:      " + counts);
+        System.out.println("requests:     " + servers.apiRequests + " api, " + servers.tssRequests + " tss, "
+                + servers.injectedErrors + " injected errors");
+        System.out.printf("peak heap:    %.1f MB%n", peakHeapUsage() / (1024.0 * 1024));
+        String peakRss = peakRss();
+        if (peakRss != null) {
+            System.out.println("peak rss:     " + peakRss);
+        }
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1)];
+    }
+
+    private static void resetPeakUsage() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    private static long peakHeapUsage() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * @return the high water mark of the resident set size, or {@code null} if it isn't available (not on Linux)
+     */
+    private static String peakRss() {
+        File status = new File("/proc/self/status");
+        if (!status.exists()) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(status))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmHWM:")) {
+                    return line.substring("VmHWM:".length()).trim();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-ins for the ipsw.me firmware API and Apple's TSS server, so that the load test doesn't hit either.
+ * Both can be slowed down and made to fail some of the time.
+ */
+class StandInServers {
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final long apiLatencyMillis;
+    private final long tssLatencyMillis;
+    private final double errorRate;
+    private final int signedVersions;
+
+    final AtomicLong apiRequests = new AtomicLong();
+    final AtomicLong tssRequests = new AtomicLong();
+    final AtomicLong injectedErrors = new AtomicLong();
+
+    StandInServers(long apiLatencyMillis, long tssLatencyMillis, double errorRate, int signedVersions, int handlerThreads) throws IOException {
+        this.apiLatencyMillis = apiLatencyMillis;
+        this.tssLatencyMillis = tssLatencyMillis;
+        this.errorRate = errorRate;
+        this.signedVersions = signedVersions;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/v4/device/", this::handleDevice);
+        server.createContext("/TSS/controller", this::handleTSS);
+        handlers = Executors.newFixedThreadPool(handlerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "stand-in server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(handlers);
+        server.start();
+    }
+
+    String apiURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/v4/";
+    }
+
+    String tssURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/TSS/controller";
+    }
+
+    void stop() {
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+
+    private void handleDevice(HttpExchange exchange) throws IOException {
+        apiRequests.incrementAndGet();
+        sleep(apiLatencyMillis);
+        if (shouldFail()) {
+            respond(exchange, 503, "Service Unavailable");
+            return;
+        }
+        String identifier = exchange.getRequestURI().getPath().substring("/v4/device/".length());
+        StringBuilder json = new StringBuilder("{\"name\":\"").append(identifier)
+                .append("\",\"identifier\":\"").append(identifier).append("\",\"firmwares\":[");
+        // a few unsigned versions after the signed ones, like the real thing
+        for (int i = 0; i < signedVersions + 3; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"identifier\":\"").append(identifier).append("\",\"version\":\"12.").append(signedVersions + 3 - i)
+                    .append("\",\"buildid\":\"16F").append(100 + i).append("\",\"signed\":").append(i < signedVersions).append('}');
+        }
+        respond(exchange, 200, json.append("]}").toString());
+    }
+
+    private String buildId(String version) {
+        // the inverse of what handleDevice lists
+        int i = signedVersions + 3 - Integer.parseInt(version.substring(version.indexOf('.') + 1));
+        return "16F" + (100 + i);
+    }
+
+    /**
+     * Takes the fake tsschecker's form ({@code device}, {@code ecid}, {@code version}, {@code generator}, and
+     * optionally {@code apnonce} and {@code boardconfig}) and answers with a blob that passes {@link BlobValidator},
+     * along with the name tsschecker would give it as {@code NAME}, which the real TSS server doesn't have.
+     */
+    private void handleTSS(HttpExchange exchange) throws IOException {
+        tssRequests.incrementAndGet();
+        Map<String, String> form = new HashMap<>();
+        try (InputStream input = exchange.getRequestBody()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+            for (String field : new String(body.toByteArray(), StandardCharsets.UTF_8).split("&")) {
+                int equals = field.indexOf('=');
+                if (equals != -1) {
+                    form.put(field.substring(0, equals), URLDecoder.decode(field.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+        sleep(tssLatencyMillis);
+        if (shouldFail()) {
+            respond(exchange, 200, "STATUS=94&MESSAGE=This device isn't eligible for the requested build.");
+            return;
+        }
+        String device = form.getOrDefault("device", "");
+        long ecid = Shared.parseEcid(form.get("ecid"));
+        String apnonce = form.getOrDefault("apnonce", "");
+        String generator = form.getOrDefault("generator", Preset.NonceSet.DEFAULT_GENERATOR);
+        byte[] nonce;
+        if (!apnonce.isEmpty()) {
+            nonce = fromHex(ApnonceEngine.normalizeApnonce(apnonce));
+        } else {
+            int nonceLength;
+            try {
+                nonceLength = ApnonceEngine.nonceLength(device);
+            } catch (IllegalArgumentException e) {
+                nonceLength = 20;
+            }
+            nonce = BlobValidator.nonceFromGenerator(generator, nonceLength);
+        }
+        String board = form.getOrDefault("boardconfig", "");
+        String version = form.getOrDefault("version", "");
+        String name = Long.toUnsignedString(ecid) + "_" + device + "_"
+                + ("".equals(board) || "none".equals(board) ? "loadtestap" : board.toLowerCase(Locale.ROOT)) + "_"
+                + version + "-" + buildId(version) + "_" + BlobValidator.toHex(nonce) + ".shsh2";
+        String blob = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><plist version=\"1.0\"><dict>"
+                + "<key>ApImg4Ticket</key><data>" + Base64.getEncoder().encodeToString(ticket(ecid, nonce)) + "</data>"
+                + "<key>generator</key><string>" + generator + "</string></dict></plist>";
+        respond(exchange, 200, "STATUS=0&MESSAGE=SUCCESS&NAME=" + name + "&REQUEST_STRING=" + blob);
+    }
+
+    /**
+     * An IM4M with just the ECID and BNCH in its manifest properties, and no real signature
+     */
+    private static byte[] ticket(long ecid, byte[] nonce) {
+        byte[] ecidBytes = new byte[9];
+        for (int i = 0; i < 8; i++) {
+            ecidBytes[8 - i] = (byte) (ecid >>> (8 * i));
+        }
+        byte[] manp = der(0x31, concat(property("ECID", der(0x02, ecidBytes)), property("BNCH", der(0x04, nonce))));
+        byte[] manb = der(0x31, property("MANB", der(0x31, property("MANP", manp))));
+        return der(0x30, concat(der(0x16, "IM4M".getBytes(StandardCharsets.US_ASCII)), der(0x02, new byte[]{0}), manb,
+                der(0x04, new byte[64]), der(0x30, new byte[0])));
+    }
+
+    /**
+     * [PRIVATE name] SEQUENCE { IA5String name, value }, where the tag is the four letter name in base 128
+     */
+    private static byte[] property(String name, byte[] value) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+        int code = (nameBytes[0] << 24) | (nameBytes[1] << 16) | (nameBytes[2] << 8) | nameBytes[3];
+        ByteArrayOutputStream tag = new ByteArrayOutputStream();
+        tag.write(0xff);
+        for (int shift = 28; shift > 0; shift -= 7) {
+            if ((code >>> shift) != 0) {
+                tag.write(0x80 | ((code >>> shift) & 0x7f));
+            }
+        }
+        tag.write(code & 0x7f);
+        byte[] sequence = der(0x30, concat(der(0x16, nameBytes), value));
+        return concat(tag.toByteArray(), length(sequence.length), sequence);
+    }
+
+    private static byte[] der(int tag, byte[] content) {
+        return concat(new byte[]{(byte) tag}, length(content.length), content);
+    }
+
+    private static byte[] length(int length) {
+        return length < 0x80 ? new byte[]{(byte) length} : new byte[]{(byte) 0x82, (byte) (length >> 8), (byte) length};
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private boolean shouldFail() {
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            injectedErrors.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+}
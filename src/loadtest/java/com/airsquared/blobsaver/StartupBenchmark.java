@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Launches the shadow jar with {@code --exit-after-startup} over and over, alternating between with and without the
+ * class data sharing archive, and reports how long the process took and the startup time that blobsaver logged.
+ * <p>
+ * Run with {@code ./gradlew startupBenchmark -PstartupBenchmarkArgs="--runs=20"}, which builds the archive first.
+ * Options: {@code --jar}, {@code --archive}, {@code --jvm-options} (passed when using the archive, space separated),
+ * {@code --java} (defaults to the JVM running this), and {@code --runs} (per mode). blobsaver can't already be running,
+ * and a display is needed. The first run of each mode isn't counted, so these are warm file cache numbers, which is
+ * as close to a login-time cold start as can be repeated.
+ */
+public class StartupBenchmark {
+
+    private static final Pattern FIELD = Pattern.compile("(\\w+)=(\\S+)");
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals == -1) {
+                throw new IllegalArgumentException("unknown argument: " + arg);
+            }
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        String jar = options.get("jar");
+        String archive = options.get("archive");
+        if (jar == null || archive == null) {
+            throw new IllegalArgumentException("--jar and --archive are required");
+        }
+        String java = options.getOrDefault("java", new File(System.getProperty("java.home"), "bin/java").getPath());
+        int runs = Integer.parseInt(options.getOrDefault("runs", "10"));
+
+        List<String> withArchive = new ArrayList<>();
+        String jvmOptions = options.getOrDefault("jvm-options", "").trim();
+        if (!jvmOptions.isEmpty()) {
+            withArchive.addAll(Arrays.asList(jvmOptions.split(" ")));
+        }
+        withArchive.addAll(Arrays.asList("-Xshare:auto", "-XX:SharedArchiveFile=" + archive));
+        // without the archive is however the JVM starts by default, which on Java 12+ includes the JDK's own archive
+        List<String> withoutArchive = new ArrayList<>();
+
+        File logDir = Files.createTempDirectory("blobsaver-startup").toFile();
+        long[][] wall = new long[2][runs];
+        long[][] logged = new long[2][runs];
+        boolean[] sharing = new boolean[2];
+        for (int i = -1; i < runs; i++) {
+            for (int mode = 0; mode < 2; mode++) {
+                Map<String, String> fields = new HashMap<>();
+                long wallMillis = launch(java, mode == 0 ? withoutArchive : withArchive, jar, logDir, fields);
+                if (i >= 0) {
+                    wall[mode][i] = wallMillis;
+                    logged[mode][i] = Long.parseLong(fields.get("since_jvm_start"));
+                    sharing[mode] = Boolean.parseBoolean(fields.get("class_sharing"));
+                }
+            }
+        }
+
+        System.out.printf("%-16s %10s %10s %10s %16s %8s%n", "", "wall p50", "wall min", "wall max", "to window p50", "sharing");
+        String[] names = {"without archive", "with archive"};
+        for (int mode = 0; mode < 2; mode++) {
+            Arrays.sort(wall[mode]);
+            Arrays.sort(logged[mode]);
+            System.out.printf("%-16s %8d ms %8d ms %8d ms %13d ms %8s%n", names[mode], wall[mode][runs / 2],
+                    wall[mode][0], wall[mode][runs - 1], logged[mode][runs / 2], sharing[mode]);
+        }
+        System.out.printf("time to first window: %.0f%% of without the archive%n", 100.0 * logged[1][runs / 2] / logged[0][runs / 2]);
+        if (!sharing[1]) {
+            System.out.println("the archive wasn't used, it has to be made by the same JVM from the same jar path");
+        }
+    }
+
+    /**
+     * @return how long the process ran for in milliseconds, with the fields of blobsaver's startup timing log line
+     * put in {@code fields}
+     */
+    private static long launch(String java, List<String> jvmOptions, String jar, File logDir, Map<String, String> fields)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.addAll(jvmOptions);
+        command.add("-Dblobsaver.logDir=" + logDir);
+        command.addAll(Arrays.asList("-cp", jar, "com.airsquared.blobsaver.Main", "--exit-after-startup"));
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        StringBuilder output = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                output.append(line).append('\n');
+                if (line.contains("startup t") && line.contains(" total=")) { // "startup timing" or "startup took longer"
+                    Matcher matcher = FIELD.matcher(line);
+                    while (matcher.find()) {
+                        fields.put(matcher.group(1), matcher.group(2));
+                    }
+                }
+            }
+        }
+        if (!process.waitFor(2, TimeUnit.MINUTES) || process.exitValue() != 0 || !fields.containsKey("total")) {
+            process.destroyForcibly();
+            throw new IllegalStateException("blobsaver didn't start and exit properly:\n" + output);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
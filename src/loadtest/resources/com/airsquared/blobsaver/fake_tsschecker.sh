@@ -0,0 +1,44 @@
+#!/bin/sh
+# Stand-in for tsschecker used by the load test. It asks the stand-in TSS server instead of Apple, saves the blob it
+# sends back under the name it gives, and prints the same lines that TSSCheckerResult looks for. @TSS_URL@ is replaced
+# when the script is written out.
+
+device=""
+ecid=""
+version=""
+generator=""
+apnonce=""
+boardconfig=""
+savePath="."
+while [ $# -gt 0 ]; do
+    case "$1" in
+        -d) device="$2"; shift ;;
+        -e) ecid="$2"; shift ;;
+        -i) version="$2"; shift ;;
+        --save-path) savePath="$2"; shift ;;
+        --generator) generator="$2"; shift ;;
+        --apnonce) apnonce="$2"; shift ;;
+        --boardconfig) boardconfig="$2"; shift ;;
+        --buildid|-m) shift ;;
+    esac
+    shift
+done
+
+response=$(curl -s -S --max-time 60 --data-urlencode "device=$device" --data-urlencode "ecid=$ecid" \
+    --data-urlencode "version=$version" --data-urlencode "generator=$generator" --data-urlencode "apnonce=$apnonce" \
+    --data-urlencode "boardconfig=$boardconfig" "@TSS_URL@" 2>&1)
+case "$response" in
+    STATUS=0\&*)
+        name="${response#*&NAME=}"
+        name="${name%%&*}"
+        printf '%s\n' "${response#*&REQUEST_STRING=}" > "$savePath/$name"
+        echo "[TSSC] Saved shsh blobs!"
+        ;;
+    STATUS=*)
+        echo "[TSSC] iOS $version for device $device IS NOT being signed!"
+        ;;
+    *)
+        echo "[Error] $response"
+        exit 254
+        ;;
+esac
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Works out the apnonce that a generator gives on a device, so that users don't need another tool to pair them up.
+ * Devices with an A12 or newer (CPID 0x8020 and up) use the first 32 bytes of SHA-384, older ones use SHA-1, see
+ * {@link BlobValidator#nonceFromGenerator(String, int)}.
+ */
+final class ApnonceEngine {
+
+    /**
+     * The A12, the first chip with 32 byte nonces. Every chip since then has a CPID from here up to
+     * {@link #OLD_CPIDS_START}.
+     */
+    private static final int FIRST_LONG_NONCE_CPID = 0x8020;
+    /**
+     * The A4 to A7 (0x8930 to 0x8960) have higher CPIDs than the chips after them, but still use SHA-1.
+     */
+    private static final int OLD_CPIDS_START = 0x8900;
+    /**
+     * Lists shorter than this aren't worth splitting up between threads.
+     */
+    private static final int PARALLEL_THRESHOLD = 256;
+    private static final int MAX_CACHED = 1 << 16;
+
+    /**
+     * apnonce (in hex) for each generator value, one map for each nonce length
+     */
+    private static final Map<Long, String> shortNonces = new ConcurrentHashMap<>();
+    private static final Map<Long, String> longNonces = new ConcurrentHashMap<>();
+
+    private ApnonceEngine() {
+    }
+
+    /**
+     * @return the length of the device's nonces, from its CPID in the {@link DeviceCatalog}. The bundled catalog
+     * has the CPIDs of every device with 32 byte nonces, so a device without one is older.
+     * @throws IllegalArgumentException if the device isn't in the catalog
+     */
+    static int nonceLength(String identifier) {
+        Device device = DeviceCatalog.get().byIdentifier(identifier);
+        if (device == null) {
+            throw new IllegalArgumentException("unknown device " + identifier);
+        }
+        return nonceLength(device.cpid);
+    }
+
+    /**
+     * @param cpid the chip ID, or 0 if it isn't known
+     */
+    static int nonceLength(int cpid) {
+        return cpid >= FIRST_LONG_NONCE_CPID && cpid < OLD_CPIDS_START ? 32 : 20;
+    }
+
+    /**
+     * @param generator the generator in hex, with or without "0x"
+     * @return the apnonce in lowercase hex
+     * @throws IllegalArgumentException if the generator isn't valid
+     */
+    static String apnonce(String generator, int nonceLength) {
+        long value = parseGenerator(generator);
+        Map<Long, String> cache = nonceLength == 32 ? longNonces : shortNonces;
+        String apnonce = cache.get(value);
+        if (apnonce == null) {
+            apnonce = BlobValidator.toHex(BlobValidator.nonceFromGenerator(generator, nonceLength));
+            if (cache.size() >= MAX_CACHED) {
+                cache.clear(); // nothing is expensive enough to be worth keeping track of which ones are used
+            }
+            cache.put(value, apnonce);
+        }
+        return apnonce;
+    }
+
+    /**
+     * Computes the apnonces of a list of generators, on all cores if there are a lot of them.
+     *
+     * @return the apnonce of each generator, in the same order as {@code generators}
+     * @throws IllegalArgumentException if any of the generators isn't valid
+     */
+    static Map<String, String> apnonces(Collection<String> generators, int nonceLength) {
+        List<String> list = new ArrayList<>(generators);
+        String[] apnonces = new String[list.size()];
+        IntStream indexes = IntStream.range(0, list.size());
+        if (list.size() >= PARALLEL_THRESHOLD) {
+            indexes = indexes.parallel();
+        }
+        indexes.forEach(i -> apnonces[i] = apnonce(list.get(i), nonceLength));
+        Map<String, String> result = new LinkedHashMap<>();
+        for (int i = 0; i < apnonces.length; i++) {
+            result.put(list.get(i), apnonces[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #apnonces(Collection, int)}, but never throws. Used where a generator or device being invalid
+     * is reported by tsschecker anyway.
+     *
+     * @return the apnonce of each valid generator, or an empty map if the device's nonce length isn't known
+     */
+    static Map<String, String> apnoncesIfKnown(Collection<String> generators, String identifier) {
+        Map<String, String> result = new LinkedHashMap<>();
+        int nonceLength;
+        try {
+            nonceLength = nonceLength(identifier);
+        } catch (IllegalArgumentException e) {
+            return result;
+        }
+        for (String generator : generators) {
+            try {
+                result.put(generator, apnonce(generator, nonceLength));
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        return result;
+    }
+
+    static String normalizeApnonce(String apnonce) {
+        String hex = apnonce.trim().toLowerCase(Locale.ROOT);
+        return hex.startsWith("0x") ? hex.substring(2) : hex;
+    }
+
+    private static long parseGenerator(String generator) {
+        String hex = generator.trim();
+        if (hex.startsWith("0x") || hex.startsWith("0X")) {
+            hex = hex.substring(2);
+        }
+        try {
+            return Long.parseUnsignedLong(hex, 16);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid generator " + generator);
+        }
+    }
+}
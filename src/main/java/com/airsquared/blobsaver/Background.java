@@ -37,13 +37,28 @@ import java.awt.TrayIcon;
 import java.awt.event.ActionListener;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.prefs.Preferences;
+import java.util.function.Consumer;
+import java.util.prefs.PreferenceChangeListener;
 
 import static com.airsquared.blobsaver.Main.appPrefs;
 import static com.airsquared.blobsaver.Main.appVersion;
@@ -53,9 +68,44 @@ class Background {
 
     static boolean inBackground = false;
 
+    /**
+     * If a sweep hasn't made any progress for this long, a stall is reported.
+     */
+    private static final long STALL_MINUTES = TSSCHECKER_TIMEOUT_MINUTES * 2;
+
     private static ScheduledExecutorService executor;
+    private static ScheduledExecutorService watchdog;
+    /**
+     * The next run of {@link #runDuePresets()}, scheduled for when the first preset in {@link #nextDue} is due.
+     */
+    private static ScheduledFuture<?> sweepFuture;
+    private static volatile List<Integer> presetsToSave;
+    private static volatile long intervalMillis;
+    /**
+     * When each preset that is saved in the background is next due, in the order of {@link #presetsToSave}.
+     * Only used while holding the Background class lock.
+     */
+    private static final Map<Integer, Long> nextDue = new LinkedHashMap<>();
+    private static final List<String> SETTINGS_KEYS = Arrays.asList("Presets to save in background", "Time to run",
+            "Time unit for background");
+    /**
+     * Applies changes to the background presets and interval to the running schedule, without restarting it.
+     */
+    private static final PreferenceChangeListener settingsListener = event -> {
+        if (SETTINGS_KEYS.contains(event.getKey())) {
+            supervised("reload settings", Background::reloadSettings).run();
+        }
+    };
     private static TrayIcon trayIcon;
 
+    private static volatile long lastHeartbeat;
+    private static volatile Thread sweepThread;
+
+    private static volatile boolean paused = false;
+    private static volatile JobJournal journal;
+    private static final Set<Integer> runningPresets = ConcurrentHashMap.newKeySet();
+    private static final Map<Integer, PresetStatus> presetStatuses = new ConcurrentHashMap<>();
+
     static ArrayList<String> getPresetsToSaveFor() {
         ArrayList<String> presetsToSaveFor = new ArrayList<>();
         JSONArray presetsToSaveForJson = new JSONArray(appPrefs.get("Presets to save in background", "[]"));
@@ -65,12 +115,40 @@ class Background {
         return presetsToSaveFor;
     }
 
-    static void startBackground(boolean runOnlyOnce) {
-        ArrayList<Integer> presetsToSave = new ArrayList<>();
-        JSONArray presetsToSaveJson = new JSONArray(appPrefs.get("Presets to save in background", "[]"));
-        for (int i = 0; i < presetsToSaveJson.length(); i++) {
-            presetsToSave.add(Integer.valueOf(presetsToSaveJson.getString(i)));
+    private static List<Integer> readPresetsToSave() {
+        List<Integer> presetsToSave = new ArrayList<>();
+        for (String preset : getPresetsToSaveFor()) {
+            presetsToSave.add(Integer.valueOf(preset));
         }
+        return presetsToSave;
+    }
+
+    private static long readIntervalMillis() {
+        TimeUnit timeUnit;
+        int timeAmount = appPrefs.getInt("Time to run", 1);
+        switch (appPrefs.get("Time unit for background", "Days")) {
+            case "Minutes":
+                timeUnit = TimeUnit.MINUTES;
+                break;
+            case "Hours":
+                timeUnit = TimeUnit.HOURS;
+                break;
+            case "Days":
+                timeUnit = TimeUnit.DAYS;
+                break;
+            case "Weeks":
+                timeUnit = TimeUnit.DAYS;
+                timeAmount = timeAmount * 7;
+                break;
+            default:
+                timeUnit = TimeUnit.DAYS;
+                break;
+        }
+        return timeUnit.toMillis(timeAmount);
+    }
+
+    static void startBackground(boolean runOnlyOnce) {
+        List<Integer> presetsToSave = readPresetsToSave();
         ArrayList<String> presetsToSaveNames = new ArrayList<>();
         if (!presetsToSave.isEmpty()) {
             presetsToSave.forEach(preset -> presetsToSaveNames.add(appPrefs.get("Name Preset" + preset, "")));
@@ -88,6 +166,9 @@ class Background {
         }
         if (!runOnlyOnce) {
             inBackground = true;
+            if (Platform.isFxApplicationThread() && !Main.primaryStage.isShowing()) {
+                Main.releaseWindowLater();
+            }
             executor = Executors.newScheduledThreadPool(1);
             SystemTray tray = SystemTray.getSystemTray();
 
@@ -134,137 +215,597 @@ class Background {
         if (runOnlyOnce) {
             if (!presetsToSave.isEmpty()) {
                 log("there are some presets to save");
-                presetsToSave.forEach(Background::saveBackgroundBlobs);
+                // this is called from the window, which shouldn't wait for the firmware refresh or the saves
+                JobScheduler.submit(JobScheduler.Lane.INTERACTIVE, "check for blobs",
+                        supervised("check for blobs", () -> queuePresets(presetsToSave, new ArrayList<>())));
             }
             inBackground = false;
         } else {
-            TimeUnit timeUnit;
-            int timeAmount = appPrefs.getInt("Time to run", 1);
-            switch (appPrefs.get("Time unit for background", "Days")) {
-                case "Minutes":
-                    timeUnit = TimeUnit.MINUTES;
-                    break;
-                case "Hours":
-                    timeUnit = TimeUnit.HOURS;
-                    break;
-                case "Days":
-                    timeUnit = TimeUnit.DAYS;
-                    break;
-                case "Weeks":
-                    timeUnit = TimeUnit.DAYS;
-                    timeAmount = timeAmount * 7;
-                    break;
-                default:
-                    timeUnit = TimeUnit.DAYS;
-                    break;
+            lastHeartbeat = System.currentTimeMillis();
+            JobJournal journal = JobJournal.open();
+            Background.journal = journal;
+            Set<Integer> unfinished = journal.getPending();
+            unfinished.retainAll(presetsToSave);
+            synchronized (Background.class) {
+                Background.presetsToSave = presetsToSave;
+                intervalMillis = readIntervalMillis();
+                nextDue.clear();
+                long now = System.currentTimeMillis();
+                for (int preset : presetsToSave) {
+                    long lastDone = journal.getLastDone(preset);
+                    // only what wasn't finished last time is redone right away
+                    nextDue.put(preset, unfinished.contains(preset) || lastDone == 0 ? now : Math.max(now, lastDone + intervalMillis));
+                }
+            }
+            if (!unfinished.isEmpty()) {
+                Log.info("resuming interrupted sweep", "presets", unfinished);
             }
-            executor.scheduleAtFixedRate(() -> {
-                if (!presetsToSave.isEmpty()) {
-                    log("there are some presets to save");
-                    presetsToSave.forEach(Background::saveBackgroundBlobs);
+            scheduleNextSweep();
+            watchSavePaths(presetsToSave);
+            appPrefs.addPreferenceChangeListener(settingsListener);
+            executor.scheduleAtFixedRate(() -> JobScheduler.submit(JobScheduler.Lane.BACKGROUND, "update check",
+                    supervised("update check", () -> checkForUpdates(false))), 4, 4, TimeUnit.DAYS);
+            watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "background watchdog");
+                thread.setDaemon(true);
+                return thread;
+            });
+            watchdog.scheduleAtFixedRate(supervised("watchdog", Background::checkHeartbeat), 1, 1, TimeUnit.MINUTES);
+            ControlServer.startIfEnabled();
+        }
+    }
+
+    /**
+     * Schedules {@link #runDuePresets()} for when the next preset is due, replacing whatever was scheduled before.
+     * Nothing is scheduled while paused.
+     */
+    private static synchronized void scheduleNextSweep() {
+        if (sweepFuture != null) {
+            sweepFuture.cancel(false);
+            sweepFuture = null;
+        }
+        if (!inBackground || paused || nextDue.isEmpty() || executor.isShutdown()) {
+            return;
+        }
+        long delay = Math.max(0, Collections.min(nextDue.values()) - System.currentTimeMillis());
+        sweepFuture = executor.schedule(supervised("sweep", Background::runDuePresets), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Saves every preset that is due, all together so that their firmwares are fetched at once.
+     */
+    private static void runDuePresets() {
+        List<Integer> due = new ArrayList<>();
+        synchronized (Background.class) {
+            if (paused) {
+                return; // resume() schedules it again
+            }
+            long now = System.currentTimeMillis();
+            for (Map.Entry<Integer, Long> entry : nextDue.entrySet()) {
+                if (entry.getValue() <= now) {
+                    due.add(entry.getKey());
+                    entry.setValue(now + intervalMillis);
                 }
+            }
+        }
+        try {
+            if (!due.isEmpty()) {
+                runPresets(due);
                 log("done w execution of executor");
-            }, 0, timeAmount, timeUnit);
-            executor.scheduleAtFixedRate(() -> checkForUpdates(false), 4, 4, TimeUnit.DAYS);
+            }
+        } finally {
+            scheduleNextSweep();
         }
     }
 
-    private static void saveBackgroundBlobs(int preset) {
-        log("attempting to save for preset " + preset);
-        Preferences presetPrefs = Preferences.userRoot().node("airsquared/blobsaver/preset" + preset);
-        String identifier;
-        if ("none".equals(presetPrefs.get("Device Model", ""))) {
-            identifier = presetPrefs.get("Device Identifier", "");
-        } else {
-            identifier = textToIdentifier(presetPrefs.get("Device Model", ""));
+    /**
+     * Brings the schedule up to date with the preferences. A preset that was added is saved right away, without
+     * the others, and a preset that was removed won't be saved anymore. If the interval changed, each preset is next
+     * due the new interval after it was last saved.
+     */
+    private static void reloadSettings() {
+        if (!inBackground) {
+            return;
+        }
+        List<Integer> presets = readPresetsToSave();
+        long interval = readIntervalMillis();
+        boolean presetsChanged = !presets.equals(presetsToSave);
+        synchronized (Background.class) {
+            long now = System.currentTimeMillis();
+            Map<Integer, Long> updated = new LinkedHashMap<>();
+            for (int preset : presets) {
+                Long due = nextDue.get(preset);
+                if (due == null) {
+                    due = now;
+                    Log.info("added preset to the background", "preset", preset);
+                } else if (interval != intervalMillis) {
+                    due = due - intervalMillis + interval;
+                }
+                updated.put(preset, due);
+            }
+            for (int preset : nextDue.keySet()) {
+                if (!updated.containsKey(preset)) {
+                    Log.info("removed preset from the background", "preset", preset);
+                }
+            }
+            if (interval != intervalMillis) {
+                Log.info("changed background interval", "minutes", TimeUnit.MILLISECONDS.toMinutes(interval));
+            }
+            nextDue.clear();
+            nextDue.putAll(updated);
+            presetsToSave = presets;
+            intervalMillis = interval;
+        }
+        scheduleNextSweep();
+        if (presetsChanged) {
+            watchSavePaths(presets);
+        }
+    }
+
+    /**
+     * Keeps the {@link BlobManifest} of each preset's save path up to date while the background is running.
+     */
+    private static void watchSavePaths(List<Integer> presets) {
+        List<String> savePaths = new ArrayList<>();
+        for (int preset : presets) {
+            savePaths.add(Preset.load(preset).path);
+        }
+        BlobManifest.watch(savePaths);
+    }
+
+    /**
+     * Saves every preset now, then they are due again after the interval.
+     */
+    static void runAllNow() {
+        long now = System.currentTimeMillis();
+        synchronized (Background.class) {
+            nextDue.replaceAll((preset, due) -> now);
+        }
+        scheduleNextSweep();
+    }
+
+    /**
+     * Queues the presets with {@link #queuePresets(List, List)} and waits for all of them.
+     */
+    private static void runPresets(List<Integer> presetNumbers) {
+        sweepThread = Thread.currentThread();
+        List<Future<?>> jobs = new ArrayList<>();
+        try {
+            queuePresets(presetNumbers, jobs);
+            for (Future<?> job : jobs) {
+                job.get();
+                heartbeat();
+            }
+        } catch (InterruptedException e) { // the background was stopped
+            for (Future<?> job : jobs) {
+                if (job.cancel(false)) {
+                    Metrics.queueDepth.decrementAndGet();
+                }
+            }
+        } catch (ExecutionException e) { // savePreset() is supervised, so this can't happen
+            throw new RuntimeException(e.getCause());
+        } finally {
+            heartbeat();
+            sweepThread = null;
+        }
+    }
+
+    /**
+     * Refreshes the presets' firmwares and queues each preset as its own job, without waiting for them. Presets with
+     * a newly signed version go in the {@link JobScheduler.Lane#NEW_BUILD} lane, so they're saved before the rest of
+     * a big sweep. While in the background, they are recorded in the {@link JobJournal} so that an interrupted sweep
+     * can be resumed.
+     *
+     * @param jobs where the jobs are added as they're queued
+     */
+    private static void queuePresets(List<Integer> presetNumbers, List<Future<?>> jobs) {
+        Metrics.queueDepth.addAndGet(presetNumbers.size());
+        JobJournal journal = Background.journal;
+        if (journal != null) {
+            journal.queued(presetNumbers);
+        }
+        List<Preset> presets = new ArrayList<>();
+        presetNumbers.forEach(preset -> presets.add(Preset.load(preset)));
+        Set<String> newlySigned = refreshFirmwares(presets);
+        for (Preset preset : presets) {
+            JobScheduler.Lane lane = newlySigned.contains(preset.getIdentifier())
+                    ? JobScheduler.Lane.NEW_BUILD : JobScheduler.Lane.BACKGROUND;
+            jobs.add(JobScheduler.submit(lane, "preset " + preset.number, () -> {
+                try {
+                    if (paused) {
+                        // it hasn't been saved, so it's still due when the background is resumed
+                        long now = System.currentTimeMillis();
+                        synchronized (Background.class) {
+                            nextDue.computeIfPresent(preset.number, (number, due) -> now);
+                        }
+                        return;
+                    }
+                    savePreset(preset, lane);
+                    if (journal != null) {
+                        journal.done(preset.number);
+                    }
+                } finally {
+                    Metrics.queueDepth.decrementAndGet();
+                }
+            }));
+        }
+    }
+
+    private static void savePreset(Preset preset, JobScheduler.Lane lane) {
+        heartbeat();
+        runningPresets.add(preset.number);
+        long start = System.nanoTime();
+        List<SaveResult> results = new ArrayList<>();
+        // one preset failing shouldn't stop the others from being saved
+        supervised("preset " + preset.number, () -> saveBlobs(preset, lane, result -> {
+            results.add(result);
+            // notifications are JavaFX popups, and several workers can be saving at once
+            Platform.runLater(() -> showNotification(result));
+        })).run();
+        presetStatuses.put(preset.number, new PresetStatus(System.currentTimeMillis(), results));
+        Metrics.presetSave.observeSince(start);
+        runningPresets.remove(preset.number);
+    }
+
+    /**
+     * Queues the preset to be saved right away, as an {@link JobScheduler.Lane#INTERACTIVE} job, without waiting
+     * for the next sweep. It's saved even if the background is paused.
+     *
+     * @return false if the background isn't running or the preset isn't one of the ones it saves
+     */
+    static boolean runPresetNow(int preset) {
+        if (!inBackground || presetsToSave == null || !presetsToSave.contains(preset)) {
+            return false;
+        }
+        Metrics.queueDepth.incrementAndGet();
+        JobScheduler.submit(JobScheduler.Lane.INTERACTIVE, "preset " + preset, () -> {
+            try {
+                Preset loaded = Preset.load(preset);
+                refreshFirmwares(Collections.singletonList(loaded));
+                savePreset(loaded, JobScheduler.Lane.INTERACTIVE);
+            } finally {
+                Metrics.queueDepth.decrementAndGet();
+            }
+        });
+        log("queued preset " + preset);
+        return true;
+    }
+
+    /**
+     * Stops presets from being saved on schedule until {@link #resume()}. A sweep that is running stops after the
+     * current preset.
+     */
+    static void pause() {
+        paused = true;
+        scheduleNextSweep();
+        log("paused background");
+    }
+
+    /**
+     * Presets that became due while paused are saved right away.
+     */
+    static void resume() {
+        paused = false;
+        log("resumed background");
+        scheduleNextSweep();
+    }
+
+    static boolean isPaused() {
+        return paused;
+    }
+
+    static List<Integer> getPresetsToSave() {
+        return presetsToSave == null ? Collections.emptyList() : Collections.unmodifiableList(presetsToSave);
+    }
+
+    /**
+     * @return when the preset is next due to be saved, or 0 if it isn't scheduled
+     */
+    static synchronized long getNextDue(int preset) {
+        Long due = nextDue.get(preset);
+        return !inBackground || due == null ? 0 : due;
+    }
+
+    static boolean isRunning(int preset) {
+        return runningPresets.contains(preset);
+    }
+
+    /**
+     * @return what happened the last time the preset was saved in the background, or null if it hasn't been yet
+     */
+    static PresetStatus getPresetStatus(int preset) {
+        return presetStatuses.get(preset);
+    }
+
+    static class PresetStatus {
+        final long finishedAt;
+        final List<SaveResult> results;
+
+        PresetStatus(long finishedAt, List<SaveResult> results) {
+            this.finishedAt = finishedAt;
+            this.results = results;
+        }
+    }
+
+    /**
+     * Wraps the runnable so that an exception can't escape into the executor. An exception thrown from a
+     * runnable passed to {@link ScheduledExecutorService#scheduleAtFixedRate} silently cancels all future runs.
+     */
+    private static Runnable supervised(String name, Runnable runnable) {
+        return () -> {
+            try {
+                runnable.run();
+            } catch (Throwable t) {
+                Log.error("uncaught exception, it will still run next time", t, "task", name);
+            }
+        };
+    }
+
+    private static void heartbeat() {
+        lastHeartbeat = System.currentTimeMillis();
+    }
+
+    /**
+     * Restarts the sweep schedule if it has stopped, and reports sweeps that haven't made progress in a while.
+     */
+    private static void checkHeartbeat() {
+        synchronized (Background.class) {
+            // runDuePresets() always schedules the next one, unless something went very wrong
+            if (inBackground && !paused && !nextDue.isEmpty() && (sweepFuture == null || sweepFuture.isDone())
+                    && !executor.isShutdown()) {
+                log("background sweep schedule stopped unexpectedly, restarting it");
+                scheduleNextSweep();
+            }
+        }
+        Thread thread = sweepThread;
+        long minutesSinceHeartbeat = TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis() - lastHeartbeat);
+        if (thread != null && minutesSinceHeartbeat >= STALL_MINUTES) {
+            StringBuilder stackTrace = new StringBuilder();
+            for (StackTraceElement element : thread.getStackTrace()) {
+                stackTrace.append("\n\tat ").append(element);
+            }
+            Log.warn("background sweep has stalled" + stackTrace, "minutes", minutesSinceHeartbeat);
+        }
+    }
+
+    /**
+     * Fetches the firmwares of every device used by the presets at once, so that saving each preset doesn't need
+     * to make its own request.
+     *
+     * @return the devices that have a version signed now that wasn't signed the last time they were fetched
+     */
+    static Set<String> refreshFirmwares(List<Preset> presets) {
+        FirmwareStore store = FirmwareStore.get();
+        Map<String, List<String>> previouslySigned = new HashMap<>();
+        for (Preset preset : presets) {
+            String identifier = preset.getIdentifier();
+            if (identifier != null) { // saveBlobs() reports the device not being found
+                previouslySigned.put(identifier, store.getLastKnownSignedVersions(identifier));
+            }
+        }
+        store.refresh(previouslySigned.keySet());
+        Set<String> newlySigned = new HashSet<>();
+        previouslySigned.forEach((identifier, previous) -> {
+            List<String> signed = store.getLastKnownSignedVersions(identifier);
+            // a device that has never been fetched before doesn't count, everything would be new
+            if (previous != null && signed != null && !previous.containsAll(signed)) {
+                newlySigned.add(identifier);
+            }
+        });
+        if (!newlySigned.isEmpty()) {
+            Log.info("new versions signed", "identifiers", newlySigned);
+        }
+        return newlySigned;
+    }
+
+    /**
+     * Saves blobs for every signed version of the preset. Nothing in here touches the GUI, the outcome of each
+     * version (or of the whole preset, if the versions couldn't be looked up) is given to {@code onResult}.
+     */
+    static void saveBlobs(Preset preset, Consumer<SaveResult> onResult) {
+        saveBlobs(preset, JobScheduler.Lane.BACKGROUND, onResult);
+    }
+
+    /**
+     * @param lane where the requests of a batch are queued, if the preset has more than one generator/apnonce
+     */
+    static void saveBlobs(Preset preset, JobScheduler.Lane lane, Consumer<SaveResult> onResult) {
+        Log.info("attempting to save", "preset", preset.number, "ecid", preset.ecid, "stage", "start");
+        String identifier = preset.getIdentifier();
+        if (identifier == null) {
+            report(onResult, new SaveResult(preset, null, TSSCheckerResult.DEVICE_NOT_FOUND,
+                    "Could not find the device \"" + preset.deviceModel + "\"", 0));
+            return;
         }
-        log("identifier:" + identifier);
         List<String> signedVersions;
+        long staleSince = 0;
+        long start = System.nanoTime();
         try {
             signedVersions = getAllSignedVersions(identifier);
         } catch (IOException e) {
-            Notification notification = new Notification("Saving blobs failed", "Check your internet connection.\nIf it is working, click here to report this error.", Notification.ERROR_ICON);
-            Notification.Notifier.INSTANCE.setPopupLifetime(Duration.minutes(1));
-            Notification.Notifier.INSTANCE.setOnNotificationPressed(event -> {
-                Notification.Notifier.INSTANCE.stop();
-                Main.showStage();
-                Alert alert = new Alert(Alert.AlertType.ERROR,
-                        "Saving blobs failed. Check your internet connection.\n\nIf your internet is working and you can connect to the website ipsw.me in your browser, please create a new issue on Github or PM me on Reddit. The log has been copied to your clipboard.",
-                        githubIssue, redditPM, ButtonType.OK);
-                resizeAlertButtons(alert);
-                alert.showAndWait();
-                alert.getDialogPane().toFront();
-                reportError(alert, e.getMessage());
-            });
-            Notification.Notifier.INSTANCE.notify(notification);
-            return;
+            // ipsw.me being down doesn't mean that Apple's servers are, so keep saving with what was last known
+            signedVersions = FirmwareStore.get().getLastKnownSignedVersions(identifier);
+            if (signedVersions == null) {
+                report(onResult, new SaveResult(preset, null, TSSCheckerResult.VERSION_LOOKUP_FAILED, e.getMessage(), millisSince(start)));
+                return;
+            }
+            staleSince = FirmwareStore.get().getFetchedAt(identifier);
+            Log.warn("unable to get signed versions, using the last known ones", "preset", preset.number,
+                    "identifier", identifier, "fetchedAt", new Date(staleSince), "error", e.getMessage());
         }
-        log("signed versions:" + signedVersions);
-        String ecid = presetPrefs.get("ECID", "");
-        String path = presetPrefs.get("Path", "");
-        String boardConfig = presetPrefs.get("Board Config", "");
-        String apnonce = presetPrefs.get("Apnonce", "");
-        for (String version : signedVersions) {
-            File tsschecker;
-            try {
-                tsschecker = getTsschecker();
-            } catch (IOException e) {
-                Notification notification = new Notification("Saving blobs failed", "There was an error creating tsschecker. Click here to report this error.", Notification.ERROR_ICON);
-                Notification.Notifier.INSTANCE.setPopupLifetime(Duration.minutes(1));
-                Notification.Notifier.INSTANCE.setOnNotificationPressed(event -> {
-                    Notification.Notifier.INSTANCE.stop();
-                    Main.showStage();
-                    Alert alert = new Alert(Alert.AlertType.ERROR,
-                            "There was an error creating tsschecker.\n\nIf your internet is working and you can connect to apple.com in your browser, please create a new issue on Github or PM me on Reddit. The log has been copied to your clipboard.",
-                            githubIssue, redditPM, ButtonType.OK);
-                    resizeAlertButtons(alert);
-                    alert.showAndWait();
-                    alert.getDialogPane().toFront();
-                    reportError(alert, e.getMessage());
-                });
-                Notification.Notifier.INSTANCE.notify(notification);
-                continue;
+        long lookupMillis = millisSince(start);
+        Log.info("signed versions: " + signedVersions, "preset", preset.number, "identifier", identifier,
+                "stage", "version lookup", "duration", lookupMillis);
+        List<Preset.NonceSet> nonceSets = preset.getNonceSets();
+        if (nonceSets.size() == 1) {
+            for (String version : signedVersions) {
+                heartbeat();
+                List<String> manifestArgs = staleSince != 0 ? cachedManifestArgs(identifier, version) : Collections.emptyList();
+                report(onResult, saveBlobs(preset, identifier, version, nonceSets.get(0), manifestArgs, staleSince, lookupMillis));
             }
+            return;
+        }
+        saveBatch(preset, lane, identifier, signedVersions, nonceSets, staleSince, lookupMillis, onResult);
+    }
 
-            //noinspection ResultOfMethodCallIgnored
-            new File(path).mkdirs();
-            String tsscheckerLog;
-            try {
-                ArrayList<String> args = new ArrayList<>();
-                Collections.addAll(args, tsschecker.getPath(), "--generator", "0x1111111111111111", "--nocache", "-d", identifier, "-s", "-e", ecid,
-                        "--save-path", path, "-i", version);
-                if (!"none".equals(boardConfig) && !"".equals(boardConfig)) { // needs board config
-                    Collections.addAll(args, "--boardconfig", boardConfig);
-                }
-                if (!"".equals(apnonce)) {
-                    Collections.addAll(args, "--apnonce", apnonce);
+    /**
+     * Saves every version with every generator/apnonce of the preset. Each request is queued on the
+     * {@link JobScheduler}, so they run alongside everything else within its limit on tsschecker processes, and the
+     * BuildManifest for each version is only looked up once for the whole batch instead of by tsschecker for every
+     * request. The results are still reported in order.
+     */
+    private static void saveBatch(Preset preset, JobScheduler.Lane lane, String identifier, List<String> versions,
+                                  List<Preset.NonceSet> nonceSets, long staleSince, long lookupMillis,
+                                  Consumer<SaveResult> onResult) {
+        Log.info("saving batch", "preset", preset.number, "versions", versions.size(), "nonceSets", nonceSets.size(),
+                "lane", lane);
+        List<FutureTask<SaveResult>> requests = new ArrayList<>();
+        try {
+            for (String version : versions) {
+                heartbeat();
+                List<String> manifestArgs = cachedManifestArgs(identifier, version);
+                for (Preset.NonceSet nonceSet : nonceSets) {
+                    requests.add(JobScheduler.submitTask(lane, "preset " + preset.number + " " + version,
+                            new FutureTask<>(() -> saveBlobs(preset, identifier, version, nonceSet, manifestArgs,
+                                    staleSince, lookupMillis))));
                 }
-                tsscheckerLog = executeProgram(args.toArray(new String[0]));
-            } catch (IOException e) {
-                Notification notification = new Notification("Saving blobs failed", "There was an error starting tsschecker. Click here to report this error.", Notification.ERROR_ICON);
-                Notification.Notifier.INSTANCE.setPopupLifetime(Duration.minutes(1));
-                Notification.Notifier.INSTANCE.setOnNotificationPressed(event -> {
-                    Notification.Notifier.INSTANCE.stop();
-                    Main.showStage();
-                    Alert alert = new Alert(Alert.AlertType.ERROR,
-                            "There was an error getting the tsschecker result.\n\nPlease create a new issue on Github or PM me on Reddit. The log has been copied to your clipboard.",
-                            githubIssue, redditPM, ButtonType.OK);
-                    resizeAlertButtons(alert);
-                    alert.showAndWait();
-                    alert.getDialogPane().toFront();
-                    reportError(alert, e.getMessage());
-                });
-                Notification.Notifier.INSTANCE.notify(notification);
-                continue;
             }
-            String presetName;
-            if ("".equals(appPrefs.get("Name Preset" + preset, ""))) {
-                presetName = "Preset " + preset;
-            } else {
-                presetName = appPrefs.get("Name Preset" + preset, "");
+            for (FutureTask<SaveResult> request : requests) {
+                heartbeat();
+                // this is already running on a worker, so it saves the requests that no other worker has taken yet
+                // itself instead of waiting for one (which might never come if every worker is doing the same)
+                request.run();
+                report(onResult, request.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (FutureTask<SaveResult> request : requests) {
+                request.cancel(false); // only the ones that haven't started
+            }
+        }
+    }
+
+    /**
+     * @param manifestArgs from {@link #cachedManifestArgs(String, String)}, or empty to let tsschecker get the
+     *                     BuildManifest itself
+     * @param staleSince   see {@link SaveResult#staleSince}
+     * @param lookupMillis see {@link SaveResult#lookupMillis}
+     */
+    private static SaveResult saveBlobs(Preset preset, String identifier, String version, Preset.NonceSet nonceSet,
+                                        List<String> manifestArgs, long staleSince, long lookupMillis) {
+        long start = System.nanoTime();
+        File tsschecker;
+        try {
+            tsschecker = getTsschecker();
+        } catch (IOException e) {
+            return new SaveResult(preset, version, TSSCheckerResult.TSSCHECKER_FAILED, e.getMessage(), millisSince(start),
+                    staleSince, lookupMillis, 0, 0, nonceSet);
+        }
+
+        File stagingFolder;
+        try {
+            stagingFolder = BlobLayout.createStagingFolder(preset.path);
+        } catch (IOException e) {
+            return new SaveResult(preset, version, TSSCheckerResult.INVALID_PATH, e.toString(), millisSince(start),
+                    staleSince, lookupMillis, 0, 0, nonceSet);
+        }
+        ArrayList<String> args = new ArrayList<>();
+        Collections.addAll(args, tsschecker.getPath(), "--generator", nonceSet.generator, "--nocache", "-d", identifier, "-s", "-e", preset.ecid,
+                "--save-path", stagingFolder.getPath(), "-i", version);
+        if (preset.needsBoardConfig()) {
+            Collections.addAll(args, "--boardconfig", preset.boardConfig);
+        }
+        if (nonceSet.apnonce != null) {
+            Collections.addAll(args, "--apnonce", nonceSet.apnonce);
+        }
+        args.addAll(manifestArgs);
+        String tsscheckerLog;
+        long tssStart = System.nanoTime();
+        try {
+            tsscheckerLog = executeProgram(args.toArray(new String[0]));
+        } catch (IOException e) {
+            BlobLayout.deleteStagingFolder(stagingFolder);
+            TSSCheckerResult result = e instanceof InterruptedIOException ? TSSCheckerResult.TIMEOUT : TSSCheckerResult.TSSCHECKER_FAILED;
+            return new SaveResult(preset, version, result, e.getMessage(), millisSince(start), staleSince, lookupMillis,
+                    millisSince(tssStart), 0, nonceSet);
+        }
+        long tssMillis = millisSince(tssStart);
+        TSSCheckerResult result = TSSCheckerResult.fromLog(tsscheckerLog);
+        if (result == TSSCheckerResult.SAVED) {
+            String problem = BlobValidator.validateSaved(stagingFolder, preset.ecid,
+                    nonceSet.apnonce == null ? "" : nonceSet.apnonce);
+            if (problem != null) {
+                // still kept, in case it's useful to someone anyway
+                result = TSSCheckerResult.INVALID_BLOB;
+                tsscheckerLog += "\nsaved blob isn't valid: " + problem;
             }
-            if (containsIgnoreCase(tsscheckerLog, "Saved")) {
-                Notification notification = new Notification("Successfully saved blobs for", "iOS " + version + " (" + presetName + ") in\n" + path, Notification.SUCCESS_ICON);
+        }
+        long bytesWritten = 0;
+        try {
+            bytesWritten = BlobLayout.commit(stagingFolder, preset.path);
+        } catch (IOException e) {
+            Log.error("unable to move blobs out of staging folder", e, "preset", preset.number, "version", version,
+                    "folder", stagingFolder);
+            result = TSSCheckerResult.INVALID_PATH;
+        }
+        return new SaveResult(preset, version, result, tsscheckerLog, millisSince(start), staleSince, lookupMillis,
+                tssMillis, bytesWritten, nonceSet);
+    }
+
+    /**
+     * tsschecker gets the BuildManifest through ipsw.me, so if ipsw.me is down, give it one from the
+     * {@link ManifestCache} instead. If that doesn't work either, tsschecker is still run and might have it cached.
+     * Batches use it too, so that the BuildManifest is only downloaded once for all of their requests.
+     *
+     * @return the tsschecker arguments to use the cached BuildManifest, or an empty list if it couldn't be gotten
+     */
+    private static List<String> cachedManifestArgs(String identifier, String version) {
+        Firmware firmware = FirmwareStore.get().getFirmware(identifier, version);
+        if (firmware == null) {
+            return Collections.emptyList();
+        }
+        try {
+            File manifest = ManifestCache.get(firmware);
+            return Arrays.asList("--buildid", firmware.buildId, "-m", manifest.getPath());
+        } catch (IOException e) {
+            Log.warn("unable to get cached BuildManifest", "identifier", identifier, "version", version,
+                    "error", e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    private static void report(Consumer<SaveResult> onResult, SaveResult saveResult) {
+        Metrics.countResult(saveResult.result);
+        SaveHistory.get().record(saveResult);
+        if (saveResult.result == TSSCheckerResult.SAVED || saveResult.result == TSSCheckerResult.NOT_SIGNED) {
+            Log.info("saving blobs finished", "preset", saveResult.preset.number, "ecid", saveResult.preset.ecid,
+                    "version", saveResult.version, "stage", saveResult.result, "duration", saveResult.durationMillis,
+                    "staleMetadata", saveResult.isBasedOnStaleMetadata(), "nonceSet", saveResult.nonceSet);
+        } else {
+            Log.warn("saving blobs failed", "preset", saveResult.preset.number, "ecid", saveResult.preset.ecid,
+                    "version", saveResult.version, "stage", saveResult.result, "duration", saveResult.durationMillis,
+                    "staleMetadata", saveResult.isBasedOnStaleMetadata(), "nonceSet", saveResult.nonceSet,
+                    "log", saveResult.log);
+        }
+        onResult.accept(saveResult);
+    }
+
+    private static long millisSince(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private static void showNotification(SaveResult saveResult) {
+        String version = saveResult.version;
+        String path = saveResult.preset.path;
+        switch (saveResult.result) {
+            case SAVED:
+                String staleNote = saveResult.isBasedOnStaleMetadata()
+                        ? "\n(ipsw.me is down, signed versions are from " + DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(new Date(saveResult.staleSince)) + ")"
+                        : "";
+                Notification notification = new Notification("Successfully saved blobs for", "iOS " + version + " (" + saveResult.preset.name + ") in\n" + path + staleNote, Notification.SUCCESS_ICON);
                 Notification.Notifier.INSTANCE.setPopupLifetime(Duration.seconds(30));
                 Notification.Notifier.INSTANCE.setOnNotificationPressed((event) -> {
                     Notification.Notifier.INSTANCE.stop();
@@ -277,48 +818,88 @@ class Background {
                     alert.getDialogPane().toFront();
                 });
                 Notification.Notifier.INSTANCE.notify(notification);
+                break;
+            case NOT_SIGNED:
+                break;
+            case DEVICE_NOT_FOUND:
+                if (version == null) {
+                    notifyError(saveResult.log + ".\nClick here to report this error.",
+                            saveResult.log + "\n\nPlease create a new issue on Github or PM me on Reddit.", null);
+                    break;
+                }
+                notifyUnknownError(saveResult.log);
+                break;
+            case VERSION_LOOKUP_FAILED:
+                notifyError("Check your internet connection.\nIf it is working, click here to report this error.",
+                        "Saving blobs failed. Check your internet connection.\n\nIf your internet is working and you can connect to the website ipsw.me in your browser, please create a new issue on Github or PM me on Reddit. The log has been copied to your clipboard.",
+                        saveResult.log);
+                break;
+            case TSSCHECKER_FAILED:
+                notifyError("There was an error running tsschecker. Click here to report this error.",
+                        "There was an error running tsschecker.\n\nPlease create a new issue on Github or PM me on Reddit. The log has been copied to your clipboard.",
+                        saveResult.log);
+                break;
+            case TIMEOUT:
+                notifyError("tsschecker timed out. Click here to report this error.",
+                        "tsschecker timed out and was stopped.\n\nIf your internet is working and you can connect to apple.com in your browser, please create a new issue on Github or PM me on Reddit. The log has been copied to your clipboard.",
+                        saveResult.log);
+                break;
+            case NO_CONNECTION:
+                notifyError("Check your internet connection. If it is working, click here to report this error.",
+                        "Saving blobs failed. Check your internet connection.\n\nIf your internet is working and you can connect to apple.com in your browser, please create a new issue on Github or PM me on Reddit. The log has been copied to your clipboard.",
+                        saveResult.log);
+                break;
+            default:
+                notifyUnknownError(saveResult.log);
+                break;
+        }
+    }
 
-                log("displayed message");
+    private static void notifyUnknownError(String toCopy) {
+        notifyError("An unknown error occurred. Click here to report this error.",
+                "Saving blobs failed." + "\n\nPlease create a new issue on Github or PM me on Reddit. The log has been copied to your clipboard.",
+                toCopy);
+    }
 
-            } else if (containsIgnoreCase(tsscheckerLog, "[Error] ERROR: TSS request failed: Could not resolve host:")) {
-                Notification notification = new Notification("Saving blobs failed", "Check your internet connection. If it is working, click here to report this error.", Notification.ERROR_ICON);
-                Notification.Notifier.INSTANCE.setPopupLifetime(Duration.minutes(1));
-                Notification.Notifier.INSTANCE.setOnNotificationPressed(event -> {
-                    Notification.Notifier.INSTANCE.stop();
-                    Main.showStage();
-                    Alert alert = new Alert(Alert.AlertType.ERROR,
-                            "Saving blobs failed. Check your internet connection.\n\nIf your internet is working and you can connect to apple.com in your browser, please create a new issue on Github or PM me on Reddit. The log has been copied to your clipboard.",
-                            githubIssue, redditPM, ButtonType.OK);
-                    resizeAlertButtons(alert);
-                    alert.showAndWait();
-                    alert.getDialogPane().toFront();
-                    reportError(alert, tsscheckerLog);
-                });
-                Notification.Notifier.INSTANCE.notify(notification);
-            } else if (containsIgnoreCase(tsscheckerLog, "iOS " + version + " for device " + identifier + " IS NOT being signed")) {
-                continue;
+    /**
+     * Shows an error notification, which opens a reportable error alert when it is clicked.
+     *
+     * @param toCopy copied to the clipboard when reporting the error, or {@code null} to not copy anything
+     */
+    private static void notifyError(String notificationMessage, String alertMessage, String toCopy) {
+        Notification notification = new Notification("Saving blobs failed", notificationMessage, Notification.ERROR_ICON);
+        Notification.Notifier.INSTANCE.setPopupLifetime(Duration.minutes(1));
+        Notification.Notifier.INSTANCE.setOnNotificationPressed(event -> {
+            Notification.Notifier.INSTANCE.stop();
+            Main.showStage();
+            Alert alert = new Alert(Alert.AlertType.ERROR, alertMessage, githubIssue, redditPM, ButtonType.OK);
+            resizeAlertButtons(alert);
+            alert.showAndWait();
+            alert.getDialogPane().toFront();
+            if (toCopy == null) {
+                reportError(alert);
             } else {
-                Notification notification = new Notification("Saving blobs failed", "An unknown error occurred. Click here to report this error.", Notification.ERROR_ICON);
-                Notification.Notifier.INSTANCE.setPopupLifetime(Duration.minutes(1));
-                Notification.Notifier.INSTANCE.setOnNotificationPressed(event -> {
-                    Notification.Notifier.INSTANCE.stop();
-                    Main.showStage();
-                    Alert alert = new Alert(Alert.AlertType.ERROR, "Saving blobs failed." + "\n\nPlease create a new issue on Github or PM me on Reddit. The log has been copied to your clipboard.",
-                            githubIssue, redditPM, ButtonType.CANCEL);
-                    resizeAlertButtons(alert);
-                    alert.showAndWait();
-                    alert.getDialogPane().toFront();
-                    reportError(alert, tsscheckerLog);
-                });
-                Notification.Notifier.INSTANCE.notify(notification);
+                reportError(alert, toCopy);
             }
-            log("it worked");
-        }
+        });
+        Notification.Notifier.INSTANCE.notify(notification);
     }
 
     static void stopBackground(boolean showAlert) {
         inBackground = false;
+        paused = false;
+        appPrefs.removePreferenceChangeListener(settingsListener);
+        JobJournal journal = Background.journal;
+        Background.journal = null;
+        if (journal != null) {
+            journal.close(); // presets that were still queued are resumed next time
+        }
+        ControlServer.stop();
+        BlobManifest.stopWatching();
         executor.shutdownNow();
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+        }
         if (SwingUtilities.isEventDispatchThread()) {
             SystemTray.getSystemTray().remove(trayIcon);
         } else {
@@ -336,6 +917,6 @@ class Background {
     }
 
     private static void log(String msg) {
-        System.out.println(msg);
+        Log.info(msg);
     }
 }
\ No newline at end of file
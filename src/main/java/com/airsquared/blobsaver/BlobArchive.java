@@ -0,0 +1,759 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static com.airsquared.blobsaver.Main.appPrefs;
+
+/**
+ * Packs blobs into a few big files in {@code <save path>/blob-archive/} instead of keeping thousands of tiny
+ * {@code .shsh2} files, which waste inodes and make backups slow. Turned on with the {@code Pack blobs into archive}
+ * preference, after which {@link BlobLayout#commit(File, String)} adds newly saved blobs here instead of leaving them
+ * as loose files.
+ * <p>
+ * Blobs are compressed with {@link Deflater} and appended to {@code segment-NNNNN.dat} files, starting a new one
+ * every {@link #SEGMENT_SIZE} bytes. Each entry in a segment has the blob's file name, so the segments alone are
+ * enough to get every blob back. {@code index-NNNNN.idx} is a memory-mapped array with one fixed size entry per blob
+ * (ECID, version, a hash of the nonce, and where it is), which is what lookups go through. {@link #compact()} writes
+ * a new index with the next number instead of replacing the file, since a file that's mapped can't be replaced on
+ * Windows (and Java has no way to unmap it). The newest index that was finished is the one that's used.
+ * <p>
+ * Saving a blob that's already in the archive (same file name) replaces it. The old copy stays in its segment until
+ * {@link #compact()} rewrites the segments with only the current blobs.
+ * <p>
+ * Like {@link SaveHistory}, the index remembers how far into the segments it has got, so anything appended after that
+ * (if blobsaver quit in between) is indexed when the archive is opened, and an incomplete entry at the end of the
+ * last segment is cut off. If the index is unreadable, it's rebuilt from the segments.
+ * <p>
+ * From the command line: {@code blobsaver --blob-archive <save path> pack|export|compact|list}
+ */
+class BlobArchive {
+
+    static final String ENABLED_PREF = "Pack blobs into archive";
+    static final String FOLDER = "blob-archive";
+
+    static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int SEGMENT_MAGIC = 0x42534153; // "BSAS"
+    private static final int INDEX_MAGIC = 0x42534149; // "BSAI"
+    private static final int ENTRY_MAGIC = 0x424c4f42; // "BLOB"
+    private static final short FORMAT_VERSION = 1;
+    private static final int SEGMENT_HEADER_SIZE = 6;
+
+    // index header: magic, version, entries, last indexed segment and how far into it
+    private static final int INDEX_HEADER_SIZE = 32;
+    private static final int ENTRIES = 8, INDEXED_SEGMENT = 12, INDEXED_END = 16;
+    // index entries
+    private static final int INDEX_ENTRY_SIZE = 64;
+    private static final int ECID = 0, NONCE_HASH = 8, NAME_HASH = 16, VERSION = 24, SEGMENT = 36, OFFSET = 40,
+            COMPRESSED_LENGTH = 48, RAW_LENGTH = 52, FLAGS = 56;
+    private static final int VERSION_SIZE = 12;
+    private static final byte REPLACED = 1;
+
+    private static final Map<String, BlobArchive> open = new ConcurrentHashMap<>();
+
+    private final File folder;
+    private int indexGeneration;
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private final Map<Integer, FileChannel> segments = new HashMap<>();
+    private int lastSegment;
+
+    /**
+     * Index entries by ECID, so that lookups don't have to go through the whole index.
+     */
+    private final Map<Long, List<Integer>> byEcid = new HashMap<>();
+    /**
+     * Index entries by a hash of the blob's file name, to find the one a new blob replaces.
+     */
+    private final Map<Long, Integer> byName = new HashMap<>();
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+
+    private BlobArchive(File folder) {
+        this.folder = folder;
+    }
+
+    static boolean isEnabled() {
+        return appPrefs.getBoolean(ENABLED_PREF, false);
+    }
+
+    /**
+     * @return the archive for the save path, opening it if it isn't already
+     */
+    static BlobArchive get(String savePath) throws IOException {
+        File folder = new File(savePath, FOLDER).getCanonicalFile();
+        BlobArchive archive = open.get(folder.getPath());
+        if (archive == null) {
+            synchronized (open) {
+                archive = open.get(folder.getPath());
+                if (archive == null) {
+                    archive = open(savePath);
+                    open.put(folder.getPath(), archive);
+                }
+            }
+        }
+        return archive;
+    }
+
+    /**
+     * Opens the archive without sharing it like {@link #get(String)} does. {@link #close()} it when done.
+     */
+    static BlobArchive open(String savePath) throws IOException {
+        BlobArchive archive = new BlobArchive(new File(savePath, FOLDER).getCanonicalFile());
+        archive.load();
+        return archive;
+    }
+
+    synchronized void close() throws IOException {
+        for (FileChannel channel : segments.values()) {
+            channel.close();
+        }
+        segments.clear();
+        indexChannel.close();
+    }
+
+    private void load() throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        folder.mkdirs();
+        indexGeneration = chooseIndex();
+        indexChannel = FileChannel.open(indexFile(indexGeneration).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.max(indexChannel.size(), INDEX_HEADER_SIZE + 256L * INDEX_ENTRY_SIZE));
+        List<Integer> segmentNumbers = listSegments();
+        lastSegment = segmentNumbers.isEmpty() ? 0 : segmentNumbers.get(segmentNumbers.size() - 1);
+        if (index.getInt(0) != INDEX_MAGIC || index.getShort(4) != FORMAT_VERSION || !isIndexInRange(segmentNumbers)) {
+            if (index.getInt(0) != 0) {
+                Log.warn("rebuilding blob archive index", "folder", folder);
+            }
+            index.putInt(0, INDEX_MAGIC).putShort(4, FORMAT_VERSION).putInt(ENTRIES, 0)
+                    .putInt(INDEXED_SEGMENT, 0).putLong(INDEXED_END, SEGMENT_HEADER_SIZE);
+        }
+        for (int i = 0; i < index.getInt(ENTRIES); i++) {
+            if ((index.get(indexEntry(i) + FLAGS) & REPLACED) == 0) {
+                addToMaps(i);
+            }
+        }
+        long start = System.nanoTime();
+        int entries = index.getInt(ENTRIES);
+        for (int segment : segmentNumbers) {
+            if (segment >= index.getInt(INDEXED_SEGMENT)) {
+                catchUp(segment, segment == index.getInt(INDEXED_SEGMENT) ? index.getLong(INDEXED_END) : SEGMENT_HEADER_SIZE);
+            }
+        }
+        if (index.getInt(ENTRIES) != entries) {
+            Log.info("caught up blob archive index", "folder", folder, "entries", index.getInt(ENTRIES) - entries,
+                    "duration", (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    /**
+     * @return the newest index that was finished, or the newest one if none were. The others are left over from
+     * {@link #compact()}, and are deleted.
+     */
+    private int chooseIndex() throws IOException {
+        List<Integer> generations = listNumbered("index-\\d{5}\\.idx");
+        int chosen = generations.isEmpty() ? 1 : generations.get(generations.size() - 1);
+        for (int i = generations.size() - 1; i >= 0; i--) {
+            if (isFinishedIndex(indexFile(generations.get(i)))) {
+                chosen = generations.get(i);
+                break;
+            }
+        }
+        for (int generation : generations) {
+            if (generation != chosen) {
+                Files.deleteIfExists(indexFile(generation).toPath());
+            }
+        }
+        return chosen;
+    }
+
+    private static boolean isFinishedIndex(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(6);
+            return channel.read(header, 0) == 6 && header.getInt(0) == INDEX_MAGIC && header.getShort(4) == FORMAT_VERSION;
+        }
+    }
+
+    private File indexFile(int generation) {
+        return new File(folder, String.format(Locale.ROOT, "index-%05d.idx", generation));
+    }
+
+    /**
+     * @return false if the index points into a segment that isn't there or past the end of one
+     */
+    private boolean isIndexInRange(List<Integer> segmentNumbers) throws IOException {
+        int indexedSegment = index.getInt(INDEXED_SEGMENT);
+        if (indexedSegment == 0) {
+            return index.getInt(ENTRIES) == 0;
+        }
+        return segmentNumbers.contains(indexedSegment) && index.getLong(INDEXED_END) <= segment(indexedSegment).size();
+    }
+
+    private List<Integer> listSegments() {
+        return listNumbered("segment-\\d{5}\\.dat");
+    }
+
+    /**
+     * @param pattern a file name with one 5 digit number in it
+     * @return the numbers of the files in the folder that match, in order
+     */
+    private List<Integer> listNumbered(String pattern) {
+        List<Integer> numbers = new ArrayList<>();
+        String[] names = folder.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.matches(pattern)) {
+                    numbers.add(Integer.parseInt(name.replaceAll("\\D", "")));
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private FileChannel segment(int number) throws IOException {
+        FileChannel channel = segments.get(number);
+        if (channel == null) {
+            channel = FileChannel.open(segmentFile(number).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+                header.putInt(SEGMENT_MAGIC).putShort(FORMAT_VERSION).flip();
+                channel.write(header, 0);
+            }
+            segments.put(number, channel);
+        }
+        return channel;
+    }
+
+    private File segmentFile(int number) {
+        return new File(folder, String.format(Locale.ROOT, "segment-%05d.dat", number));
+    }
+
+    /**
+     * Indexes the entries in the segment from {@code position} on, cutting the segment off at the first one that is
+     * incomplete or corrupt.
+     */
+    private void catchUp(int segment, long position) throws IOException {
+        FileChannel channel = segment(segment);
+        ByteBuffer magic = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        channel.read(magic, 0);
+        if (magic.getInt(0) != SEGMENT_MAGIC || magic.getShort(4) != FORMAT_VERSION) {
+            Log.warn("skipping blob archive segment from a different version", "segment", segmentFile(segment));
+            return;
+        }
+        long size = channel.size();
+        while (position < size) {
+            StoredEntry entry = readEntry(channel, segment, position);
+            if (entry == null) {
+                Log.warn("cutting off an incomplete blob archive entry", "segment", segmentFile(segment),
+                        "bytes", size - position);
+                channel.truncate(position);
+                break;
+            }
+            addToIndex(entry);
+            position = entry.end;
+            index.putInt(INDEXED_SEGMENT, segment).putLong(INDEXED_END, position);
+        }
+    }
+
+    /**
+     * An entry as it's stored in a segment: magic, name length, name, raw length, compressed length, CRC32 of the raw
+     * blob, the time it was added, and then the compressed blob.
+     */
+    private static final class StoredEntry {
+        String name;
+        int segment;
+        long offset;
+        long end;
+        int rawLength;
+        int compressedLength;
+        int checksum;
+        long payloadOffset;
+    }
+
+    /**
+     * @return the entry, or {@code null} if it's incomplete or corrupt
+     */
+    private static StoredEntry readEntry(FileChannel channel, int segment, long offset) throws IOException {
+        ByteBuffer start = ByteBuffer.allocate(6);
+        if (channel.read(start, offset) < 6 || start.getInt(0) != ENTRY_MAGIC) {
+            return null;
+        }
+        int nameLength = start.getShort(4) & 0xffff;
+        ByteBuffer rest = ByteBuffer.allocate(nameLength + 4 + 4 + 4 + 8);
+        if (channel.read(rest, offset + 6) < rest.capacity()) {
+            return null;
+        }
+        StoredEntry entry = new StoredEntry();
+        entry.name = new String(rest.array(), 0, nameLength, StandardCharsets.UTF_8);
+        entry.rawLength = rest.getInt(nameLength);
+        entry.compressedLength = rest.getInt(nameLength + 4);
+        entry.checksum = rest.getInt(nameLength + 8);
+        entry.segment = segment;
+        entry.offset = offset;
+        entry.payloadOffset = offset + 6 + rest.capacity();
+        entry.end = entry.payloadOffset + entry.compressedLength;
+        if (entry.rawLength < 0 || entry.compressedLength < 0 || entry.end > channel.size()) {
+            return null;
+        }
+        return entry;
+    }
+
+    private void addToIndex(StoredEntry entry) throws IOException {
+        int number = index.getInt(ENTRIES);
+        long needed = indexEntry(number) + INDEX_ENTRY_SIZE;
+        if (needed > index.capacity()) {
+            if (needed * 2 > Integer.MAX_VALUE) {
+                throw new IOException("blob archive index is too big");
+            }
+            index.force();
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(needed, 2L * index.capacity()));
+        }
+        int position = indexEntry(number);
+        Matcher blob = BlobLayout.matchBlobName(entry.name);
+        long ecid = 0;
+        String version = "";
+        String nonce = "";
+        if (blob != null) {
+            ecid = Long.parseUnsignedLong(blob.group(1));
+            version = blob.group(4);
+            nonce = blob.group(6);
+        }
+        index.putLong(position + ECID, ecid)
+                .putLong(position + NONCE_HASH, hash(nonce.toLowerCase(Locale.ROOT)))
+                .putLong(position + NAME_HASH, hash(entry.name))
+                .putInt(position + SEGMENT, entry.segment)
+                .putLong(position + OFFSET, entry.offset)
+                .putInt(position + COMPRESSED_LENGTH, entry.compressedLength)
+                .putInt(position + RAW_LENGTH, entry.rawLength)
+                .put(position + FLAGS, (byte) 0);
+        byte[] versionBytes = version.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < VERSION_SIZE; i++) {
+            index.put(position + VERSION + i, i < versionBytes.length ? versionBytes[i] : 0);
+        }
+        Integer replaced = byName.get(hash(entry.name));
+        if (replaced != null) {
+            index.put(indexEntry(replaced) + FLAGS, REPLACED);
+            List<Integer> sameEcid = byEcid.get(index.getLong(indexEntry(replaced) + ECID));
+            if (sameEcid != null) {
+                sameEcid.remove(replaced);
+            }
+        }
+        index.putInt(ENTRIES, number + 1);
+        addToMaps(number);
+    }
+
+    private void addToMaps(int entry) {
+        int position = indexEntry(entry);
+        byEcid.computeIfAbsent(index.getLong(position + ECID), k -> new ArrayList<>()).add(entry);
+        byName.put(index.getLong(position + NAME_HASH), entry);
+    }
+
+    private static int indexEntry(int number) {
+        return INDEX_HEADER_SIZE + number * INDEX_ENTRY_SIZE;
+    }
+
+    /**
+     * 64-bit FNV-1a
+     */
+    static long hash(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Compresses the blob and appends it to the last segment, or a new one if that's full. Call {@link #sync()} before
+     * deleting the original.
+     */
+    synchronized void add(String name, byte[] blob) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 0xffff) {
+            throw new IOException("blob name is too long: " + name);
+        }
+        deflater.reset();
+        deflater.setInput(blob);
+        deflater.finish();
+        byte[] compressed = new byte[blob.length + blob.length / 1000 + 64];
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(blob);
+
+        ByteBuffer entry = ByteBuffer.allocate(6 + nameBytes.length + 20 + compressedLength);
+        entry.putInt(ENTRY_MAGIC).putShort((short) nameBytes.length).put(nameBytes)
+                .putInt(blob.length).putInt(compressedLength).putInt((int) crc.getValue())
+                .putLong(System.currentTimeMillis()).put(compressed, 0, compressedLength).flip();
+        if (lastSegment == 0 || segment(lastSegment).size() + entry.remaining() > SEGMENT_SIZE) {
+            lastSegment++;
+        }
+        FileChannel channel = segment(lastSegment);
+        long offset = channel.size();
+        while (entry.hasRemaining()) {
+            channel.write(entry, offset + entry.position());
+        }
+        StoredEntry stored = readEntry(channel, lastSegment, offset);
+        if (stored == null) {
+            throw new IOException("blob archive entry wasn't written completely");
+        }
+        addToIndex(stored);
+        index.putInt(INDEXED_SEGMENT, lastSegment).putLong(INDEXED_END, stored.end);
+    }
+
+    /**
+     * Makes sure everything that was added is on disk.
+     */
+    synchronized void sync() throws IOException {
+        for (FileChannel channel : segments.values()) {
+            channel.force(false);
+        }
+        index.force();
+    }
+
+    static final class Entry {
+        final String name;
+        final long ecid;
+        final String version;
+        final int rawLength;
+        final int compressedLength;
+        private final int segment;
+        private final long offset;
+
+        private Entry(String name, long ecid, String version, int rawLength, int compressedLength, int segment, long offset) {
+            this.name = name;
+            this.ecid = ecid;
+            this.version = version;
+            this.rawLength = rawLength;
+            this.compressedLength = compressedLength;
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + rawLength + " bytes, " + compressedLength + " compressed)";
+        }
+    }
+
+    /**
+     * @param version {@code null} for any version
+     * @param nonce   the apnonce as it appears in the file name, or {@code null} for any nonce
+     */
+    synchronized List<Entry> find(long ecid, String version, String nonce) throws IOException {
+        List<Entry> found = new ArrayList<>();
+        List<Integer> candidates = byEcid.get(ecid);
+        if (candidates == null) {
+            return found;
+        }
+        long nonceHash = nonce == null ? 0 : hash(nonce.toLowerCase(Locale.ROOT));
+        for (int candidate : candidates) {
+            int position = indexEntry(candidate);
+            if (nonce != null && index.getLong(position + NONCE_HASH) != nonceHash) {
+                continue;
+            }
+            String entryVersion = readVersion(position);
+            if (version == null || version.equals(entryVersion)) {
+                found.add(toEntry(position, entryVersion));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return every blob in the archive, not including ones that have been replaced
+     */
+    synchronized List<Entry> list() throws IOException {
+        List<Entry> entries = new ArrayList<>(byName.size());
+        for (int i = 0; i < index.getInt(ENTRIES); i++) {
+            int position = indexEntry(i);
+            if ((index.get(position + FLAGS) & REPLACED) == 0) {
+                entries.add(toEntry(position, readVersion(position)));
+            }
+        }
+        return entries;
+    }
+
+    private String readVersion(int position) {
+        int length = 0;
+        while (length < VERSION_SIZE && index.get(position + VERSION + length) != 0) {
+            length++;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = index.get(position + VERSION + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private Entry toEntry(int position, String version) throws IOException {
+        int segment = index.getInt(position + SEGMENT);
+        long offset = index.getLong(position + OFFSET);
+        // the name is only in the segment, the index only has room for a hash of it
+        StoredEntry stored = readEntry(segment(segment), segment, offset);
+        if (stored == null) {
+            throw new IOException("blob archive index points to a missing entry in " + segmentFile(segment));
+        }
+        return new Entry(stored.name, index.getLong(position + ECID), version, stored.rawLength,
+                stored.compressedLength, segment, offset);
+    }
+
+    /**
+     * @return the blob, uncompressed
+     * @throws IOException if it's corrupt
+     */
+    synchronized byte[] read(Entry entry) throws IOException {
+        StoredEntry stored = readEntry(segment(entry.segment), entry.segment, entry.offset);
+        if (stored == null) {
+            throw new IOException("missing blob archive entry for " + entry.name);
+        }
+        ByteBuffer compressed = ByteBuffer.allocate(stored.compressedLength);
+        segment(entry.segment).read(compressed, stored.payloadOffset);
+        byte[] blob = new byte[stored.rawLength];
+        inflater.reset();
+        inflater.setInput(compressed.array());
+        try {
+            int length = 0;
+            while (length < blob.length && !inflater.finished()) {
+                int inflated = inflater.inflate(blob, length, blob.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != blob.length) {
+                throw new IOException("blob archive entry for " + entry.name + " is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("blob archive entry for " + entry.name + " is corrupt", e);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(blob);
+        if ((int) crc.getValue() != stored.checksum) {
+            throw new IOException("blob archive entry for " + entry.name + " has the wrong checksum");
+        }
+        return blob;
+    }
+
+    /**
+     * Writes every blob in the archive back out as a loose file, in the folder that the template puts it.
+     *
+     * @return the number of blobs written
+     */
+    int export(File savePath, String template) throws IOException {
+        int exported = 0;
+        for (Entry entry : list()) {
+            File folder = BlobLayout.getFolder(savePath, template, entry.name);
+            if (folder == null) {
+                folder = savePath;
+            }
+            //noinspection ResultOfMethodCallIgnored
+            folder.mkdirs();
+            Files.write(new File(folder, entry.name).toPath(), read(entry));
+            exported++;
+        }
+        Log.info("exported blob archive", "folder", folder, "blobs", exported);
+        return exported;
+    }
+
+    /**
+     * Adds every loose blob in the save path (and the folders in it) to the archive, and then deletes them.
+     *
+     * @return the number of blobs added
+     */
+    int pack(File savePath) throws IOException {
+        List<File> packed = new ArrayList<>();
+        packFolder(savePath, packed);
+        sync();
+        for (File blob : packed) {
+            Files.delete(blob.toPath());
+        }
+        Log.info("packed blobs into archive", "folder", folder, "blobs", packed.size());
+        return packed.size();
+    }
+
+    private void packFolder(File folder, List<File> packed) throws IOException {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            throw new IOException("unable to list " + folder);
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                if (!file.getName().equals(FOLDER) && !file.getName().equals(BlobLayout.STAGING_FOLDER)) {
+                    packFolder(file, packed);
+                }
+            } else if (BlobLayout.matchBlobName(file.getName()) != null) {
+                add(file.getName(), Files.readAllBytes(file.toPath()));
+                packed.add(file);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the segments with only the blobs that haven't been replaced. The new segments and index are written
+     * before the old ones are deleted, and the new index is only marked as finished at the end, so if blobsaver quits
+     * partway through, nothing is lost: the next time the archive is opened, the old index is used and the new
+     * segments are indexed on top of it.
+     */
+    synchronized void compact() throws IOException {
+        long start = System.nanoTime();
+        List<Entry> live = list();
+        List<Integer> oldSegments = listSegments();
+        long oldSize = 0;
+        for (int segment : oldSegments) {
+            oldSize += segment(segment).size();
+        }
+        List<byte[]> blobs = new ArrayList<>(live.size());
+        for (Entry entry : live) {
+            blobs.add(read(entry));
+        }
+        int firstNewSegment = lastSegment + 1;
+        lastSegment = firstNewSegment;
+        segment(firstNewSegment);
+        // written through a fresh index so that the current one is still valid if this fails
+        MappedByteBuffer oldIndex = index;
+        Map<Long, List<Integer>> oldByEcid = new HashMap<>(byEcid);
+        Map<Long, Integer> oldByName = new HashMap<>(byName);
+        List<Integer> generations = listNumbered("index-\\d{5}\\.idx");
+        int newGeneration = Math.max(indexGeneration,
+                generations.isEmpty() ? 0 : generations.get(generations.size() - 1)) + 1;
+        File newIndexFile = indexFile(newGeneration);
+        FileChannel newIndexChannel = FileChannel.open(newIndexFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel oldIndexChannel = indexChannel;
+        try {
+            indexChannel = newIndexChannel;
+            index = newIndexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    INDEX_HEADER_SIZE + Math.max(256L, live.size()) * INDEX_ENTRY_SIZE);
+            // no magic until it's finished, so that it isn't used if this doesn't finish
+            index.putShort(4, FORMAT_VERSION).putInt(ENTRIES, 0);
+            byEcid.clear();
+            byName.clear();
+            for (int i = 0; i < live.size(); i++) {
+                add(live.get(i).name, blobs.get(i));
+            }
+            sync();
+            index.putInt(0, INDEX_MAGIC);
+            index.force();
+        } catch (IOException | RuntimeException e) {
+            newIndexChannel.close();
+            indexChannel = oldIndexChannel;
+            index = oldIndex;
+            byEcid.clear();
+            byEcid.putAll(oldByEcid);
+            byName.clear();
+            byName.putAll(oldByName);
+            throw e;
+        }
+        oldIndexChannel.close();
+        int oldGeneration = indexGeneration;
+        indexGeneration = newGeneration;
+        try {
+            Files.deleteIfExists(indexFile(oldGeneration).toPath());
+        } catch (IOException e) {
+            // still mapped on Windows, it's deleted the next time the archive is opened
+            Log.info("unable to delete old blob archive index", "file", indexFile(oldGeneration), "error", e.toString());
+        }
+        for (int segment : oldSegments) {
+            if (segment < firstNewSegment) {
+                FileChannel channel = segments.remove(segment);
+                if (channel != null) {
+                    channel.close();
+                }
+                Files.deleteIfExists(segmentFile(segment).toPath());
+            }
+        }
+        long newSize = 0;
+        for (FileChannel channel : segments.values()) {
+            newSize += channel.size();
+        }
+        Log.info("compacted blob archive", "folder", folder, "blobs", live.size(), "bytesBefore", oldSize,
+                "bytesAfter", newSize, "duration", (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * {@code --blob-archive <save path> pack|export|compact|list}
+     *
+     * @return the exit code
+     */
+    static int fromCommandLine(String[] args) {
+        if (args.length < 3) {
+            System.err.println("usage: blobsaver --blob-archive <save path> pack|export|compact|list");
+            return 2;
+        }
+        File savePath = new File(args[1]);
+        try {
+            BlobArchive archive = get(savePath.getPath());
+            switch (args[2]) {
+                case "pack":
+                    System.out.println("packed " + archive.pack(savePath) + " blobs");
+                    return 0;
+                case "export":
+                    System.out.println("exported " + archive.export(savePath, BlobLayout.getTemplate()) + " blobs");
+                    return 0;
+                case "compact":
+                    archive.compact();
+                    System.out.println("compacted " + archive.list().size() + " blobs");
+                    return 0;
+                case "list":
+                    for (Entry entry : archive.list()) {
+                        System.out.println(entry);
+                    }
+                    return 0;
+                default:
+                    System.err.println("unknown command: " + args[2]);
+                    return 2;
+            }
+        } catch (IOException e) {
+            System.err.println("blob archive failed: " + e);
+            return 1;
+        }
+    }
+}
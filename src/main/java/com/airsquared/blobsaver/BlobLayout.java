@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.airsquared.blobsaver.Main.appPrefs;
+
+/**
+ * Where blobs go inside a preset's save path. By default they all go straight into it, but with a path template like
+ * {@code {model}/{ecid}/{build}} they're sorted into folders, so that a save path shared by lots of devices doesn't
+ * end up with tens of thousands of files in one folder. The template is the {@code Blob path template} preference
+ * and can use:
+ * <ul>
+ * <li>{@code {ecid}}: the ECID in hex</li>
+ * <li>{@code {model}} or {@code {identifier}}: the device identifier, like iPhone10,3</li>
+ * <li>{@code {board}}: the board config</li>
+ * <li>{@code {version}} and {@code {build}}</li>
+ * <li>{@code {apnonce}}</li>
+ * </ul>
+ * tsschecker saves into a staging folder in the save path first, and then each blob is moved to its folder in one
+ * step, so that nothing watching or syncing the save path ever sees half of a blob.
+ * <p>
+ * Existing blobs can be moved to the current layout with {@code blobsaver --migrate-blobs <folder> [template]}.
+ * Blobs in a {@link BlobArchive} don't have a layout until they're exported.
+ */
+class BlobLayout {
+
+    static final String TEMPLATE_PREF = "Blob path template";
+    static final String STAGING_FOLDER = ".blobsaver-staging";
+
+    /**
+     * How tsschecker names blobs: {@code <ecid in decimal>_<identifier>_<board>_<version>-<build>_<apnonce>.shsh2}
+     */
+    private static final Pattern BLOB_NAME = Pattern.compile("(\\d+)_([^_]+)_([^_]+)_([^_-]+)-([^_]+)_([^_.]+)\\.shsh2");
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{([a-z]+)}");
+
+    private BlobLayout() {
+    }
+
+    static String getTemplate() {
+        return appPrefs.get(TEMPLATE_PREF, "").trim();
+    }
+
+    /**
+     * @return an error message if the template can't be used, or {@code null} if it's fine
+     */
+    static String validateTemplate(String template) {
+        Matcher matcher = PLACEHOLDER.matcher(template);
+        while (matcher.find()) {
+            if (placeholderIndex(matcher.group(1)) < 0) {
+                return "unknown placeholder " + matcher.group();
+            }
+        }
+        String withoutPlaceholders = matcher.replaceAll("x");
+        if (withoutPlaceholders.contains("{") || withoutPlaceholders.contains("}")) {
+            return "placeholders look like {ecid}";
+        }
+        for (String part : template.split("[/\\\\]")) {
+            if (part.equals("..") || part.equals(".") || part.equals(STAGING_FOLDER)) {
+                return "the template can't use \"" + part + "\" as a folder";
+            }
+        }
+        if (new File(template).isAbsolute() || template.startsWith("/") || template.startsWith("\\")) {
+            return "the template has to be relative to the save path";
+        }
+        return null;
+    }
+
+    private static int placeholderIndex(String placeholder) {
+        switch (placeholder) {
+            case "ecid":
+                return 1;
+            case "model":
+            case "identifier":
+                return 2;
+            case "board":
+                return 3;
+            case "version":
+                return 4;
+            case "build":
+                return 5;
+            case "apnonce":
+                return 6;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return the groups are the ECID in decimal, identifier, board, version, build and apnonce, or {@code null} if
+     * the file isn't named like a blob
+     */
+    static Matcher matchBlobName(String fileName) {
+        Matcher matcher = BLOB_NAME.matcher(fileName);
+        return matcher.matches() ? matcher : null;
+    }
+
+    /**
+     * @return the folder that the blob should be in, or {@code null} if the file isn't named like a blob
+     */
+    static File getFolder(File savePath, String template, String blobName) {
+        Matcher blob = matchBlobName(blobName);
+        if (blob == null) {
+            return null;
+        }
+        if (template.isEmpty()) {
+            return savePath;
+        }
+        Matcher matcher = PLACEHOLDER.matcher(template);
+        StringBuffer folder = new StringBuffer();
+        while (matcher.find()) {
+            int index = placeholderIndex(matcher.group(1));
+            String value;
+            if (index == 1) {
+                // tsschecker writes the ECID in decimal, but everywhere else in blobsaver it's hex
+                value = Long.toHexString(Long.parseUnsignedLong(blob.group(1))).toUpperCase();
+            } else if (index > 0) {
+                value = blob.group(index);
+            } else {
+                value = matcher.group();
+            }
+            matcher.appendReplacement(folder, Matcher.quoteReplacement(value));
+        }
+        matcher.appendTail(folder);
+        return new File(savePath, folder.toString());
+    }
+
+    /**
+     * @return a new, empty folder for tsschecker to save into. It's in the save path, so that moving blobs out of it
+     * stays on the same drive and can be done atomically.
+     */
+    static File createStagingFolder(String savePath) throws IOException {
+        File stagingRoot = new File(savePath, STAGING_FOLDER);
+        //noinspection ResultOfMethodCallIgnored
+        stagingRoot.mkdirs();
+        return Files.createTempDirectory(stagingRoot.toPath(), "save").toFile();
+    }
+
+    /**
+     * Moves the blobs that tsschecker saved into the staging folder to where the current template puts them, or into
+     * the {@link BlobArchive} if that's turned on, and deletes the staging folder. If a blob can't be moved, it's left
+     * in the staging folder so that it isn't lost.
+     *
+     * @return the size of the blobs
+     */
+    static long commit(File stagingFolder, String savePath) throws IOException {
+        String template = getTemplate();
+        BlobArchive archive = BlobArchive.isEnabled() ? BlobArchive.get(savePath) : null;
+        long size = 0;
+        List<File> moved = new ArrayList<>();
+        File[] files = stagingFolder.listFiles();
+        if (files == null) {
+            throw new IOException("unable to list " + stagingFolder);
+        }
+        for (File file : files) {
+            size += file.length();
+            File folder = getFolder(new File(savePath), template, file.getName());
+            if (folder == null) {
+                // not a blob, but it shouldn't be lost either
+                moved.add(move(file, new File(savePath)));
+            } else if (archive != null) {
+                archive.add(file.getName(), Files.readAllBytes(file.toPath()));
+            } else {
+                moved.add(move(file, folder));
+            }
+        }
+        if (archive != null) {
+            archive.sync();
+        }
+        deleteStagingFolder(stagingFolder);
+        try {
+            BlobManifest.get(savePath).update(moved);
+        } catch (IOException e) {
+            Log.error("unable to update blob manifest", e, "folder", savePath);
+        }
+        return size;
+    }
+
+    static void deleteStagingFolder(File stagingFolder) {
+        File[] leftovers = stagingFolder.listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                //noinspection ResultOfMethodCallIgnored
+                leftover.delete();
+            }
+        }
+        // the staging root is left, deleting it could race with another save creating its staging folder in it
+        //noinspection ResultOfMethodCallIgnored
+        stagingFolder.delete();
+    }
+
+    private static File move(File file, File folder) throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        folder.mkdirs();
+        Path target = new File(folder, file.getName()).toPath();
+        try {
+            Files.move(file.toPath(), target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(file.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return target.toFile();
+    }
+
+    /**
+     * Moves every blob in the folder and its subfolders to where the template puts it, and removes the folders that
+     * are empty afterwards. Blobs that are already in the right place and files that aren't blobs are left alone.
+     *
+     * @return the number of blobs that were moved
+     */
+    static int migrate(File savePath, String template) throws IOException {
+        String error = validateTemplate(template);
+        if (error != null) {
+            throw new IllegalArgumentException(error);
+        }
+        long start = System.nanoTime();
+        int[] moved = {0};
+        migrateFolder(savePath, savePath, template, moved);
+        Log.info("migrated blobs to new layout", "folder", savePath, "template", template, "moved", moved[0],
+                "duration", (System.nanoTime() - start) / 1_000_000);
+        return moved[0];
+    }
+
+    private static void migrateFolder(File savePath, File folder, String template, int[] moved) throws IOException {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            throw new IOException("unable to list " + folder);
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                // blobs that are still being saved aren't finished, they're moved when they are. archived blobs aren't
+                // loose files, they get a layout when they're exported
+                if (!file.getName().equals(STAGING_FOLDER) && !file.getName().equals(BlobArchive.FOLDER)) {
+                    migrateFolder(savePath, file, template, moved);
+                }
+                continue;
+            }
+            File target = getFolder(savePath, template, file.getName());
+            if (target != null && !target.getAbsoluteFile().equals(folder.getAbsoluteFile())) {
+                move(file, target);
+                moved[0]++;
+            }
+        }
+        String[] left = folder.list();
+        if (!folder.equals(savePath) && left != null && left.length == 0) {
+            //noinspection ResultOfMethodCallIgnored
+            folder.delete();
+        }
+    }
+
+    /**
+     * {@code --migrate-blobs <folder> [template]}, using the saved template if there isn't one
+     *
+     * @return the exit code
+     */
+    static int migrateFromCommandLine(String[] args) {
+        if (args.length < 2) {
+            System.err.println("usage: blobsaver --migrate-blobs <folder> [template]");
+            return 2;
+        }
+        String template = args.length > 2 ? args[2] : getTemplate();
+        try {
+            int moved = migrate(new File(args[1]), template);
+            System.out.println("moved " + moved + " blobs to " + (template.isEmpty() ? "one folder" : template));
+            return 0;
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("unable to migrate blobs: " + e.getMessage());
+            return 1;
+        }
+    }
+}
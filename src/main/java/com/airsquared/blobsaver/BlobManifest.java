@@ -0,0 +1,642 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Merkle tree of SHA-256 checksums for everything in a save path, kept in {@code <save path>/.blobsaver-manifest}
+ * so that backup and sync jobs can tell what changed without hashing every blob again. Each file's hash is the hash
+ * of its contents, and each folder's hash is the hash of its children's names and hashes, so two copies of a save
+ * path only differ under folders whose hashes differ.
+ * <p>
+ * The manifest is a text file, one line per file ({@code F <sha256> <size> <modified> <path>}) or folder
+ * ({@code D <sha256> <path>}), with {@code .} being the save path itself.
+ * <p>
+ * It's kept up to date incrementally: saving blobs updates the files that were written, and while the background is
+ * running a {@link WatchService} picks up changes made by anything else. Either way, only the changed files are
+ * hashed again, and only the folders above them are recalculated. {@link #refresh()} looks at every file, but still
+ * only hashes the ones whose size or modification time changed.
+ * <p>
+ * From the command line: {@code blobsaver --blob-manifest <save path> refresh|verify|root}
+ */
+class BlobManifest {
+
+    static final String FILE_NAME = ".blobsaver-manifest";
+    private static final String HEADER = "# blobsaver manifest v1";
+    /**
+     * Changes usually come in bursts (tsschecker writing a blob, a sync tool copying a folder), so they're collected
+     * for this long before the manifest is updated.
+     */
+    private static final long SETTLE_MILLIS = 2000;
+
+    private static final Map<String, BlobManifest> manifests = new ConcurrentHashMap<>();
+
+    private final File root;
+    private final Node tree = new Node(true);
+    /**
+     * false until the manifest has been loaded or {@link #refresh() refreshed}, so that a manifest with only the
+     * last few saves in it is never written
+     */
+    private boolean complete = false;
+
+    private static final class Node {
+        final boolean folder;
+        final TreeMap<String, Node> children;
+        byte[] hash;
+        long size;
+        long modified;
+
+        Node(boolean folder) {
+            this.folder = folder;
+            this.children = folder ? new TreeMap<>() : null;
+        }
+    }
+
+    private BlobManifest(File root) {
+        this.root = root;
+    }
+
+    /**
+     * @return the manifest for the save path, loading it if it isn't already. If there isn't one yet, it starts out
+     * empty until {@link #refresh()}.
+     */
+    static BlobManifest get(String savePath) throws IOException {
+        File root = new File(savePath).getCanonicalFile();
+        BlobManifest manifest = manifests.get(root.getPath());
+        if (manifest == null) {
+            synchronized (manifests) {
+                manifest = manifests.get(root.getPath());
+                if (manifest == null) {
+                    manifest = read(root);
+                    manifests.put(root.getPath(), manifest);
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Loads the manifest from the file, without sharing it like {@link #get(String)} does.
+     */
+    static BlobManifest read(File root) throws IOException {
+        BlobManifest manifest = new BlobManifest(root.getCanonicalFile());
+        manifest.load();
+        return manifest;
+    }
+
+    private File file() {
+        return new File(root, FILE_NAME);
+    }
+
+    private void load() throws IOException {
+        if (!file().isFile()) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file().toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                Log.warn("ignoring blob manifest from a different version", "file", file());
+                return;
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ", line.startsWith("F ") ? 5 : 3);
+                if (fields[0].equals("D") && fields.length == 3) {
+                    node(fields[2], true).hash = fromHex(fields[1]);
+                } else if (fields[0].equals("F") && fields.length == 5) {
+                    Node node = node(fields[4], false);
+                    node.hash = fromHex(fields[1]);
+                    node.size = Long.parseLong(fields[2]);
+                    node.modified = Long.parseLong(fields[3]);
+                }
+            }
+            complete = true;
+        } catch (RuntimeException e) {
+            throw new IOException("invalid blob manifest " + file(), e);
+        }
+    }
+
+    /**
+     * @return the node at the path, creating it and the folders above it if they aren't there
+     */
+    private Node node(String path, boolean folder) {
+        Node node = tree;
+        if (path.equals(".")) {
+            return node;
+        }
+        String[] names = path.split("/");
+        for (int i = 0; i < names.length; i++) {
+            boolean last = i == names.length - 1;
+            Node child = node.children.get(names[i]);
+            if (child == null || child.folder != (!last || folder)) {
+                child = new Node(!last || folder);
+                node.children.put(names[i], child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private String relativePath(File file) {
+        String path = root.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+        return path.isEmpty() ? "." : path;
+    }
+
+    /**
+     * blobsaver's own files and the blob archive (which has its own checksums) aren't included.
+     */
+    private static boolean isIncluded(String name) {
+        return !name.startsWith(".blobsaver") && !name.equals(BlobArchive.FOLDER);
+    }
+
+    /**
+     * Brings the manifest up to date with the changed files or folders, and saves it. Does nothing if there isn't a
+     * manifest yet.
+     *
+     * @return the number of files that had to be hashed
+     */
+    synchronized int update(Collection<File> changed) throws IOException {
+        if (!complete) {
+            return 0;
+        }
+        int hashed = 0;
+        Set<String> dirty = new HashSet<>();
+        for (File file : changed) {
+            File absolute = file.getAbsoluteFile();
+            if (!absolute.toPath().startsWith(root.toPath())) {
+                continue;
+            }
+            String path = relativePath(absolute);
+            if (!isIncludedPath(path)) {
+                continue;
+            }
+            hashed += sync(absolute, path, dirty);
+        }
+        if (!dirty.isEmpty()) {
+            rehashFolders(tree, ".", dirty);
+            save();
+        }
+        return hashed;
+    }
+
+    private static boolean isIncludedPath(String path) {
+        for (String name : path.split("/")) {
+            if (!name.equals(".") && !isIncluded(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of files hashed
+     */
+    private int sync(File file, String path, Set<String> dirty) throws IOException {
+        if (file.isDirectory()) {
+            int hashed = 0;
+            Node folder = node(path, true);
+            Set<String> onDisk = new HashSet<>();
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File child : files) {
+                    if (isIncluded(child.getName())) {
+                        onDisk.add(child.getName());
+                        hashed += sync(child, path.equals(".") ? child.getName() : path + "/" + child.getName(), dirty);
+                    }
+                }
+            }
+            if (folder.children.keySet().retainAll(onDisk)) {
+                markDirty(path, dirty);
+            }
+            return hashed;
+        } else if (file.isFile()) {
+            Node node = node(path, false);
+            long size = file.length();
+            long modified = file.lastModified();
+            if (node.hash != null && node.size == size && node.modified == modified) {
+                return 0;
+            }
+            node.hash = hash(file);
+            node.size = size;
+            node.modified = modified;
+            markDirty(path, dirty);
+            return 1;
+        } else {
+            remove(path);
+            markDirty(path, dirty);
+            return 0;
+        }
+    }
+
+    private void remove(String path) {
+        int slash = path.lastIndexOf('/');
+        Node parent = slash < 0 ? tree : find(path.substring(0, slash));
+        if (parent != null && parent.folder) {
+            parent.children.remove(path.substring(slash + 1));
+        }
+    }
+
+    private Node find(String path) {
+        Node node = tree;
+        if (path.equals(".")) {
+            return node;
+        }
+        for (String name : path.split("/")) {
+            node = node.folder ? node.children.get(name) : null;
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Marks the folders above the path as needing their hashes recalculated.
+     */
+    private static void markDirty(String path, Set<String> dirty) {
+        dirty.add(".");
+        String folder = path;
+        int slash;
+        while ((slash = folder.lastIndexOf('/')) > 0) {
+            folder = folder.substring(0, slash);
+            dirty.add(folder);
+        }
+        dirty.add(path);
+    }
+
+    /**
+     * Recalculates the hashes of the dirty folders, going into only those.
+     */
+    private static void rehashFolders(Node folder, String path, Set<String> dirty) {
+        for (Map.Entry<String, Node> entry : folder.children.entrySet()) {
+            String childPath = path.equals(".") ? entry.getKey() : path + "/" + entry.getKey();
+            if (entry.getValue().folder && (dirty.contains(childPath) || entry.getValue().hash == null)) {
+                rehashFolders(entry.getValue(), childPath, dirty);
+            }
+        }
+        MessageDigest digest = sha256();
+        for (Map.Entry<String, Node> entry : folder.children.entrySet()) {
+            Node child = entry.getValue();
+            digest.update((byte) (child.folder ? 'D' : 'F'));
+            digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            if (child.hash != null) {
+                digest.update(child.hash);
+            }
+        }
+        folder.hash = digest.digest();
+    }
+
+    /**
+     * Looks at every file in the save path, hashing the ones that are new or whose size or modification time changed.
+     *
+     * @return the number of files that had to be hashed
+     */
+    synchronized int refresh() throws IOException {
+        long start = System.nanoTime();
+        Set<String> dirty = new HashSet<>();
+        int hashed = sync(root, ".", dirty);
+        if (!dirty.isEmpty() || !complete) {
+            rehashFolders(tree, ".", dirty);
+            save();
+        }
+        complete = true;
+        Log.info("refreshed blob manifest", "folder", root, "hashed", hashed,
+                "duration", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return hashed;
+    }
+
+    /**
+     * Written to a temp file first, so that a crash can't leave a half written manifest.
+     */
+    private void save() throws IOException {
+        File tempFile = new File(root, FILE_NAME + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            write(writer, tree, ".");
+        }
+        Files.move(tempFile.toPath(), file().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void write(BufferedWriter writer, Node node, String path) throws IOException {
+        if (node.folder) {
+            writer.write("D " + toHex(node.hash) + " " + path);
+            writer.newLine();
+            for (Map.Entry<String, Node> entry : node.children.entrySet()) {
+                write(writer, entry.getValue(), path.equals(".") ? entry.getKey() : path + "/" + entry.getKey());
+            }
+        } else {
+            writer.write("F " + toHex(node.hash) + " " + node.size + " " + node.modified + " " + path);
+            writer.newLine();
+        }
+    }
+
+    /**
+     * @param path relative to the save path, with {@code /} between folders, or {@code .} for the whole save path
+     * @return the hash of the file or folder in hex, or {@code null} if it isn't in the manifest
+     */
+    synchronized String getHash(String path) {
+        Node node = find(path);
+        return node == null || node.hash == null ? null : toHex(node.hash);
+    }
+
+    /**
+     * Checks the save path against the manifest without changing it.
+     *
+     * @param full hash every file again, to find corruption that didn't change the size or modification time.
+     *             Otherwise only files whose size or modification time changed are reported.
+     * @return what's wrong with each file that doesn't match, by path
+     */
+    synchronized Map<String, String> verify(boolean full) {
+        Map<String, String> problems = new TreeMap<>();
+        List<String> toHash = new ArrayList<>();
+        verify(root, tree, ".", full, problems, toHash);
+        Map<String, String> hashProblems = new ConcurrentHashMap<>();
+        toHash.parallelStream().forEach(path -> {
+            try {
+                if (!toHex(hash(new File(root, path))).equals(toHex(find(path).hash))) {
+                    hashProblems.put(path, "contents changed");
+                }
+            } catch (IOException e) {
+                hashProblems.put(path, "unable to read: " + e.getMessage());
+            }
+        });
+        problems.putAll(hashProblems);
+        return problems;
+    }
+
+    private void verify(File file, Node node, String path, boolean full, Map<String, String> problems, List<String> toHash) {
+        File[] files = file.listFiles();
+        Set<String> seen = new LinkedHashSet<>();
+        if (files != null) {
+            for (File child : files) {
+                if (!isIncluded(child.getName())) {
+                    continue;
+                }
+                String childPath = path.equals(".") ? child.getName() : path + "/" + child.getName();
+                seen.add(child.getName());
+                Node childNode = node.children.get(child.getName());
+                if (childNode == null) {
+                    problems.put(childPath, "not in manifest");
+                } else if (child.isDirectory() != childNode.folder) {
+                    problems.put(childPath, childNode.folder ? "was a folder" : "was a file");
+                } else if (childNode.folder) {
+                    verify(child, childNode, childPath, full, problems, toHash);
+                } else if (child.length() != childNode.size || child.lastModified() != childNode.modified) {
+                    problems.put(childPath, "size or modification time changed");
+                } else if (full) {
+                    toHash.add(childPath);
+                }
+            }
+        }
+        for (String name : node.children.keySet()) {
+            if (!seen.contains(name)) {
+                problems.put(path.equals(".") ? name : path + "/" + name, "missing");
+            }
+        }
+    }
+
+    private static byte[] hash(File file) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[8192];
+        try (InputStream input = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        return bytes == null ? "-" : BlobValidator.toHex(bytes);
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.equals("-")) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static WatchService watchService;
+    private static Thread watcherThread;
+
+    /**
+     * Starts watching the save paths for changes, replacing whatever was being watched before. Each save path is
+     * {@link #refresh() refreshed} first, to catch what changed while nothing was watching.
+     */
+    static synchronized void watch(Collection<String> savePaths) {
+        stopWatching();
+        List<BlobManifest> watched = new ArrayList<>();
+        for (String savePath : new LinkedHashSet<>(savePaths)) {
+            if (new File(savePath).isDirectory()) {
+                try {
+                    watched.add(get(savePath));
+                } catch (IOException e) {
+                    Log.error("unable to load blob manifest", e, "folder", savePath);
+                }
+            }
+        }
+        if (watched.isEmpty()) {
+            return;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            Log.error("unable to watch save paths, blob manifests are only updated when blobs are saved", e);
+            return;
+        }
+        WatchService service = watchService;
+        watcherThread = new Thread(() -> watchLoop(service, watched), "blob manifest watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.setPriority(Thread.MIN_PRIORITY);
+        watcherThread.start();
+    }
+
+    static synchronized void stopWatching() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ignored) {
+            }
+            watchService = null;
+            watcherThread = null;
+        }
+    }
+
+    private static void watchLoop(WatchService service, List<BlobManifest> watched) {
+        // only this thread uses it, so a new watcher can't lose its keys when an old one stops
+        Map<WatchKey, File> watchedFolders = new HashMap<>();
+        try {
+            for (BlobManifest manifest : watched) {
+                register(service, watchedFolders, manifest.root);
+                manifest.refresh();
+            }
+            Map<BlobManifest, Set<File>> changes = new HashMap<>();
+            while (true) {
+                WatchKey key = changes.isEmpty() ? service.take() : service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    // nothing new for a while, so the burst is over
+                    for (Map.Entry<BlobManifest, Set<File>> entry : changes.entrySet()) {
+                        int hashed = entry.getKey().update(entry.getValue());
+                        Log.info("updated blob manifest", "folder", entry.getKey().root,
+                                "changes", entry.getValue().size(), "hashed", hashed);
+                    }
+                    changes.clear();
+                    continue;
+                }
+                File folder = watchedFolders.get(key);
+                BlobManifest manifest = manifestFor(watched, folder);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (folder == null || manifest == null) {
+                        break;
+                    }
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // too much happened to know what, so look at everything
+                        changes.computeIfAbsent(manifest, k -> new LinkedHashSet<>()).add(manifest.root);
+                        continue;
+                    }
+                    File changed = new File(folder, event.context().toString());
+                    if (!isIncluded(changed.getName())) {
+                        continue;
+                    }
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && changed.isDirectory()) {
+                        register(service, watchedFolders, changed);
+                    }
+                    changes.computeIfAbsent(manifest, k -> new LinkedHashSet<>()).add(changed);
+                }
+                if (!key.reset()) {
+                    watchedFolders.remove(key);
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException ignored) {
+            // stopWatching() was called
+        } catch (IOException | RuntimeException e) {
+            Log.error("blob manifest watcher stopped", e);
+        }
+    }
+
+    private static BlobManifest manifestFor(List<BlobManifest> watched, File folder) {
+        if (folder == null) {
+            return null;
+        }
+        BlobManifest best = null;
+        for (BlobManifest manifest : watched) {
+            // the deepest save path, in case one save path is inside another
+            if (folder.toPath().startsWith(manifest.root.toPath())
+                    && (best == null || manifest.root.getPath().length() > best.root.getPath().length())) {
+                best = manifest;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * WatchService only watches one folder, so every folder in the save path is registered.
+     */
+    private static void register(WatchService service, Map<WatchKey, File> watchedFolders, File folder) throws IOException {
+        Path path = folder.toPath();
+        WatchKey key = path.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        watchedFolders.put(key, folder);
+        File[] children = folder.listFiles(File::isDirectory);
+        if (children != null) {
+            for (File child : children) {
+                if (isIncluded(child.getName())) {
+                    register(service, watchedFolders, child);
+                }
+            }
+        }
+    }
+
+    /**
+     * {@code --blob-manifest <save path> refresh|verify [--full]|root}
+     *
+     * @return the exit code
+     */
+    static int fromCommandLine(String[] args) {
+        if (args.length < 3) {
+            System.err.println("usage: blobsaver --blob-manifest <save path> refresh|verify [--full]|root");
+            return 2;
+        }
+        try {
+            BlobManifest manifest = get(args[1]);
+            switch (args[2]) {
+                case "refresh":
+                    System.out.println("hashed " + manifest.refresh() + " files, root " + manifest.getHash("."));
+                    return 0;
+                case "verify":
+                    Map<String, String> problems = manifest.verify(args.length > 3 && args[3].equals("--full"));
+                    problems.forEach((path, problem) -> System.out.println(path + ": " + problem));
+                    System.out.println(problems.isEmpty() ? "matches the manifest" : problems.size() + " differences");
+                    return problems.isEmpty() ? 0 : 1;
+                case "root":
+                    System.out.println(manifest.getHash("."));
+                    return 0;
+                default:
+                    System.err.println("unknown command: " + args[2]);
+                    return 2;
+            }
+        } catch (IOException e) {
+            System.err.println("blob manifest failed: " + e);
+            return 1;
+        }
+    }
+}
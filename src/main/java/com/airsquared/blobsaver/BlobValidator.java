@@ -0,0 +1,542 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Matcher;
+
+/**
+ * Checks that a saved {@code .shsh2} file is actually a usable blob, instead of trusting that tsschecker said
+ * "Saved shsh blobs". The plist has to have an {@code ApImg4Ticket}, which is an IM4M (DER encoded), and in its
+ * manifest properties:
+ * <ul>
+ * <li>{@code ECID} has to be the device's ECID</li>
+ * <li>{@code BNCH}, the nonce the ticket was signed for, has to be what the {@code generator} in the plist hashes to
+ * (SHA-1 for 20 byte nonces, the first 32 bytes of SHA-384 for newer devices), or the apnonce if one was given</li>
+ * </ul>
+ * Blobs for 32-bit devices only have an {@code APTicket}, which isn't checked.
+ * <p>
+ * Blobs are checked right after they're saved, and {@link #scan(File)} checks a whole folder (and the folders in it)
+ * in parallel. A scan doesn't know which apnonce a blob was saved with, so a generator that doesn't match is only
+ * accepted if the nonce is one of the presets' apnonces, and is a warning otherwise.
+ */
+class BlobValidator {
+
+    private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+    static {
+        // plists have a DOCTYPE, but nothing in it is needed
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private BlobValidator() {
+    }
+
+    /**
+     * @param ecid    the ECID that the blob should be for
+     * @param apnonce the apnonce that was given to tsschecker in hex, or {@code null} if the nonce should come from the
+     *                generator in the blob
+     * @return what's wrong with the blob, or {@code null} if it's valid
+     */
+    static String validate(byte[] blob, long ecid, String apnonce) {
+        return validate(blob, ecid, apnonce, null, Collections.emptySet(), null);
+    }
+
+    /**
+     * @param nameNonce      the nonce from the file name, which has to be the one in the ticket, or {@code null}
+     * @param knownApnonces  apnonces (lowercase hex) that blobs were saved with, so a generator that doesn't give the
+     *                       ticket's nonce is expected for them
+     * @param warnings       where a generator that doesn't match is added when there's a name nonce but the nonce
+     *                       isn't a known apnonce, since it might have been saved with an apnonce that isn't in a
+     *                       preset anymore
+     */
+    private static String validate(byte[] blob, long ecid, String apnonce, String nameNonce,
+                                   Set<String> knownApnonces, List<String> warnings) {
+        Map<String, Object> plist;
+        try {
+            plist = parsePlist(blob);
+        } catch (XMLStreamException | IllegalArgumentException e) {
+            return "not a valid plist: " + e.getMessage();
+        }
+        Object ticket = plist.get("ApImg4Ticket");
+        if (!(ticket instanceof byte[])) {
+            return plist.get("APTicket") instanceof byte[] ? null : "no ApImg4Ticket";
+        }
+        Map<String, Der> properties;
+        try {
+            properties = manifestProperties((byte[]) ticket);
+        } catch (IllegalArgumentException e) {
+            return "ApImg4Ticket isn't a valid IM4M: " + e.getMessage();
+        }
+
+        Der ticketEcid = properties.get("ECID");
+        if (ticketEcid == null) {
+            return "ticket has no ECID";
+        } else if (ticketEcid.toLong() != ecid) {
+            return "ticket is for ECID " + Long.toHexString(ticketEcid.toLong()).toUpperCase()
+                    + ", not " + Long.toHexString(ecid).toUpperCase();
+        }
+
+        Der nonceProperty = properties.get("BNCH");
+        if (nonceProperty == null) {
+            return "ticket has no nonce";
+        }
+        byte[] nonce = nonceProperty.content();
+        if (nameNonce != null && !toHex(nonce).equalsIgnoreCase(nameNonce)) {
+            return "named for nonce " + nameNonce + " but the ticket is for " + toHex(nonce);
+        }
+        if (apnonce != null) {
+            if (!toHex(nonce).equalsIgnoreCase(apnonce.trim())) {
+                return "ticket is for nonce " + toHex(nonce) + ", not " + apnonce;
+            }
+            return null;
+        }
+        Object generator = plist.get("generator");
+        if (!(generator instanceof String)) {
+            return "no generator";
+        }
+        byte[] expected;
+        try {
+            expected = nonceFromGenerator((String) generator, nonce.length);
+        } catch (IllegalArgumentException e) {
+            return "invalid generator " + generator + ": " + e.getMessage();
+        }
+        if (Arrays.equals(expected, nonce) || knownApnonces.contains(toHex(nonce))) {
+            return null;
+        }
+        String mismatch = "generator " + generator + " doesn't match the nonce in the ticket, " + toHex(nonce);
+        if (nameNonce == null || warnings == null) {
+            return mismatch;
+        }
+        // tsschecker names blobs after the nonce it was given, so this can't tell a blob saved with an apnonce from
+        // one with the wrong generator in it
+        warnings.add(mismatch + ", which isn't the apnonce of any preset");
+        return null;
+    }
+
+    /**
+     * @return what's wrong with the blob, or {@code null} if it's valid. The expected ECID and nonce come from the
+     * file name.
+     */
+    private static String validate(File file, Set<String> knownApnonces, List<String> warnings) {
+        Matcher name = BlobLayout.matchBlobName(file.getName());
+        if (name == null) {
+            return "not named like a blob";
+        }
+        byte[] blob;
+        try {
+            blob = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            return "unable to read: " + e;
+        }
+        return validate(blob, Long.parseUnsignedLong(name.group(1)), null, name.group(6), knownApnonces, warnings);
+    }
+
+    /**
+     * Checks the blobs that tsschecker just saved, before they're moved out of the staging folder.
+     *
+     * @param ecid    the preset's ECID in hex
+     * @param apnonce the preset's apnonce, or empty if it doesn't have one
+     * @return what's wrong with the first blob that isn't valid, or {@code null} if they all are
+     */
+    static String validateSaved(File stagingFolder, String ecid, String apnonce) {
+        File[] blobs = stagingFolder.listFiles((dir, name) -> name.endsWith(".shsh2"));
+        if (blobs == null || blobs.length == 0) {
+            return "no blobs were saved";
+        }
+        for (File file : blobs) {
+            byte[] blob;
+            try {
+                blob = Files.readAllBytes(file.toPath());
+            } catch (IOException e) {
+                return "unable to read " + file.getName() + ": " + e;
+            }
+            String problem = validate(blob, Shared.parseEcid(ecid), "".equals(apnonce) ? null : apnonce);
+            if (problem != null) {
+                return file.getName() + ": " + problem;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * apnonce = SHA-1 of the generator (as 8 little endian bytes), or the first 32 bytes of SHA-384 on devices that
+     * have 32 byte nonces (A12 and newer)
+     */
+    static byte[] nonceFromGenerator(String generator, int nonceLength) {
+        String hex = generator.trim();
+        if (hex.startsWith("0x") || hex.startsWith("0X")) {
+            hex = hex.substring(2);
+        }
+        long value = Long.parseUnsignedLong(hex, 16);
+        byte[] bytes = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (value >>> (8 * i));
+        }
+        try {
+            if (nonceLength == 20) {
+                return MessageDigest.getInstance("SHA-1").digest(bytes);
+            } else if (nonceLength == 32) {
+                return Arrays.copyOf(MessageDigest.getInstance("SHA-384").digest(bytes), 32);
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        throw new IllegalArgumentException("nonces are 20 or 32 bytes, not " + nonceLength);
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Only the top level dict is needed, so nested dicts and arrays are skipped. {@code <data>} is returned as a
+     * {@code byte[]}, everything else as the text in it.
+     */
+    private static Map<String, Object> parsePlist(byte[] blob) throws XMLStreamException {
+        Map<String, Object> values = new HashMap<>();
+        XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(new ByteArrayInputStream(blob));
+        try {
+            int depth = 0;
+            String key = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                } else if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    // <plist><dict> is depth 2, so its keys and values are depth 3
+                    if (depth != 3) {
+                        continue;
+                    }
+                    String element = reader.getLocalName();
+                    if (element.equals("key")) {
+                        key = reader.getElementText();
+                        depth--;
+                    } else if (key != null) {
+                        if (element.equals("dict") || element.equals("array")) {
+                            values.put(key, element);
+                        } else {
+                            String text = element.equals("true") || element.equals("false") ? element : reader.getElementText();
+                            depth -= element.equals("true") || element.equals("false") ? 0 : 1;
+                            values.put(key, element.equals("data") ? Base64.getMimeDecoder().decode(text) : text.trim());
+                        }
+                        key = null;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (values.isEmpty()) {
+            throw new IllegalArgumentException("empty");
+        }
+        return values;
+    }
+
+    /**
+     * IM4M ::= SEQUENCE { "IM4M", version, SET { MANB }, signature, certificates }, where MANB has the MANP, and
+     * MANP has a property for each of ECID, BNCH, CHIP, and so on. Each of those is a private tag (the four letter
+     * name) around a SEQUENCE { IA5String name, value }.
+     */
+    private static Map<String, Der> manifestProperties(byte[] ticket) {
+        Der im4m = Der.read(ticket, 0);
+        List<Der> fields = im4m.children();
+        if (fields.size() < 3 || !"IM4M".equals(fields.get(0).string())) {
+            throw new IllegalArgumentException("not an IM4M");
+        }
+        Der manb = properties(fields.get(2)).get("MANB");
+        if (manb == null) {
+            throw new IllegalArgumentException("no MANB");
+        }
+        Der manp = properties(manb).get("MANP");
+        if (manp == null) {
+            throw new IllegalArgumentException("no MANP");
+        }
+        return properties(manp);
+    }
+
+    private static Map<String, Der> properties(Der set) {
+        Map<String, Der> properties = new HashMap<>();
+        for (Der property : set.children()) {
+            List<Der> sequence = property.children();
+            if (sequence.size() == 1) {
+                List<Der> nameAndValue = sequence.get(0).children();
+                if (nameAndValue.size() >= 2) {
+                    properties.put(nameAndValue.get(0).string(), nameAndValue.get(1));
+                }
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Just enough DER to find things in an IM4M.
+     */
+    private static final class Der {
+        private final byte[] bytes;
+        private final boolean constructed;
+        private final int contentStart;
+        private final int contentEnd;
+
+        private Der(byte[] bytes, boolean constructed, int contentStart, int contentEnd) {
+            this.bytes = bytes;
+            this.constructed = constructed;
+            this.contentStart = contentStart;
+            this.contentEnd = contentEnd;
+        }
+
+        static Der read(byte[] bytes, int offset) {
+            return read(bytes, offset, bytes.length);
+        }
+
+        private static Der read(byte[] bytes, int offset, int limit) {
+            int position = offset;
+            if (position >= limit) {
+                throw new IllegalArgumentException("truncated");
+            }
+            int identifier = bytes[position++] & 0xff;
+            if ((identifier & 0x1f) == 0x1f) {
+                // high tag number, base 128 with the top bit set on all but the last byte
+                while (true) {
+                    if (position >= limit) {
+                        throw new IllegalArgumentException("truncated tag");
+                    }
+                    if ((bytes[position++] & 0x80) == 0) {
+                        break;
+                    }
+                }
+            }
+            if (position >= limit) {
+                throw new IllegalArgumentException("truncated length");
+            }
+            int length = bytes[position++] & 0xff;
+            if (length > 0x80) {
+                int lengthBytes = length & 0x7f;
+                if (lengthBytes > 4 || position + lengthBytes > limit) {
+                    throw new IllegalArgumentException("bad length");
+                }
+                length = 0;
+                for (int i = 0; i < lengthBytes; i++) {
+                    length = (length << 8) | (bytes[position++] & 0xff);
+                }
+            } else if (length == 0x80) {
+                throw new IllegalArgumentException("indefinite length isn't DER");
+            }
+            if (length < 0 || position + length > limit) {
+                throw new IllegalArgumentException("length past the end");
+            }
+            return new Der(bytes, (identifier & 0x20) != 0, position, position + length);
+        }
+
+        List<Der> children() {
+            List<Der> children = new ArrayList<>();
+            if (!constructed) {
+                return children;
+            }
+            int position = contentStart;
+            while (position < contentEnd) {
+                Der child = read(bytes, position, contentEnd);
+                children.add(child);
+                position = child.contentEnd;
+            }
+            return children;
+        }
+
+        byte[] content() {
+            return Arrays.copyOfRange(bytes, contentStart, contentEnd);
+        }
+
+        String string() {
+            return new String(bytes, contentStart, contentEnd - contentStart, StandardCharsets.US_ASCII);
+        }
+
+        long toLong() {
+            if (contentEnd - contentStart > 9) {
+                throw new IllegalArgumentException("integer too big");
+            }
+            long value = 0;
+            for (int i = contentStart; i < contentEnd; i++) {
+                value = (value << 8) | (bytes[i] & 0xff);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Blobs whose generator doesn't give the nonce in the ticket are fine if that nonce is one of the presets'
+     * apnonces, otherwise they're warnings.
+     *
+     * @return what's wrong with each blob that isn't valid, sorted by path, and how many were checked
+     */
+    static ScanResult scan(File folder) {
+        Set<String> apnonces = new HashSet<>();
+        for (int i = 1; i < 11; i++) {
+            for (String apnonce : Preset.load(i).apnonce.split("[,\\s]+")) {
+                if (!apnonce.trim().isEmpty()) {
+                    apnonces.add(ApnonceEngine.normalizeApnonce(apnonce));
+                }
+            }
+        }
+        return scan(folder, apnonces);
+    }
+
+    /**
+     * @param knownApnonces apnonces that blobs were saved with, in lowercase hex
+     */
+    static ScanResult scan(File folder, Set<String> knownApnonces) {
+        long start = System.nanoTime();
+        ScanResult result = ForkJoinPool.commonPool().invoke(new ScanTask(folder, knownApnonces));
+        Log.info("validated blobs", "folder", folder, "blobs", result.checked, "invalid", result.problems.size(),
+                "warnings", result.warnings.size(), "duration", (System.nanoTime() - start) / 1_000_000);
+        return result;
+    }
+
+    static final class ScanResult {
+        int checked;
+        final Map<File, String> problems = new TreeMap<>();
+        /**
+         * Blobs that might be fine, but that can't be told apart from invalid ones
+         */
+        final Map<File, String> warnings = new TreeMap<>();
+
+        private void add(ScanResult other) {
+            checked += other.checked;
+            problems.putAll(other.problems);
+            warnings.putAll(other.warnings);
+        }
+    }
+
+    /**
+     * A task for each folder, which forks one for each folder in it and splits its blobs into chunks of
+     * {@link #CHUNK} so that a folder with thousands of blobs is still spread across threads.
+     */
+    private static final class ScanTask extends RecursiveTask<ScanResult> {
+        private static final int CHUNK = 64;
+
+        private final File folder;
+        private final List<File> blobs;
+        private final Set<String> knownApnonces;
+
+        ScanTask(File folder, Set<String> knownApnonces) {
+            this.folder = folder;
+            this.blobs = null;
+            this.knownApnonces = knownApnonces;
+        }
+
+        private ScanTask(List<File> blobs, Set<String> knownApnonces) {
+            this.folder = null;
+            this.blobs = blobs;
+            this.knownApnonces = knownApnonces;
+        }
+
+        @Override
+        protected ScanResult compute() {
+            ScanResult result = new ScanResult();
+            if (blobs != null) {
+                List<String> warnings = new ArrayList<>(1);
+                for (File blob : blobs) {
+                    String problem = validate(blob, knownApnonces, warnings);
+                    if (problem != null) {
+                        result.problems.put(blob, problem);
+                    } else if (!warnings.isEmpty()) {
+                        result.warnings.put(blob, warnings.get(0));
+                    }
+                    warnings.clear();
+                    result.checked++;
+                }
+                return result;
+            }
+            File[] files = folder.listFiles();
+            if (files == null) {
+                result.problems.put(folder, "unable to list folder");
+                return result;
+            }
+            List<ScanTask> subtasks = new ArrayList<>();
+            List<File> chunk = new ArrayList<>();
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    // blobs still being saved aren't finished, and archived blobs aren't files
+                    if (!file.getName().equals(BlobLayout.STAGING_FOLDER) && !file.getName().equals(BlobArchive.FOLDER)) {
+                        subtasks.add(new ScanTask(file, knownApnonces));
+                    }
+                } else if (file.getName().toLowerCase(Locale.ROOT).endsWith(".shsh2")) {
+                    chunk.add(file);
+                    if (chunk.size() == CHUNK) {
+                        subtasks.add(new ScanTask(chunk, knownApnonces));
+                        chunk = new ArrayList<>();
+                    }
+                }
+            }
+            if (!chunk.isEmpty()) {
+                subtasks.add(new ScanTask(chunk, knownApnonces));
+            }
+            for (ScanTask task : invokeAll(subtasks)) {
+                result.add(task.join());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * {@code --validate-blobs <folder>}
+     *
+     * @return the exit code: 0 if every blob is valid, 1 if not
+     */
+    static int fromCommandLine(String[] args) {
+        if (args.length < 2) {
+            System.err.println("usage: blobsaver --validate-blobs <folder>");
+            return 2;
+        }
+        ScanResult result = scan(new File(args[1]));
+        result.problems.forEach((file, problem) -> System.out.println(file + ": " + problem));
+        result.warnings.forEach((file, warning) -> System.out.println(file + ": warning: " + warning));
+        System.out.println(result.checked + " blobs checked, " + result.problems.size() + " invalid, "
+                + result.warnings.size() + " warnings");
+        return result.problems.isEmpty() ? 0 : 1;
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small HTTP/JSON API for controlling the background from scripts, enabled with
+ * {@code -Dblobsaver.controlPort=<port>}. It only listens on localhost, and every request needs the header
+ * {@code Authorization: Bearer <token>}, where the token is in {@code ~/.blobsaver_bin/control-token}. A new
+ * token is made every time the background starts.
+ * <ul>
+ * <li>{@code GET /status}: whether it's paused, the queue depth, and the presets with their last results and when
+ * they're next due</li>
+ * <li>{@code POST /presets/<number>/run}: saves the preset now, without waiting for the next sweep</li>
+ * <li>{@code POST /pause} and {@code POST /resume}</li>
+ * <li>{@code GET /history?days=<days>}: from the {@link SaveHistory}, the last successful save for each device, and
+ * the number of attempts and tsschecker times over the last 7 days, or however many are given</li>
+ * </ul>
+ * For example: {@code curl -H "Authorization: Bearer $(cat ~/.blobsaver_bin/control-token)" localhost:<port>/status}
+ */
+class ControlServer {
+
+    private static HttpServer httpServer;
+    private static String token;
+
+    static synchronized void startIfEnabled() {
+        Integer port = Integer.getInteger("blobsaver.controlPort");
+        if (port == null || httpServer != null) {
+            return;
+        }
+        try {
+            token = createToken();
+            // only bind to localhost, this shouldn't be reachable from other machines
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException e) {
+            Log.error("unable to start control server", e, "port", port);
+            return;
+        }
+        httpServer.createContext("/", ControlServer::handle);
+        httpServer.setExecutor(null); // handle requests on the server's own thread
+        httpServer.start();
+        Log.info("serving background control API on http://localhost:" + port);
+    }
+
+    static synchronized void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+    }
+
+    private static String createToken() throws IOException {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        File file = new File(Shared.getExecutablesFolder(), "control-token");
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+        // only the user should be able to read it, so it's made again instead of keeping an old file's permissions,
+        // and is never readable by anyone else, not even before the token is written
+        Path path = file.toPath();
+        Files.deleteIfExists(path);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(path);
+            if (!(file.setReadable(false, false) & file.setReadable(true, true)
+                    & file.setWritable(false, false) & file.setWritable(true, true))) {
+                Log.warn("unable to make the control token readable only by the user", "file", file);
+            }
+        }
+        Files.write(path, hex.toString().getBytes(StandardCharsets.US_ASCII));
+        return hex.toString();
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!isAuthorized(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                respond(exchange, 401, error("missing or wrong token"));
+                return;
+            }
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/");
+            if (path.length == 1 && path[0].equals("status")) {
+                requireMethod(method, "GET");
+                respond(exchange, 200, status());
+            } else if (path.length == 1 && (path[0].equals("pause") || path[0].equals("resume"))) {
+                requireMethod(method, "POST");
+                if (path[0].equals("pause")) {
+                    Background.pause();
+                } else {
+                    Background.resume();
+                }
+                respond(exchange, 200, new JSONObject().put("paused", Background.isPaused()));
+            } else if (path.length == 3 && path[0].equals("presets") && path[2].equals("run")) {
+                requireMethod(method, "POST");
+                int preset;
+                try {
+                    preset = Integer.parseInt(path[1]);
+                } catch (NumberFormatException e) {
+                    respond(exchange, 400, error("not a preset number: " + path[1]));
+                    return;
+                }
+                if (Background.runPresetNow(preset)) {
+                    respond(exchange, 202, new JSONObject().put("queued", preset));
+                } else {
+                    respond(exchange, 404, error("preset " + preset + " isn't saved in the background"));
+                }
+            } else if (path.length == 1 && path[0].equals("history")) {
+                requireMethod(method, "GET");
+                int days;
+                try {
+                    days = Integer.parseInt(queryParameter(exchange, "days", "7"));
+                } catch (NumberFormatException e) {
+                    respond(exchange, 400, error("days must be a number"));
+                    return;
+                }
+                respond(exchange, 200, history(days));
+            } else {
+                respond(exchange, 404, error("unknown endpoint"));
+            }
+        } catch (WrongMethodException e) {
+            exchange.getResponseHeaders().set("Allow", e.getMessage());
+            respond(exchange, 405, error("use " + e.getMessage()));
+        } catch (IOException | RuntimeException e) {
+            // history() can't read the save history, for example
+            Log.error("control API request failed", e, "uri", exchange.getRequestURI());
+            respond(exchange, 500, error(e.toString()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static boolean isAuthorized(String header) {
+        String expected = "Bearer " + token;
+        // constant time, so the token can't be guessed a character at a time
+        return header != null && MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8),
+                header.trim().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static JSONObject status() {
+        JSONArray presets = new JSONArray();
+        for (int number : Background.getPresetsToSave()) {
+            long nextDue = Background.getNextDue(number);
+            JSONObject preset = new JSONObject()
+                    .put("number", number)
+                    .put("name", Main.appPrefs.get("Name Preset" + number, ""))
+                    .put("running", Background.isRunning(number))
+                    .put("nextDue", Background.isPaused() || nextDue == 0 ? JSONObject.NULL : nextDue);
+            Background.PresetStatus status = Background.getPresetStatus(number);
+            if (status != null) {
+                JSONArray results = new JSONArray();
+                for (SaveResult result : status.results) {
+                    results.put(new JSONObject()
+                            .put("version", result.version == null ? JSONObject.NULL : result.version)
+                            .put("result", result.result.toString())
+                            .put("durationMillis", result.durationMillis)
+                            .put("staleMetadata", result.isBasedOnStaleMetadata()));
+                }
+                preset.put("lastFinished", status.finishedAt).put("lastResults", results);
+            } else {
+                preset.put("lastFinished", JSONObject.NULL).put("lastResults", new JSONArray());
+            }
+            presets.put(preset);
+        }
+        return new JSONObject()
+                .put("inBackground", Background.inBackground)
+                .put("paused", Background.isPaused())
+                .put("queueDepth", Metrics.queueDepth.get())
+                .put("inFlightJobs", Metrics.inFlight.get())
+                .put("queuedJobs", queuedJobs())
+                .put("presets", presets);
+    }
+
+    private static JSONObject queuedJobs() {
+        JSONObject queued = new JSONObject();
+        for (JobScheduler.Lane lane : JobScheduler.Lane.values()) {
+            queued.put(lane.toString().toLowerCase(Locale.ROOT), JobScheduler.queued(lane));
+        }
+        return queued;
+    }
+
+    private static JSONObject history(int days) throws IOException {
+        SaveHistory history = SaveHistory.get();
+        JSONObject lastSuccess = new JSONObject();
+        for (Map.Entry<String, SaveHistory.Attempt> entry : history.getLastSuccessPerDevice().entrySet()) {
+            SaveHistory.Attempt attempt = entry.getValue();
+            lastSuccess.put(entry.getKey(), new JSONObject()
+                    .put("time", attempt.timestamp)
+                    .put("preset", attempt.preset)
+                    .put("identifier", attempt.identifier == null ? JSONObject.NULL : attempt.identifier)
+                    .put("version", attempt.version == null ? JSONObject.NULL : attempt.version)
+                    .put("bytesWritten", attempt.bytesWritten));
+        }
+        long to = System.currentTimeMillis();
+        long from = to - TimeUnit.DAYS.toMillis(days);
+        long[] counts = history.getCounts(from, to);
+        JSONObject tssMillis = new JSONObject();
+        for (String percentile : new String[]{"p50", "p95", "p99"}) {
+            long millis = history.getTssLatencyPercentile(Integer.parseInt(percentile.substring(1)) / 100.0, from, to);
+            tssMillis.put(percentile, millis < 0 ? JSONObject.NULL : millis);
+        }
+        return new JSONObject()
+                .put("attempts", history.size())
+                .put("lastSuccess", lastSuccess)
+                .put("days", days)
+                .put("recent", new JSONObject()
+                        .put("attempts", counts[0])
+                        .put("saved", counts[1])
+                        .put("failed", counts[2])
+                        .put("tssMillis", tssMillis));
+    }
+
+    /**
+     * @return the value of the query parameter, or {@code defaultValue} if it's not there
+     */
+    private static String queryParameter(HttpExchange exchange, String name, String defaultValue) {
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith(name + "=")) {
+                    return parameter.substring(name.length() + 1);
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    private static JSONObject error(String message) {
+        return new JSONObject().put("error", message);
+    }
+
+    private static void respond(HttpExchange exchange, int status, JSONObject body) throws IOException {
+        byte[] response = (body.toString(2) + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    private static void requireMethod(String method, String expected) throws WrongMethodException {
+        if (!expected.equals(method)) {
+            throw new WrongMethodException(expected);
+        }
+    }
+
+    private static class WrongMethodException extends Exception {
+        WrongMethodException(String allowed) {
+            super(allowed);
+        }
+    }
+}
@@ -23,6 +23,7 @@ import com.sun.javafx.scene.control.skin.LabeledText;
 import de.codecentric.centerdevice.MenuToolkit;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
+import javafx.concurrent.Worker;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.fxml.FXML;
@@ -43,6 +44,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 
@@ -55,6 +58,7 @@ public class Controller {
 
 
     @FXML private MenuBar menuBar;
+    @FXML private CheckMenuItem packBlobsMenuItem;
 
     @FXML private ChoiceBox deviceTypeChoiceBox;
     @FXML private ChoiceBox deviceModelChoiceBox;
@@ -62,6 +66,7 @@ public class Controller {
     @FXML TextField ecidField;
     @FXML TextField boardConfigField;
     @FXML TextField apnonceField;
+    @FXML TextField generatorField;
     @FXML TextField versionField;
     @FXML TextField identifierField;
     @FXML TextField pathField;
@@ -96,6 +101,10 @@ public class Controller {
     @FXML private VBox presetVBox;
 
     @FXML private Button goButton;
+    @FXML private Label progressLabel;
+    @FXML private ProgressBar progressBar;
+
+    private TSSChecker tssChecker = null;
 
     boolean getBoardConfig = false;
     private boolean editingPresets = false;
@@ -113,13 +122,13 @@ public class Controller {
                 btn.setText("Load " + appPrefs.get("Name Preset" + i, ""));
             }
         }
-        checkForUpdates(false);
     }
 
     @SuppressWarnings("unchecked")
     @FXML
     public void initialize() {
         INSTANCE = this;
+        packBlobsMenuItem.setSelected(BlobArchive.isEnabled());
         // create effects
         borderGlow.setOffsetY(0f);
         borderGlow.setOffsetX(0f);
@@ -138,19 +147,19 @@ public class Controller {
             deviceTypeChoiceBox.setEffect(null);
             switch ((String) (newValue == null ? "" : newValue)) {
                 case "iPhone":
-                    deviceModelChoiceBox.setItems(Devices.getiPhones());
+                    deviceModelChoiceBox.setItems(Devices.getDeviceNames("iPhone"));
                     versionLabel.setText("iOS Version");
                     break;
                 case "iPod":
-                    deviceModelChoiceBox.setItems(Devices.getiPods());
+                    deviceModelChoiceBox.setItems(Devices.getDeviceNames("iPod"));
                     versionLabel.setText("iOS Version");
                     break;
                 case "iPad":
-                    deviceModelChoiceBox.setItems(Devices.getiPads());
+                    deviceModelChoiceBox.setItems(Devices.getDeviceNames("iPad"));
                     versionLabel.setText("iOS Version");
                     break;
                 case "AppleTV":
-                    deviceModelChoiceBox.setItems(Devices.getAppleTVs());
+                    deviceModelChoiceBox.setItems(Devices.getDeviceNames("AppleTV"));
                     versionLabel.setText("tvOS Version");
                     break;
                 default:
@@ -165,10 +174,10 @@ public class Controller {
         });
         identifierField.textProperty().addListener((x, y, newValue) -> {
             identifierField.setEffect(null);
-            requireBoardConfig(Devices.getDeviceModelIdentifiersMap().get(newValue));
+            requireBoardConfig(Devices.identifierToName(newValue));
         });
 
-        addListenerToSetNullEffect(ecidField, versionField, boardConfigField, apnonceField, pathField, buildIDField, ipswField);
+        addListenerToSetNullEffect(ecidField, versionField, boardConfigField, apnonceField, generatorField, pathField, buildIDField, ipswField);
 
         presetButtons = new ArrayList<>(Arrays.asList(preset1Button, preset2Button, preset3Button, preset4Button, preset5Button, preset6Button, preset7Button, preset8Button, preset9Button, preset10Button));
         presetButtons.forEach(btn -> btn.setOnAction(this::presetButtonHandler));
@@ -219,11 +228,12 @@ public class Controller {
     public void sendRedditPM() { Shared.sendRedditPM(); }
 
     private void requireBoardConfig(String newValue) {
-        if (!"".equals(newValue) && Devices.getRequiresBoardConfigMap().containsKey(newValue)) {
+        Device device = DeviceCatalog.get().byName(newValue);
+        if (device != null && device.requiresBoardConfig) {
             boardConfigField.setEffect(borderGlow);
             getBoardConfig = true;
             boardConfigField.setDisable(false);
-            boardConfigField.setText(Devices.getRequiresBoardConfigMap().get(newValue));
+            boardConfigField.setText(device.getDefaultBoardConfig());
         } else {
             boardConfigField.setEffect(null);
             getBoardConfig = false;
@@ -349,6 +359,7 @@ public class Controller {
                 apnonceCheckBox.fire();
             }
         }
+        generatorField.setText(prefs.get("Generators", ""));
     }
 
     private void presetButtonHandler(ActionEvent evt) {
@@ -436,6 +447,7 @@ public class Controller {
         if (apnonceCheckBox.isSelected()) {
             presetPrefs.put("Apnonce", apnonceField.getText());
         }
+        presetPrefs.put("Generators", generatorField.getText());
     }
 
     public void savePresetHandler() {
@@ -463,6 +475,131 @@ public class Controller {
 
     public void checkBlobs() { openURL("https://tsssaver.1conan.com/check.php"); }
 
+    public void apnoncesFromGeneratorsHandler() {
+        String deviceModel = (String) deviceModelChoiceBox.getValue();
+        if (identifierCheckBox.isSelected() ? "".equals(identifierField.getText()) : deviceModel == null || "".equals(deviceModel)) {
+            newUnreportableError("Choose a device first.");
+            return;
+        }
+        String identifier = identifierCheckBox.isSelected() ? identifierField.getText() : textToIdentifier(deviceModel);
+        if (identifier == null) { // the error alert should already be shown
+            return;
+        }
+        String generators = generatorField.getText().trim();
+        List<String> generatorList = Arrays.asList(
+                ("".equals(generators) ? Preset.NonceSet.DEFAULT_GENERATOR : generators).split("[,\\s]+"));
+        JobScheduler.submit(JobScheduler.Lane.INTERACTIVE, "compute apnonces", () -> {
+            Map<String, String> apnonces;
+            try {
+                apnonces = ApnonceEngine.apnonces(generatorList, ApnonceEngine.nonceLength(identifier));
+            } catch (IllegalArgumentException e) {
+                Platform.runLater(() -> {
+                    generatorField.setEffect(errorBorder);
+                    newUnreportableError("Unable to get the apnonces: " + e.getMessage());
+                });
+                return;
+            }
+            Platform.runLater(() -> {
+                if (!apnonceCheckBox.isSelected()) {
+                    apnonceCheckBox.fire();
+                }
+                apnonceField.setText(String.join(", ", apnonces.values()));
+            });
+        });
+    }
+
+    public void validateBlobsHandler() {
+        String path = pathField.getText();
+        if ("".equals(path) || !new File(path).isDirectory()) {
+            newUnreportableError("Choose the folder with the blobs in the save path field first.");
+            return;
+        }
+        JobScheduler.submit(JobScheduler.Lane.INTERACTIVE, "validate blobs", () -> {
+            BlobValidator.ScanResult result = BlobValidator.scan(new File(path));
+            StringBuilder message = new StringBuilder(result.checked + " blobs checked, " + result.problems.size()
+                    + " invalid, " + result.warnings.size() + " warnings");
+            result.problems.forEach((file, problem) -> message.append("\n\n").append(file).append(":\n").append(problem));
+            result.warnings.forEach((file, warning) -> message.append("\n\n").append(file).append(":\nwarning: ").append(warning));
+            boolean allValid = result.problems.isEmpty() && result.warnings.isEmpty();
+            Platform.runLater(() -> {
+                Alert alert = new Alert(allValid ? Alert.AlertType.INFORMATION : Alert.AlertType.WARNING,
+                        message.toString(), ButtonType.OK);
+                alert.setHeaderText(allValid ? "All blobs are valid"
+                        : result.problems.isEmpty() ? "Some blobs might not be valid" : "Some blobs aren't valid");
+                resizeAlertButtons(alert);
+                alert.show();
+            });
+        });
+    }
+
+    public void packBlobsHandler() {
+        boolean enabled = packBlobsMenuItem.isSelected();
+        appPrefs.putBoolean(BlobArchive.ENABLED_PREF, enabled);
+        log("pack blobs into archive: " + enabled);
+        String path = pathField.getText();
+        if ("".equals(path) || !new File(path).isDirectory()) {
+            return;
+        }
+        Alert alert = new Alert(Alert.AlertType.CONFIRMATION, enabled
+                ? "Pack the blobs that are already in\n" + path + "\ninto the archive?"
+                : "Export the blobs in the archive in\n" + path + "\nback to separate files?", ButtonType.YES, ButtonType.NO);
+        alert.showAndWait();
+        if (ButtonType.YES.equals(alert.getResult())) {
+            JobScheduler.submit(JobScheduler.Lane.INTERACTIVE, enabled ? "pack blobs" : "export blobs", () -> {
+                try {
+                    BlobArchive archive = BlobArchive.get(path);
+                    int count = enabled ? archive.pack(new File(path)) : archive.export(new File(path), BlobLayout.getTemplate());
+                    Platform.runLater(() -> new Alert(Alert.AlertType.INFORMATION,
+                            (enabled ? "Packed " : "Exported ") + count + " blobs.", ButtonType.OK).show());
+                } catch (IOException | RuntimeException e) {
+                    Log.error("unable to " + (enabled ? "pack" : "export") + " blobs", e, "folder", path);
+                    Platform.runLater(() -> newReportableError("Unable to " + (enabled ? "pack" : "export") + " the blobs.", e.toString()));
+                }
+            });
+        }
+    }
+
+    public void blobLayoutHandler() {
+        TextInputDialog dialog = new TextInputDialog(BlobLayout.getTemplate());
+        dialog.setTitle("Blob Folder Layout");
+        dialog.setHeaderText("Blob Folder Layout");
+        dialog.setContentText("Folders to sort blobs into, inside the save path. Leave empty to save them all in one folder.\n"
+                + "For example: {model}/{ecid}/{build}\n\n"
+                + "Can use {ecid}, {model}, {board}, {version}, {build} and {apnonce}.\n\nTemplate:");
+        dialog.showAndWait();
+        String template = dialog.getResult();
+        if (template == null) {
+            return;
+        }
+        template = template.trim();
+        String error = BlobLayout.validateTemplate(template);
+        if (error != null) {
+            newUnreportableError("\"" + template + "\" can't be used: " + error);
+            return;
+        }
+        appPrefs.put(BlobLayout.TEMPLATE_PREF, template);
+        log("blob path template: " + template);
+        String path = pathField.getText();
+        if ("".equals(path) || !new File(path).isDirectory()) {
+            return;
+        }
+        Alert alert = new Alert(Alert.AlertType.CONFIRMATION,
+                "Move the blobs that are already in\n" + path + "\nto the new layout?", ButtonType.YES, ButtonType.NO);
+        alert.showAndWait();
+        if (ButtonType.YES.equals(alert.getResult())) {
+            String finalTemplate = template;
+            JobScheduler.submit(JobScheduler.Lane.INTERACTIVE, "migrate blobs", () -> {
+                try {
+                    int moved = BlobLayout.migrate(new File(path), finalTemplate);
+                    Platform.runLater(() -> new Alert(Alert.AlertType.INFORMATION, "Moved " + moved + " blobs.", ButtonType.OK).show());
+                } catch (IOException | RuntimeException e) {
+                    Log.error("unable to migrate blobs", e, "folder", path);
+                    Platform.runLater(() -> newReportableError("Unable to move the blobs to the new layout.", e.toString()));
+                }
+            });
+        }
+    }
+
     public void helpLabelHandler(MouseEvent evt) {
         if (Main.SHOW_BREAKPOINT) {
             return; // remember to put a breakpoint here
@@ -622,10 +759,20 @@ public class Controller {
         applicationMenu.getItems().add(1, new SeparatorMenuItem());
         applicationMenu.getItems().add(2, checkForUpdatesMenuItem);
 
+        MenuItem blobLayoutMenuItem = new MenuItem("Blob Folder Layout...");
+        blobLayoutMenuItem.setOnAction(event1 -> blobLayoutHandler());
+        applicationMenu.getItems().add(3, blobLayoutMenuItem);
+        // the Options menu isn't used on macOS, so move it to the application menu
+        packBlobsMenuItem.getParentMenu().getItems().remove(packBlobsMenuItem);
+        applicationMenu.getItems().add(4, packBlobsMenuItem);
+        MenuItem validateBlobsMenuItem = new MenuItem("Validate Saved Blobs...");
+        validateBlobsMenuItem.setOnAction(event1 -> validateBlobsHandler());
+        applicationMenu.getItems().add(5, validateBlobsMenuItem);
+
         MenuItem clearAllDataMenuItem = new MenuItem("Uninstall...");
         clearAllDataMenuItem.setOnAction(event1 -> resetAppHandler());
-        applicationMenu.getItems().add(3, new SeparatorMenuItem());
-        applicationMenu.getItems().add(4, clearAllDataMenuItem);
+        applicationMenu.getItems().add(6, new SeparatorMenuItem());
+        applicationMenu.getItems().add(7, clearAllDataMenuItem);
 
         macOSMenuBar.getMenus().add(0, applicationMenu);
 
@@ -745,17 +892,10 @@ public class Controller {
             log("info given");
             appPrefs.putInt("Time to run", Integer.valueOf(textField.getText()));
             appPrefs.put("Time unit for background", choiceBox.getValue());
+            // if the background is running, it picks up the change by itself
         } else {
             log("alert menu canceled");
             backgroundSettingsButton.fire(); //goes back to main menu
-            return;
-        }
-        if (Background.inBackground) {
-            ButtonType stopBackgroundButtonType = new ButtonType("Stop Background");
-            Alert restartBackgroundAlert = new Alert(Alert.AlertType.INFORMATION,
-                    "You will need to restart the background for changes to take effect.", stopBackgroundButtonType);
-            restartBackgroundAlert.showAndWait();
-            startBackgroundButton.fire();
         }
     }
 
@@ -782,8 +922,7 @@ public class Controller {
 
     public void forceCheckForBlobsHandler() {
         if (Background.inBackground) {
-            Background.stopBackground(false);
-            Background.startBackground(false);
+            Background.runAllNow();
         } else {
             Background.startBackground(true);
         }
@@ -884,16 +1023,16 @@ public class Controller {
             String deviceModel = Libimobiledevice.getDeviceModelIdentifier(true);
             if (deviceModel.startsWith("iPhone")) {
                 deviceTypeChoiceBox.setValue("iPhone");
-                deviceModelChoiceBox.setValue(Devices.getDeviceModelIdentifiersMap().get(deviceModel));
+                deviceModelChoiceBox.setValue(Devices.identifierToName(deviceModel));
             } else if (deviceModel.startsWith("iPod")) {
                 deviceTypeChoiceBox.setValue("iPod");
-                deviceModelChoiceBox.setValue(Devices.getDeviceModelIdentifiersMap().get(deviceModel));
+                deviceModelChoiceBox.setValue(Devices.identifierToName(deviceModel));
             } else if (deviceModel.startsWith("iPad")) {
                 deviceTypeChoiceBox.setValue("iPad");
-                deviceModelChoiceBox.setValue(Devices.getDeviceModelIdentifiersMap().get(deviceModel));
+                deviceModelChoiceBox.setValue(Devices.identifierToName(deviceModel));
             } else if (deviceModel.startsWith("AppleTV")) {
                 deviceTypeChoiceBox.setValue("Apple TV");
-                deviceModelChoiceBox.setValue(Devices.getDeviceModelIdentifiersMap().get(deviceModel));
+                deviceModelChoiceBox.setValue(Devices.identifierToName(deviceModel));
             } else {
                 newReportableError("Unknown model: " + deviceModel);
                 return;
@@ -910,10 +1049,14 @@ public class Controller {
 
     public void donate() { openURL("https://www.paypal.me/airsqrd"); }
 
-    private static void log(String msg) { System.out.println(msg); }
+    private static void log(String msg) { Log.info(msg); }
 
     @SuppressWarnings("Duplicates")
     public void goButtonHandler() {
+        if (tssChecker != null && tssChecker.isRunning()) { // the go button is a cancel button while saving blobs
+            tssChecker.cancel();
+            return;
+        }
         boolean doReturn = false;
         if (!identifierCheckBox.isSelected() && "".equals(deviceTypeChoiceBox.getValue())) {
             deviceTypeChoiceBox.setEffect(errorBorder);
@@ -939,7 +1082,7 @@ public class Controller {
             String identifierText = identifierField.getText();
             try {
                 if (identifierText.startsWith("iPad") || identifierText.startsWith("iPod") || identifierText.startsWith("iPhone") || identifierText.startsWith("AppleTV")) {
-                    TSSChecker.run(identifierField.getText());
+                    startTSSChecker(identifierField.getText());
                 } else {
                     identifierField.setEffect(errorBorder);
                     newUnreportableError("\"" + identifierText + "\" is not a valid identifier");
@@ -948,8 +1091,46 @@ public class Controller {
                 newUnreportableError("\"" + identifierText + "\" is not a valid identifier");
             }
         } else {
-            TSSChecker.run(textToIdentifier(deviceModel));
+            startTSSChecker(textToIdentifier(deviceModel));
+        }
+    }
+
+    private void startTSSChecker(String device) {
+        if (device == null) { // the error alert should already be shown
+            return;
         }
+        tssChecker = new TSSChecker(device);
+        progressBar.progressProperty().bind(tssChecker.progressProperty());
+        progressLabel.textProperty().bind(tssChecker.messageProperty());
+        setProgressVisible(true);
+        goButton.setText("Cancel");
+        // not runningProperty(), it never changes if the task is cancelled while it's still queued
+        tssChecker.stateProperty().addListener((observable, oldValue, state) -> {
+            if (state == Worker.State.SUCCEEDED || state == Worker.State.FAILED || state == Worker.State.CANCELLED) {
+                progressBar.progressProperty().unbind();
+                progressLabel.textProperty().unbind();
+                setProgressVisible(false);
+                goButton.setText("Go");
+                if (Background.inBackground && !primaryStage.isShowing()) {
+                    Main.releaseWindowLater(); // it wasn't released while saving
+                }
+            }
+        });
+        JobScheduler.submitTask(JobScheduler.Lane.INTERACTIVE, "tsschecker " + device, tssChecker);
+    }
+
+    /**
+     * @return whether blobs are being saved (or are queued to be) from the window
+     */
+    boolean isSaving() {
+        return tssChecker != null && !tssChecker.isDone();
+    }
+
+    private void setProgressVisible(boolean visible) {
+        progressBar.setVisible(visible);
+        progressBar.setManaged(visible);
+        progressLabel.setVisible(visible);
+        progressLabel.setManaged(visible);
     }
 
     private static boolean isTextFieldInvalid(CheckBox checkBox, TextField textField) {
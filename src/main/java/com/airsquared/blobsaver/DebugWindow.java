@@ -18,23 +18,48 @@
 
 package com.airsquared.blobsaver;
 
-import javafx.application.Platform;
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.scene.Scene;
 import javafx.scene.control.TextArea;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 
 class DebugWindow {
 
+    /**
+     * The most text that is kept, older text is dropped. A tsschecker log can be a few MB, which a TextArea can't
+     * handle.
+     */
+    private static final int MAX_CHARS = 256 * 1024;
+    /**
+     * How often new output is added to the text area. Adding it as it comes in, one event per write, floods the
+     * JavaFX application thread.
+     */
+    private static final Duration FLUSH_INTERVAL = Duration.millis(100);
+
     private static final PrintStream sysOut = System.out;
-    private static Stage debugStage = new Stage();
+    private static Stage debugStage;
     private static PrintStream myPrintStream;
+    private static TextAreaAppender appender;
+    private static Timeline flushTimeline;
 
-    static {
+    /**
+     * The window is only created when it's first needed, and is dropped again by {@link #release()}.
+     */
+    private static void create() {
         VBox vBox = new VBox();
         vBox.setMaxSize(Double.MAX_VALUE, Double.MAX_VALUE);
         TextArea textArea = new TextArea();
@@ -43,6 +68,7 @@ class DebugWindow {
         textArea.setWrapText(true);
         textArea.setMaxSize(Double.MAX_VALUE, Double.MAX_VALUE);
         vBox.getChildren().add(textArea);
+        debugStage = new Stage();
         debugStage.setTitle("Debug Log");
         debugStage.setScene(new Scene(vBox));
         debugStage.setOnCloseRequest((event) -> {
@@ -50,41 +76,150 @@ class DebugWindow {
             event.consume();
         });
 
-        myPrintStream = new PrintStream(new OutputStream() {
-            void appendText(String valueOf) {
-                if (Platform.isFxApplicationThread()) {
-                    textArea.appendText(valueOf);
-                } else {
-                    Platform.runLater(() -> textArea.appendText(valueOf));
-                }
-            }
-
-            @Override
-            public void write(int b) {
-                sysOut.write(b);
-                appendText(String.valueOf((char) b));
-            }
-        });
+        appender = new TextAreaAppender(textArea);
+        try {
+            // the appender decodes UTF-8, so the stream has to encode it no matter what the platform default is
+            myPrintStream = new PrintStream(appender, true, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // UTF-8 is always supported
+        }
+        flushTimeline = new Timeline(new KeyFrame(FLUSH_INTERVAL, event -> appender.flushToTextArea()));
+        flushTimeline.setCycleCount(Animation.INDEFINITE);
     }
 
     static void show() {
-        debugStage.show();
+        getDebugStage().show();
         System.setOut(myPrintStream);
         System.setErr(myPrintStream);
+        flushTimeline.play();
     }
 
     static void hide() {
+        if (debugStage == null) {
+            return;
+        }
         debugStage.hide();
         System.setOut(sysOut);
         System.setErr(sysOut);
+        flushTimeline.stop();
+        appender.flushToTextArea();
+    }
+
+    /**
+     * Drops the window and the text in it, unless it's showing.
+     */
+    static void release() {
+        if (debugStage == null || debugStage.isShowing()) {
+            return;
+        }
+        debugStage = null;
+        myPrintStream = null;
+        appender = null;
+        flushTimeline = null;
     }
 
     static Stage getDebugStage() {
+        if (debugStage == null) {
+            create();
+        }
         return debugStage;
     }
 
     static boolean isShowing() {
-        return debugStage.isShowing();
+        return debugStage != null && debugStage.isShowing();
     }
 
+    /**
+     * Copies everything to {@link #sysOut} and collects it as text, which {@link #flushToTextArea()} adds to the
+     * text area in one go. Bytes are decoded as UTF-8, a character split between two writes is kept until the rest
+     * of it comes in.
+     */
+    private static class TextAreaAppender extends OutputStream {
+
+        private final TextArea textArea;
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer undecoded = ByteBuffer.allocate(8192);
+        private final CharBuffer decoded = CharBuffer.allocate(8192);
+        private final StringBuilder pending = new StringBuilder();
+
+        TextAreaAppender(TextArea textArea) {
+            this.textArea = textArea;
+        }
+
+        @Override
+        public void write(int b) {
+            sysOut.write(b);
+            synchronized (this) {
+                if (!undecoded.hasRemaining()) {
+                    decode();
+                }
+                undecoded.put((byte) b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            sysOut.write(b, off, len);
+            synchronized (this) {
+                while (len > 0) {
+                    int count = Math.min(len, undecoded.remaining());
+                    undecoded.put(b, off, count);
+                    off += count;
+                    len -= count;
+                    decode();
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+            sysOut.flush();
+            synchronized (this) {
+                decode();
+            }
+        }
+
+        private void decode() {
+            undecoded.flip();
+            while (decoder.decode(undecoded, decoded, false).isOverflow()) {
+                drainDecoded();
+            }
+            drainDecoded();
+            undecoded.compact();
+        }
+
+        private void drainDecoded() {
+            decoded.flip();
+            pending.append(decoded);
+            decoded.clear();
+            if (pending.length() > MAX_CHARS + MAX_CHARS / 4) {
+                // the text area can't show more than this anyway, so don't keep it around until the next flush
+                pending.delete(0, pending.length() - MAX_CHARS);
+            }
+        }
+
+        /**
+         * Must be called on the JavaFX application thread.
+         */
+        void flushToTextArea() {
+            String text;
+            synchronized (this) {
+                decode();
+                if (pending.length() == 0) {
+                    return;
+                }
+                text = pending.toString();
+                pending.setLength(0);
+            }
+            textArea.appendText(text);
+            int excess = textArea.getLength() - MAX_CHARS;
+            if (excess > 0) {
+                // cut at the end of a line if there's one close by
+                int newline = textArea.getText(excess, Math.min(textArea.getLength(), excess + 256)).indexOf('\n');
+                textArea.deleteText(0, newline == -1 ? excess : excess + newline + 1);
+            }
+        }
+    }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A device model from the {@link DeviceCatalog}.
+ */
+class Device {
+
+    /**
+     * One of "iPhone", "iPod", "iPad" or "AppleTV", the same as the device type choice box.
+     */
+    final String type;
+    /**
+     * The name shown in the device picker, which is also what presets save.
+     */
+    final String name;
+    final String identifier;
+    private final String[] boardConfigs;
+    /**
+     * Whether tsschecker needs the board config to be specified for this device.
+     */
+    final boolean requiresBoardConfig;
+    /**
+     * The chip ID, or 0 if it isn't known.
+     */
+    final int cpid;
+
+    Device(String type, String name, String identifier, String[] boardConfigs, boolean requiresBoardConfig, int cpid) {
+        this.type = type;
+        this.name = name;
+        this.identifier = identifier;
+        this.boardConfigs = boardConfigs;
+        this.requiresBoardConfig = requiresBoardConfig;
+        this.cpid = cpid;
+    }
+
+    List<String> getBoardConfigs() {
+        return Collections.unmodifiableList(Arrays.asList(boardConfigs));
+    }
+
+    /**
+     * @return the board config to fill in for the user, or an empty string if there's more than one and the
+     * user has to pick
+     */
+    String getDefaultBoardConfig() {
+        return boardConfigs.length == 1 ? boardConfigs[0] : "";
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * All known devices, indexed by name, identifier and type.
+ * <p>
+ * The catalog is compiled from {@code src/main/catalog/devices.tsv} into the {@code devices.bin} resource at build
+ * time (see the {@code compileDeviceCatalog} Gradle task). At runtime it is refreshed from the ipsw.me device list,
+ * and the refreshed catalog is cached in {@code ~/.blobsaver_bin/devices.bin}. Whichever of the two is newer is used.
+ */
+class DeviceCatalog {
+
+    private static final int MAGIC = 0x42534443; // "BSDC"
+    private static final int FORMAT_VERSION = 1;
+    private static final long REFRESH_AFTER_MILLIS = TimeUnit.DAYS.toMillis(7);
+    private static final String UPDATED_PREFIX = "# Updated: ";
+    private static final String[] types = {"iPhone", "iPod", "iPad", "AppleTV"};
+    private static final Pattern boardConfigPattern = Pattern.compile("([a-z]+[0-9]+)([a-z]*)ap");
+
+    private static volatile DeviceCatalog current;
+
+    /**
+     * When the catalog was made, in milliseconds since the epoch.
+     */
+    final long timestamp;
+    private final List<Device> devices;
+    private final Map<String, Device> byName = new HashMap<>();
+    private final Map<String, Device> byIdentifier = new HashMap<>();
+    private final Map<String, List<Device>> byType = new HashMap<>();
+
+    private DeviceCatalog(long timestamp, List<Device> devices) {
+        this.timestamp = timestamp;
+        this.devices = Collections.unmodifiableList(devices);
+        for (Device device : devices) {
+            byName.put(device.name, device);
+            byIdentifier.putIfAbsent(device.identifier, device);
+            byType.computeIfAbsent(device.type, type -> new ArrayList<>()).add(device);
+        }
+        byType.replaceAll((type, list) -> Collections.unmodifiableList(list));
+    }
+
+    static DeviceCatalog get() {
+        DeviceCatalog catalog = current;
+        if (catalog == null) {
+            synchronized (DeviceCatalog.class) {
+                if (current == null) {
+                    current = load();
+                }
+                catalog = current;
+            }
+        }
+        return catalog;
+    }
+
+    /**
+     * @return the device, or {@code null} if there isn't one with that name
+     */
+    Device byName(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * @return the device, or {@code null} if there isn't one with that identifier
+     */
+    Device byIdentifier(String identifier) {
+        return byIdentifier.get(identifier);
+    }
+
+    /**
+     * @param type one of "iPhone", "iPod", "iPad" or "AppleTV"
+     */
+    List<Device> ofType(String type) {
+        return byType.getOrDefault(type, Collections.emptyList());
+    }
+
+    List<Device> all() {
+        return devices;
+    }
+
+    private static DeviceCatalog load() {
+        DeviceCatalog bundled;
+        try (InputStream input = DeviceCatalog.class.getResourceAsStream("devices.bin")) {
+            if (input == null) {
+                throw new IOException("devices.bin resource is missing, run the compileDeviceCatalog task");
+            }
+            bundled = read(input);
+        } catch (IOException e) {
+            Log.error("unable to read the bundled device catalog", e);
+            bundled = new DeviceCatalog(0, new ArrayList<>());
+        }
+        File cacheFile = getCacheFile();
+        if (cacheFile == null || !cacheFile.exists()) {
+            return bundled;
+        }
+        try (InputStream input = new FileInputStream(cacheFile)) {
+            DeviceCatalog cached = read(input);
+            // the bundled catalog is newer after blobsaver is updated
+            return cached.timestamp > bundled.timestamp ? cached : bundled;
+        } catch (IOException e) {
+            Log.error("unable to read the cached device catalog, using the bundled one", e, "file", cacheFile);
+            return bundled;
+        }
+    }
+
+    /**
+     * Refreshes the catalog if it is more than a week old. Network errors are only logged, the current catalog is
+     * still used.
+     */
+    static void refreshIfStale() {
+        if (System.currentTimeMillis() - get().timestamp < REFRESH_AFTER_MILLIS) {
+            return;
+        }
+        try {
+            refresh();
+        } catch (IOException | RuntimeException e) {
+            Log.error("unable to refresh the device catalog", e);
+        }
+    }
+
+    static DeviceCatalog refresh() throws IOException {
+        long start = System.nanoTime();
+        String response = Shared.makeRequest(new URL(Shared.IPSW_API + "devices"));
+        DeviceCatalog refreshed = get().merge(new JSONArray(response), System.currentTimeMillis());
+        File cacheFile = getCacheFile();
+        if (cacheFile != null) {
+            // write to a temp file first so that a crash can't leave a half written cache
+            File tempFile = new File(cacheFile.getParentFile(), cacheFile.getName() + ".tmp");
+            try (OutputStream output = new FileOutputStream(tempFile)) {
+                refreshed.write(output);
+            }
+            Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        current = refreshed;
+        Log.info("refreshed device catalog", "devices", refreshed.devices.size(),
+                "duration", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return refreshed;
+    }
+
+    /**
+     * Combines this catalog with the ipsw.me {@code /v4/devices} list. Devices that are already in the catalog keep
+     * their names (so that saved presets still work) and get the board configs and CPIDs from the list. New devices
+     * are added at the end, and are marked as requiring a board config since the bundled tsschecker won't know them.
+     */
+    DeviceCatalog merge(JSONArray deviceList, long timestamp) {
+        Map<String, Device> merged = new LinkedHashMap<>();
+        for (Device device : devices) {
+            merged.put(device.identifier, device);
+        }
+        for (int i = 0; i < deviceList.length(); i++) {
+            JSONObject json = deviceList.getJSONObject(i);
+            String identifier = json.optString("identifier");
+            String type = typeOf(identifier);
+            if (type == null) {
+                continue; // watches, HomePods, etc. aren't supported
+            }
+            List<String> boardConfigs = new ArrayList<>();
+            int cpid = 0;
+            JSONArray boards = json.optJSONArray("boards");
+            if (boards != null) {
+                for (int j = 0; j < boards.length(); j++) {
+                    JSONObject board = boards.getJSONObject(j);
+                    addBoardConfig(boardConfigs, board.optString("boardconfig"));
+                    cpid = board.optInt("cpid", cpid);
+                }
+            } else {
+                addBoardConfig(boardConfigs, json.optString("boardconfig"));
+                cpid = json.optInt("cpid", 0);
+            }
+            Device existing = merged.get(identifier);
+            if (existing != null) {
+                merged.put(identifier, new Device(existing.type, existing.name, identifier,
+                        boardConfigs.isEmpty() ? existing.getBoardConfigs().toArray(new String[0]) : boardConfigs.toArray(new String[0]),
+                        existing.requiresBoardConfig, cpid == 0 ? existing.cpid : cpid));
+            } else {
+                merged.put(identifier, new Device(type, json.optString("name", identifier) + " (" + identifier + ")",
+                        identifier, boardConfigs.toArray(new String[0]), true, cpid));
+            }
+        }
+        return new DeviceCatalog(timestamp, new ArrayList<>(merged.values()));
+    }
+
+    private static void addBoardConfig(List<String> boardConfigs, String boardConfig) {
+        // ipsw.me uses n841ap and d331pap, tsschecker and the bundled catalog use N841AP and D331pAP
+        Matcher matcher = boardConfigPattern.matcher(boardConfig.toLowerCase());
+        if (!matcher.matches()) {
+            return;
+        }
+        String normalized = matcher.group(1).toUpperCase() + matcher.group(2) + "AP";
+        if (!boardConfigs.contains(normalized)) {
+            boardConfigs.add(normalized);
+        }
+    }
+
+    private static String typeOf(String identifier) {
+        for (String type : types) {
+            if (identifier.startsWith(type) && identifier.length() > type.length() && Character.isDigit(identifier.charAt(type.length()))) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    private static File getCacheFile() {
+        try {
+            return new File(Shared.getExecutablesFolder(), "devices.bin");
+        } catch (IOException e) {
+            Log.error("unable to get the executables folder", e);
+            return null;
+        }
+    }
+
+    void write(OutputStream outputStream) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(outputStream));
+        output.writeInt(MAGIC);
+        output.writeShort(FORMAT_VERSION);
+        output.writeLong(timestamp);
+        output.writeInt(devices.size());
+        for (Device device : devices) {
+            output.writeUTF(device.type);
+            output.writeUTF(device.name);
+            output.writeUTF(device.identifier);
+            output.writeBoolean(device.requiresBoardConfig);
+            output.writeInt(device.cpid);
+            List<String> boardConfigs = device.getBoardConfigs();
+            output.writeByte(boardConfigs.size());
+            for (String boardConfig : boardConfigs) {
+                output.writeUTF(boardConfig);
+            }
+        }
+        output.flush();
+    }
+
+    static DeviceCatalog read(InputStream inputStream) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(inputStream));
+        if (input.readInt() != MAGIC || input.readShort() != FORMAT_VERSION) {
+            throw new IOException("Not a device catalog, or an unsupported version");
+        }
+        long timestamp = input.readLong();
+        int count = input.readInt();
+        List<Device> devices = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String type = input.readUTF();
+            String name = input.readUTF();
+            String identifier = input.readUTF();
+            boolean requiresBoardConfig = input.readBoolean();
+            int cpid = input.readInt();
+            String[] boardConfigs = new String[input.readUnsignedByte()];
+            for (int j = 0; j < boardConfigs.length; j++) {
+                boardConfigs[j] = input.readUTF();
+            }
+            devices.add(new Device(type, name, identifier, boardConfigs, requiresBoardConfig, cpid));
+        }
+        return new DeviceCatalog(timestamp, devices);
+    }
+
+    /**
+     * Parses the tab separated source file, see {@code src/main/catalog/devices.tsv} for the columns. The timestamp
+     * comes from the {@code # Updated: yyyy-MM-dd} line in the header instead of the file's modification time, which
+     * changes with every checkout.
+     */
+    static DeviceCatalog parseSource(BufferedReader reader) throws IOException {
+        List<Device> devices = new ArrayList<>();
+        long timestamp = -1;
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.startsWith(UPDATED_PREFIX)) {
+                try {
+                    timestamp = LocalDate.parse(line.substring(UPDATED_PREFIX.length()).trim())
+                            .atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+                } catch (DateTimeParseException e) {
+                    throw new IOException("Invalid date on line " + lineNumber + ": " + line, e);
+                }
+                continue;
+            }
+            if (line.trim().isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] columns = line.split("\t", -1);
+            if (columns.length != 6 || typeOf(columns[2]) == null) {
+                throw new IOException("Invalid device on line " + lineNumber + ": " + line);
+            }
+            String[] boardConfigs = columns[3].isEmpty() ? new String[0] : columns[3].split(",");
+            int cpid = columns[5].isEmpty() ? 0 : Integer.decode(columns[5]);
+            devices.add(new Device(columns[0], columns[1], columns[2], boardConfigs, "yes".equals(columns[4]), cpid));
+        }
+        if (timestamp == -1) {
+            throw new IOException("Missing \"" + UPDATED_PREFIX + "yyyy-MM-dd\" line");
+        }
+        return new DeviceCatalog(timestamp, devices);
+    }
+
+    /**
+     * Compiles the source file into the binary resource. Used by the {@code compileDeviceCatalog} Gradle task.
+     *
+     * @param args the source file and the output file
+     */
+    public static void main(String[] args) throws IOException {
+        File source = new File(args[0]);
+        File output = new File(args[1]);
+        DeviceCatalog catalog;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8))) {
+            catalog = parseSource(reader);
+        }
+        //noinspection ResultOfMethodCallIgnored
+        output.getParentFile().mkdirs();
+        try (OutputStream outputStream = new FileOutputStream(output)) {
+            catalog.write(outputStream);
+        }
+        System.out.println("Wrote " + catalog.devices.size() + " devices to " + output);
+    }
+}
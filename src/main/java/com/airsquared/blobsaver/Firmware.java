@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+/**
+ * One firmware from the ipsw.me API, as kept in the {@link FirmwareStore}.
+ */
+class Firmware {
+
+    final String identifier;
+    final String version;
+    final String buildId;
+    final boolean signed;
+    final String url;
+    /**
+     * Size of the .ipsw in bytes, or 0 if it isn't known.
+     */
+    final long size;
+
+    Firmware(String identifier, String version, String buildId, boolean signed, String url, long size) {
+        this.identifier = identifier;
+        this.version = version;
+        this.buildId = buildId;
+        this.signed = signed;
+        this.url = url;
+        this.size = size;
+    }
+
+    @Override
+    public String toString() {
+        return identifier + " " + version + " (" + buildId + ")" + (signed ? " signed" : "");
+    }
+}
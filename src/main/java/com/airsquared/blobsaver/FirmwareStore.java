@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Firmware metadata (versions, builds, signing status, .ipsw URLs and sizes) for every device that has been looked
+ * up, kept in memory and saved to {@code ~/.blobsaver_bin/firmwares.bin}.
+ * <p>
+ * Before a background sweep, {@link #refresh(Collection)} fetches every model that the presets use in one go, so
+ * that the presets themselves don't make any network requests. Only models whose data is older than
+ * {@link #MAX_AGE_MILLIS} are fetched. If a fetch fails, the old data is kept so that it can still be used offline.
+ */
+class FirmwareStore {
+
+    /**
+     * Signing status can change at any time, so data older than this is fetched again before it is used.
+     */
+    static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private static final int MAGIC = 0x42534657; // "BSFW"
+    private static final int FORMAT_VERSION = 1;
+    private static final int REFRESH_THREADS = 4;
+    /**
+     * After a device fails to be fetched, {@link #getSignedVersions(String)} doesn't try again for this long, so that
+     * a sweep doesn't wait for a timeout on every preset while ipsw.me is down.
+     */
+    private static final long RETRY_AFTER_FAILURE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static volatile FirmwareStore instance;
+
+    private final File file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, Long> failedAt = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        final long fetchedAt;
+        final List<Firmware> firmwares;
+
+        Entry(long fetchedAt, List<Firmware> firmwares) {
+            this.fetchedAt = fetchedAt;
+            this.firmwares = Collections.unmodifiableList(firmwares);
+        }
+
+        boolean isStale() {
+            return System.currentTimeMillis() - fetchedAt > MAX_AGE_MILLIS;
+        }
+    }
+
+    private FirmwareStore(File file) {
+        this.file = file;
+    }
+
+    static FirmwareStore get() {
+        FirmwareStore store = instance;
+        if (store == null) {
+            synchronized (FirmwareStore.class) {
+                if (instance == null) {
+                    File file;
+                    try {
+                        file = new File(Shared.getExecutablesFolder(), "firmwares.bin");
+                    } catch (IOException e) {
+                        Log.error("unable to get the executables folder, firmwares won't be saved", e);
+                        file = null;
+                    }
+                    FirmwareStore newStore = new FirmwareStore(file);
+                    newStore.load();
+                    instance = newStore;
+                }
+                store = instance;
+            }
+        }
+        return store;
+    }
+
+    /**
+     * @return the signed versions, fetching them first if they aren't in the store or are out of date
+     * @throws IOException if they had to be fetched and that failed. {@link #getLastKnownSignedVersions(String)}
+     *                     can be used instead.
+     */
+    List<String> getSignedVersions(String identifier) throws IOException {
+        Entry entry = entries.get(identifier);
+        if (entry == null || entry.isStale()) {
+            Long lastFailure = failedAt.get(identifier);
+            if (lastFailure != null && System.currentTimeMillis() - lastFailure < RETRY_AFTER_FAILURE_MILLIS) {
+                throw new IOException("Getting firmwares for " + identifier + " failed less than "
+                        + TimeUnit.MILLISECONDS.toMinutes(RETRY_AFTER_FAILURE_MILLIS) + " minutes ago");
+            }
+            entry = fetch(identifier);
+            save();
+        }
+        return signedVersions(entry);
+    }
+
+    /**
+     * @return the signed versions from the last time they were fetched, however long ago that was, or {@code null}
+     * if they have never been fetched
+     */
+    List<String> getLastKnownSignedVersions(String identifier) {
+        Entry entry = entries.get(identifier);
+        return entry == null ? null : signedVersions(entry);
+    }
+
+    /**
+     * @return when the device was last fetched, or 0 if it never has been
+     */
+    long getFetchedAt(String identifier) {
+        Entry entry = entries.get(identifier);
+        return entry == null ? 0 : entry.fetchedAt;
+    }
+
+    private static List<String> signedVersions(Entry entry) {
+        List<String> signedVersions = new ArrayList<>();
+        for (Firmware firmware : entry.firmwares) {
+            if (firmware.signed) {
+                signedVersions.add(firmware.version);
+            }
+        }
+        return signedVersions;
+    }
+
+    /**
+     * @return all firmwares for the device, however old they are, or {@code null} if the device has never been
+     * looked up
+     */
+    List<Firmware> getFirmwares(String identifier) {
+        Entry entry = entries.get(identifier);
+        return entry == null ? null : entry.firmwares;
+    }
+
+    /**
+     * @return the firmware, or {@code null} if it isn't in the store
+     */
+    Firmware getFirmware(String identifier, String version) {
+        List<Firmware> firmwares = getFirmwares(identifier);
+        if (firmwares != null) {
+            for (Firmware firmware : firmwares) {
+                if (firmware.version.equals(version)) {
+                    return firmware;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fetches every device that isn't in the store or is out of date, a few at a time, and saves the store once
+     * they are done. Errors are logged and the old data is kept.
+     *
+     * @return the number of devices that couldn't be fetched
+     */
+    int refresh(Collection<String> identifiers) {
+        List<String> toFetch = new ArrayList<>();
+        for (String identifier : new LinkedHashSet<>(identifiers)) {
+            if (identifier == null) { // a preset whose device couldn't be found
+                continue;
+            }
+            Entry entry = entries.get(identifier);
+            if (entry == null || entry.isStale()) {
+                toFetch.add(identifier);
+            }
+        }
+        if (toFetch.isEmpty()) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(REFRESH_THREADS, toFetch.size()), runnable -> {
+            Thread thread = new Thread(runnable, "firmware refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (String identifier : toFetch) {
+                futures.add(executor.submit(() -> {
+                    try {
+                        fetch(identifier);
+                    } catch (IOException | RuntimeException e) {
+                        failed.incrementAndGet();
+                        Log.warn("unable to refresh firmwares, using the saved ones", "identifier", identifier,
+                                "error", e.toString());
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (Exception e) {
+                    Log.error("firmware refresh failed", e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        save();
+        Log.info("refreshed firmwares", "devices", toFetch.size(), "failed", failed.get(),
+                "duration", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return failed.get();
+    }
+
+    private Entry fetch(String identifier) throws IOException {
+        long start = System.nanoTime();
+        Entry entry;
+        try {
+            String response = Shared.makeRequest(new URL(Shared.IPSW_API + "device/" + identifier + "?type=ipsw"));
+            entry = new Entry(System.currentTimeMillis(), parseFirmwares(response));
+        } catch (IOException | RuntimeException e) {
+            failedAt.put(identifier, System.currentTimeMillis());
+            throw e;
+        } finally {
+            Metrics.versionLookup.observeSince(start);
+        }
+        entries.put(identifier, entry);
+        failedAt.remove(identifier);
+        return entry;
+    }
+
+    /**
+     * @param response the response from the ipsw.me {@code /v4/device/} endpoint
+     */
+    static List<Firmware> parseFirmwares(String response) {
+        JSONObject json = new JSONObject(response);
+        String identifier = json.optString("identifier");
+        JSONArray firmwaresJson = json.getJSONArray("firmwares");
+        List<Firmware> firmwares = new ArrayList<>(firmwaresJson.length());
+        for (int i = 0; i < firmwaresJson.length(); i++) {
+            JSONObject firmware = firmwaresJson.getJSONObject(i);
+            firmwares.add(new Firmware(firmware.optString("identifier", identifier), firmware.get("version").toString(),
+                    firmware.optString("buildid"), firmware.optBoolean("signed"), firmware.optString("url"),
+                    firmware.optLong("filesize")));
+        }
+        return firmwares;
+    }
+
+    private void load() {
+        if (file == null || !file.exists()) {
+            return;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readShort() != FORMAT_VERSION) {
+                Log.warn("ignoring saved firmwares from a different version", "file", file);
+                return;
+            }
+            int deviceCount = input.readInt();
+            for (int i = 0; i < deviceCount; i++) {
+                String identifier = input.readUTF();
+                long fetchedAt = input.readLong();
+                int firmwareCount = input.readInt();
+                List<Firmware> firmwares = new ArrayList<>(firmwareCount);
+                for (int j = 0; j < firmwareCount; j++) {
+                    firmwares.add(new Firmware(identifier, input.readUTF(), input.readUTF(), input.readBoolean(),
+                            input.readUTF(), input.readLong()));
+                }
+                entries.put(identifier, new Entry(fetchedAt, firmwares));
+            }
+        } catch (IOException e) {
+            Log.error("unable to read saved firmwares", e, "file", file);
+            entries.clear();
+        }
+    }
+
+    private synchronized void save() {
+        if (file == null) {
+            return;
+        }
+        // write to a temp file first so that a crash can't leave a half written file
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            output.writeInt(MAGIC);
+            output.writeShort(FORMAT_VERSION);
+            // copy it so that the count matches even if something is added while saving
+            List<Map.Entry<String, Entry>> toSave = new ArrayList<>(entries.entrySet());
+            output.writeInt(toSave.size());
+            for (Map.Entry<String, Entry> mapEntry : toSave) {
+                output.writeUTF(mapEntry.getKey());
+                output.writeLong(mapEntry.getValue().fetchedAt);
+                output.writeInt(mapEntry.getValue().firmwares.size());
+                for (Firmware firmware : mapEntry.getValue().firmwares) {
+                    output.writeUTF(firmware.version);
+                    output.writeUTF(firmware.buildId);
+                    output.writeBoolean(firmware.signed);
+                    output.writeUTF(firmware.url);
+                    output.writeLong(firmware.size);
+                }
+            }
+        } catch (IOException e) {
+            Log.error("unable to save firmwares", e, "file", file);
+            return;
+        }
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Log.error("unable to save firmwares", e, "file", file);
+        }
+    }
+}
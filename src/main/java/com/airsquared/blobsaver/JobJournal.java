@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the presets that background sweeps have queued and finished, in
+ * {@code ~/.blobsaver_bin/jobs.journal}, so that a sweep that was interrupted by quitting or crashing can carry on
+ * where it left off instead of starting over.
+ * <p>
+ * Each record is a fixed size and has a checksum, so a record that was only partly written when blobsaver crashed
+ * is found and cut off when the journal is opened. Once there are {@link #COMPACT_AFTER} records, the journal is
+ * rewritten with only the latest state of each preset.
+ * <p>
+ * The journal is only there to save time, so if it can't be read or written, the problem is logged and it carries
+ * on as if it were empty.
+ */
+class JobJournal {
+
+    private static final int MAGIC = 0x42534a4c; // "BSJL"
+    private static final short FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 6;
+    // type, preset, time, checksum
+    private static final int RECORD_SIZE = 1 + 4 + 8 + 4;
+    private static final byte QUEUED = 1;
+    private static final byte DONE = 2;
+    static final int COMPACT_AFTER = 1000;
+
+    private final File file;
+    private FileChannel channel;
+    private int records = 0;
+
+    private final Set<Integer> pending = new LinkedHashSet<>();
+    private final Map<Integer, Long> lastDone = new HashMap<>();
+
+    private JobJournal(File file) {
+        this.file = file;
+    }
+
+    static JobJournal open() {
+        File file;
+        try {
+            file = new File(Shared.getExecutablesFolder(), "jobs.journal");
+        } catch (IOException e) {
+            Log.error("unable to open job journal, interrupted sweeps won't be resumed", e);
+            return new JobJournal(null);
+        }
+        return open(file);
+    }
+
+    static JobJournal open(File file) {
+        JobJournal journal = new JobJournal(file);
+        try {
+            journal.load();
+        } catch (IOException e) {
+            Log.error("unable to open job journal, interrupted sweeps won't be resumed", e, "file", file);
+            journal.closeQuietly();
+        }
+        return journal;
+    }
+
+    private void load() throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (channel.read(header, 0) < HEADER_SIZE || header.getInt(0) != MAGIC || header.getShort(4) != FORMAT_VERSION) {
+            if (channel.size() > 0) {
+                Log.warn("ignoring job journal from a different version", "file", file);
+            }
+            channel.truncate(0);
+            header.clear();
+            header.putInt(MAGIC).putShort(FORMAT_VERSION).flip();
+            channel.write(header, 0);
+            channel.position(HEADER_SIZE);
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 256);
+        long validEnd = HEADER_SIZE;
+        while (true) {
+            buffer.clear();
+            if (channel.read(buffer, validEnd) <= 0) {
+                break;
+            }
+            buffer.flip();
+            long readFrom = validEnd;
+            boolean corrupt = false;
+            while (buffer.remaining() >= RECORD_SIZE) {
+                if (!readRecord(buffer)) {
+                    corrupt = true;
+                    break;
+                }
+                validEnd += RECORD_SIZE;
+            }
+            // stop at a corrupt record, or at the end where there's only part of one
+            if (corrupt || validEnd == readFrom) {
+                break;
+            }
+        }
+        if (validEnd < channel.size()) {
+            Log.warn("cutting off an incomplete job journal record", "file", file, "bytes", channel.size() - validEnd);
+            channel.truncate(validEnd);
+        }
+        channel.position(validEnd);
+        if (records >= COMPACT_AFTER) {
+            compact();
+        }
+    }
+
+    /**
+     * @return false if the record is corrupt
+     */
+    private boolean readRecord(ByteBuffer buffer) {
+        int start = buffer.position();
+        byte type = buffer.get();
+        int preset = buffer.getInt();
+        long time = buffer.getLong();
+        int checksum = buffer.getInt();
+        if (checksum != checksum(buffer, start) || (type != QUEUED && type != DONE)) {
+            return false;
+        }
+        apply(type, preset, time);
+        records++;
+        return true;
+    }
+
+    private static int checksum(ByteBuffer buffer, int recordStart) {
+        CRC32 crc = new CRC32();
+        for (int i = recordStart; i < recordStart + RECORD_SIZE - 4; i++) {
+            crc.update(buffer.get(i));
+        }
+        return (int) crc.getValue();
+    }
+
+    private void apply(byte type, int preset, long time) {
+        if (type == QUEUED) {
+            pending.add(preset);
+        } else {
+            pending.remove(preset);
+            lastDone.put(preset, time);
+        }
+    }
+
+    /**
+     * Records that the presets have been queued. Until {@link #done(int)} is called for one of them, it is
+     * {@link #getPending() pending}.
+     */
+    synchronized void queued(Collection<Integer> presets) {
+        long now = System.currentTimeMillis();
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * presets.size());
+        for (int preset : presets) {
+            putRecord(buffer, QUEUED, preset, now);
+        }
+        append(buffer);
+    }
+
+    synchronized void done(int preset) {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        putRecord(buffer, DONE, preset, System.currentTimeMillis());
+        append(buffer);
+    }
+
+    private void putRecord(ByteBuffer buffer, byte type, int preset, long time) {
+        int start = buffer.position();
+        buffer.put(type).putInt(preset).putLong(time);
+        buffer.putInt(checksum(buffer, start));
+        apply(type, preset, time);
+        records++;
+    }
+
+    private void append(ByteBuffer buffer) {
+        if (channel == null) {
+            return;
+        }
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (records >= COMPACT_AFTER) {
+                compact();
+            }
+        } catch (IOException e) {
+            Log.error("unable to write to job journal, interrupted sweeps won't be resumed", e, "file", file);
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Rewrites the journal with one record for each preset that has finished and one for each that is pending.
+     * It is written to a temp file first, so that a crash can't lose what was in it.
+     */
+    private void compact() throws IOException {
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + RECORD_SIZE * (lastDone.size() + pending.size()));
+        buffer.putInt(MAGIC).putShort(FORMAT_VERSION);
+        Set<Integer> stillPending = new LinkedHashSet<>(pending);
+        Map<Integer, Long> done = new HashMap<>(lastDone);
+        records = 0;
+        // done first, so that queued records for presets that were done before still leave them pending
+        done.forEach((preset, time) -> putRecord(buffer, DONE, preset, time));
+        long now = System.currentTimeMillis();
+        stillPending.forEach(preset -> putRecord(buffer, QUEUED, preset, now));
+        buffer.flip();
+        try (FileChannel output = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                output.write(buffer);
+            }
+            output.force(false);
+        }
+        channel.close();
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        Log.info("compacted job journal", "records", records);
+    }
+
+    /**
+     * @return the presets that were queued but never finished, in the order that they were queued
+     */
+    synchronized Set<Integer> getPending() {
+        return new LinkedHashSet<>(pending);
+    }
+
+    /**
+     * @return when the preset was last finished, or 0 if it never has been
+     */
+    synchronized long getLastDone(int preset) {
+        Long time = lastDone.get(preset);
+        return time == null ? 0 : time;
+    }
+
+    synchronized void close() {
+        closeQuietly();
+    }
+
+    private void closeQuietly() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+    }
+}
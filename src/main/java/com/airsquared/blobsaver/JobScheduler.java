@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs everything that saves blobs (and other network work) on one set of worker threads, so that saving from the
+ * window and the background share the same limit on tsschecker processes and connections.
+ * <p>
+ * Jobs are queued in {@link Lane}s, and a free worker always takes the oldest job of the most important lane that
+ * has one. One worker only ever runs {@link Lane#INTERACTIVE} jobs, so clicking "Go" starts right away even if
+ * every other worker is busy with a background sweep. A job that has started isn't interrupted, but background
+ * sweeps are queued one preset at a time, so there's never a big job in the way.
+ */
+class JobScheduler {
+
+    enum Lane {
+        /**
+         * Started by the user, who is waiting for it.
+         */
+        INTERACTIVE,
+        /**
+         * Background presets whose device has a newly signed version, which might not stay signed for long.
+         */
+        NEW_BUILD,
+        /**
+         * Routine background work.
+         */
+        BACKGROUND
+    }
+
+    /**
+     * Including the one that's reserved for {@link Lane#INTERACTIVE}. tsschecker mostly waits on the network, so this
+     * doesn't depend on the number of CPUs.
+     */
+    static final int WORKERS = Integer.getInteger("blobsaver.workers", 4);
+
+    private static final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled for the workers that take any job. The interactive worker waits on {@link #interactiveJobAvailable}
+     * instead, so that a signal for a background job can't be used up by waking a worker that won't take it.
+     */
+    private static final Condition jobAvailable = lock.newCondition();
+    private static final Condition interactiveJobAvailable = lock.newCondition();
+    private static final Map<Lane, ArrayDeque<Job>> queues = new EnumMap<>(Lane.class);
+
+    static {
+        for (Lane lane : Lane.values()) {
+            queues.put(lane, new ArrayDeque<>());
+        }
+        for (int i = 0; i < Math.max(2, WORKERS); i++) {
+            boolean interactiveOnly = i == 0;
+            Thread thread = new Thread(() -> work(interactiveOnly), interactiveOnly ? "interactive worker" : "worker " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Cancelling the returned future drops the job if it hasn't started yet.
+     */
+    static Future<?> submit(Lane lane, String name, Runnable job) {
+        return submitTask(lane, name, new FutureTask<>(job, null));
+    }
+
+    /**
+     * Like {@link #submit(Lane, String, Runnable)}, for when the job is a future itself, such as a
+     * {@link javafx.concurrent.Task}.
+     */
+    static <F extends RunnableFuture<?>> F submitTask(Lane lane, String name, F job) {
+        lock.lock();
+        try {
+            queues.get(lane).add(new Job(name, lane, job));
+            if (lane == Lane.INTERACTIVE) {
+                interactiveJobAvailable.signal();
+            }
+            jobAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+        return job;
+    }
+
+    /**
+     * @return the number of jobs waiting in the lane, not counting ones that are running
+     */
+    static int queued(Lane lane) {
+        lock.lock();
+        try {
+            return queues.get(lane).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void work(boolean interactiveOnly) {
+        while (true) {
+            Job job;
+            lock.lock();
+            try {
+                while ((job = next(interactiveOnly)) == null) {
+                    (interactiveOnly ? interactiveJobAvailable : jobAvailable).awaitUninterruptibly();
+                }
+            } finally {
+                lock.unlock();
+            }
+            long start = System.nanoTime();
+            job.future.run(); // it catches everything that the job throws
+            Log.info("finished job", "job", job.name, "lane", job.lane,
+                    "waited", TimeUnit.NANOSECONDS.toMillis(start - job.queuedAt),
+                    "duration", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    private static Job next(boolean interactiveOnly) {
+        for (Lane lane : Lane.values()) {
+            ArrayDeque<Job> queue = queues.get(lane);
+            while (!queue.isEmpty()) {
+                Job job = queue.poll();
+                if (!job.future.isDone()) { // cancelled ones are just dropped
+                    return job;
+                }
+            }
+            if (interactiveOnly) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static class Job {
+        final String name;
+        final Lane lane;
+        final RunnableFuture<?> future;
+        final long queuedAt = System.nanoTime();
+
+        Job(String name, Lane lane, RunnableFuture<?> future) {
+            this.name = name;
+            this.lane = lane;
+            this.future = future;
+        }
+    }
+}
@@ -81,8 +81,7 @@ public class Libimobiledevice {
             PointerByReference xml_doc = new PointerByReference();
             plist_to_xml(plist_value.getValue(), xml_doc, new PointerByReference());
             plist_free(plist_value.getValue());
-            String toReturn = xml_doc.getValue().getString(0, "UTF-8");
-            return toReturn.substring(toReturn.indexOf("<integer>") + "<integer>".length(), toReturn.indexOf("</integer>"));
+            return plistIntegerValue(xml_doc.getValue().getString(0, "UTF-8"));
         } else {
             PointerByReference toReturn = new PointerByReference();
             plist_get_string_val(plist_value.getValue(), toReturn);
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logs to the console and to {@code ~/.blobsaver_bin/logs/blobsaver.log} from a single background thread, so that
+ * the threads doing the work never wait on I/O.
+ * <p>
+ * Fields are given as key/value pairs after the message, like
+ * {@code Log.info("saved blobs", "preset", 1, "version", "12.4", "duration", 1234)}, and are written as
+ * {@code key=value}. The log file is rotated when it gets bigger than {@link #MAX_FILE_SIZE}, and at most
+ * {@link #MAX_QUEUED} messages are kept in memory; if the writer falls that far behind, new messages are dropped and
+ * the number dropped is logged later.
+ * <p>
+ * Logging never takes a lock: messages go on a {@link ConcurrentLinkedQueue}, and the writer sleeps until it's
+ * unparked by the next message instead of waking up to check.
+ */
+class Log {
+
+    private static final int MAX_QUEUED = 10_000;
+    private static final long MAX_FILE_SIZE = 5 * 1024 * 1024;
+    /**
+     * Number of old log files kept, as blobsaver.1.log (newest) to blobsaver.N.log.
+     */
+    private static final int MAX_OLD_FILES = 3;
+
+    private static final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final File logDir = new File(System.getProperty("blobsaver.logDir",
+            new File(new File(System.getProperty("user.home"), ".blobsaver_bin"), "logs").getPath()));
+    private static final File logFile = new File(logDir, "blobsaver.log");
+    private static final Thread writerThread = new Thread(Log::writeLoop, "log writer");
+    /**
+     * Set by the writer before it checks the queue one last time and parks, so that logging only has to unpark it
+     * when it might be parked.
+     */
+    private static volatile boolean writerParked;
+
+    // only used by the writer thread
+    private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+    private static final StringBuilder line = new StringBuilder();
+    private static Writer fileWriter;
+    private static long fileSize;
+    private static long retryFileAt;
+
+    static {
+        writerThread.setDaemon(true);
+        writerThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log flush"));
+    }
+
+    private enum Level {INFO, WARN, ERROR}
+
+    private static class Entry {
+        final long timestamp = System.currentTimeMillis();
+        final String thread = Thread.currentThread().getName();
+        final Level level;
+        final String message;
+        final Object[] fields;
+        final Throwable throwable;
+
+        Entry(Level level, String message, Object[] fields, Throwable throwable) {
+            this.level = level;
+            this.message = message;
+            this.fields = fields;
+            this.throwable = throwable;
+        }
+    }
+
+    static void info(String message, Object... fields) {
+        enqueue(new Entry(Level.INFO, message, fields, null));
+    }
+
+    static void warn(String message, Object... fields) {
+        enqueue(new Entry(Level.WARN, message, fields, null));
+    }
+
+    static void error(String message, Throwable throwable, Object... fields) {
+        enqueue(new Entry(Level.ERROR, message, fields, throwable));
+    }
+
+    private static void enqueue(Entry entry) {
+        if (queued.incrementAndGet() > MAX_QUEUED) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.add(entry);
+        // the writer sets writerParked before it checks the queue, so either it sees this entry or this sees that
+        if (writerParked) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    /**
+     * Writes everything that has been logged so far. Called when the app exits.
+     */
+    static synchronized void flush() {
+        drain();
+        try {
+            if (fileWriter != null) {
+                fileWriter.flush();
+            }
+        } catch (IOException e) {
+            closeFile(e);
+        }
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            drain();
+            writerParked = true;
+            if (queue.isEmpty()) {
+                LockSupport.park(Log.class);
+            }
+            writerParked = false;
+        }
+    }
+
+    private static synchronized void drain() {
+        boolean wroteAny = false;
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            queued.decrementAndGet();
+            write(entry);
+            wroteAny = true;
+        }
+        long droppedCount = dropped.getAndSet(0);
+        if (droppedCount > 0) {
+            write(new Entry(Level.WARN, "log queue was full, dropped messages", new Object[]{"count", droppedCount}, null));
+        }
+        if (wroteAny && fileWriter != null) {
+            try {
+                fileWriter.flush();
+            } catch (IOException e) {
+                closeFile(e);
+            }
+        }
+    }
+
+    private static void write(Entry entry) {
+        line.setLength(0);
+        line.append(dateFormat.format(new Date(entry.timestamp))).append(' ').append(entry.level)
+                .append(" [").append(entry.thread).append("] ").append(entry.message);
+        for (int i = 0; i + 1 < entry.fields.length; i += 2) {
+            line.append(' ').append(entry.fields[i]).append('=');
+            appendValue(entry.fields[i + 1]);
+        }
+        if (entry.throwable != null) {
+            StringWriter stackTrace = new StringWriter();
+            entry.throwable.printStackTrace(new PrintWriter(stackTrace));
+            line.append(System.lineSeparator()).append(stackTrace.toString().trim());
+        }
+        line.append(System.lineSeparator());
+        String text = line.toString();
+        // System.out is looked up every time so that the debug window still gets it
+        System.out.print(text);
+        writeToFile(text);
+    }
+
+    private static void appendValue(Object value) {
+        String string = String.valueOf(value);
+        if (string.isEmpty() || string.indexOf(' ') != -1 || string.indexOf('"') != -1 || string.indexOf('\n') != -1) {
+            line.append('"').append(string.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        } else {
+            line.append(string);
+        }
+    }
+
+    private static void writeToFile(String text) {
+        if (fileWriter == null && System.currentTimeMillis() < retryFileAt) {
+            return;
+        }
+        try {
+            if (fileWriter == null) {
+                //noinspection ResultOfMethodCallIgnored
+                logDir.mkdirs();
+                fileSize = logFile.length();
+                fileWriter = new OutputStreamWriter(new FileOutputStream(logFile, true), StandardCharsets.UTF_8);
+            }
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            if (fileSize + bytes.length > MAX_FILE_SIZE && fileSize > 0) {
+                rotate();
+            }
+            fileWriter.write(text);
+            fileSize += bytes.length;
+        } catch (IOException e) {
+            closeFile(e);
+        }
+    }
+
+    private static void rotate() throws IOException {
+        fileWriter.close();
+        File oldest = new File(logDir, "blobsaver." + MAX_OLD_FILES + ".log");
+        //noinspection ResultOfMethodCallIgnored
+        oldest.delete();
+        for (int i = MAX_OLD_FILES - 1; i >= 1; i--) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(logDir, "blobsaver." + i + ".log").renameTo(new File(logDir, "blobsaver." + (i + 1) + ".log"));
+        }
+        //noinspection ResultOfMethodCallIgnored
+        logFile.renameTo(new File(logDir, "blobsaver.1.log"));
+        fileWriter = new OutputStreamWriter(new FileOutputStream(logFile, true), StandardCharsets.UTF_8);
+        fileSize = 0;
+    }
+
+    /**
+     * Stops writing to the file for a minute, so that a log folder that can't be written to doesn't print an error
+     * for every message.
+     */
+    private static void closeFile(IOException e) {
+        System.out.println("Unable to write to log file " + logFile);
+        e.printStackTrace();
+        try {
+            if (fileWriter != null) {
+                fileWriter.close();
+            }
+        } catch (IOException ignored) {
+        }
+        fileWriter = null;
+        retryFileAt = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+    }
+}
@@ -21,6 +21,8 @@ package com.airsquared.blobsaver;
 import com.sun.javafx.PlatformUtil;
 import it.sauronsoftware.junique.AlreadyLockedException;
 import it.sauronsoftware.junique.JUnique;
+import javafx.animation.AnimationTimer;
+import javafx.animation.PauseTransition;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
@@ -28,11 +30,15 @@ import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.image.Image;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 import me.matetoes.libdockvisibility.DockVisibility;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.prefs.Preferences;
 
+import static com.airsquared.blobsaver.Shared.checkForUpdates;
+
 public class Main {
 
     static final Version appVersion = new Version("2.3.1");
@@ -40,6 +46,13 @@ public class Main {
     private static final String appID = "com.airsquared.blobsaver";
     static Stage primaryStage;
 
+    /**
+     * How long the window has to stay hidden in the background before it's released. This is longer than the
+     * lifetime of the notifications, so they've already gone away by then.
+     */
+    private static final Duration RELEASE_WINDOW_DELAY = Duration.minutes(1);
+    private static PauseTransition releaseWindowTimer;
+
     /**
      * Enables a menu item in the system tray to activate a breakpoint when in background and
      * replaces the question mark help labels with activating a breakpoint instead.
@@ -47,13 +60,40 @@ public class Main {
      */
     static final boolean SHOW_BREAKPOINT = true;
 
+    /**
+     * Set with the {@code --exit-after-startup} argument, which quits as soon as the first window has been drawn and
+     * the startup warm up is done, without checking for updates or starting the background. This is what the class
+     * data sharing training run and the startup benchmark launch.
+     */
+    private static boolean exitAfterStartup = false;
+
     public static void main(String[] args) {
+        StartupTimer.mark("main");
+        if (args.length > 0 && args[0].equals("--migrate-blobs")) {
+            System.exit(BlobLayout.migrateFromCommandLine(args));
+        }
+        if (args.length > 0 && args[0].equals("--blob-archive")) {
+            System.exit(BlobArchive.fromCommandLine(args));
+        }
+        if (args.length > 0 && args[0].equals("--validate-blobs")) {
+            System.exit(BlobValidator.fromCommandLine(args));
+        }
+        if (args.length > 0 && args[0].equals("--blob-manifest")) {
+            System.exit(BlobManifest.fromCommandLine(args));
+        }
+        exitAfterStartup = Arrays.asList(args).contains("--exit-after-startup");
         try {
             JUnique.acquireLock(appID);
         } catch (AlreadyLockedException e) {
             javax.swing.JOptionPane.showMessageDialog(null, "blobsaver already running, exiting");
             System.exit(-1);
         }
+        StartupTimer.mark("lock");
+        runInBackground("startup preload", () -> {
+            DeviceCatalog.get(); // the device choice box needs this, so load it while JavaFX is starting
+            Metrics.init();
+            DeviceCatalog.refreshIfStale();
+        });
         try {
             Class.forName("javafx.application.Application");
             if (PlatformUtil.isMac() || PlatformUtil.isWindows() || PlatformUtil.isLinux()) {
@@ -74,7 +114,98 @@ public class Main {
         }
     }
 
+    /**
+     * Does the parts of startup that the first window doesn't need, so that they don't slow it down and so that
+     * they've already been done when they are needed.
+     */
+    private static void warmUp() {
+        try {
+            Shared.getTsschecker();
+        } catch (IOException e) {
+            Log.error("unable to extract tsschecker", e);
+        }
+        if (PlatformUtil.isMac() || PlatformUtil.isWindows()) {
+            try {
+                Shared.getLibimobiledeviceFolder();
+            } catch (IOException e) {
+                Log.error("unable to extract libimobiledevice", e);
+            }
+        }
+        FirmwareStore.get();
+    }
+
+    private static void runInBackground(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Loads the FXML and sets up a new scene for the primary stage. The {@link Controller} it creates reads
+     * everything it needs from the preferences, so nothing is lost when the window is rebuilt after being released.
+     */
+    private static void createScene() throws IOException {
+        Parent root = FXMLLoader.load(Main.class.getResource("blobsaver.fxml"));
+        StartupTimer.mark("fxml loaded");
+        primaryStage.setScene(new Scene(root));
+        primaryStage.getScene().getStylesheets().add(Main.class.getResource("app.css").toExternalForm());
+        Controller.afterStageShowing();
+    }
+
+    /**
+     * Drops the scene graph, the {@link Controller}, and the debug log window, so that blobsaver uses as little
+     * memory as possible while it's only running in the background. They are rebuilt by {@link #showStage()}.
+     * Must be called on the JavaFX application thread. Nothing is released while blobs are being saved from the
+     * window, it's released once they're done instead.
+     */
+    static void releaseWindow() {
+        if (primaryStage.isShowing() || primaryStage.getScene() == null) {
+            return;
+        } else if (Controller.INSTANCE != null && Controller.INSTANCE.isSaving()) {
+            Log.info("not releasing window, blobs are being saved");
+            return;
+        }
+        long residentBefore = Metrics.residentMemoryBytes();
+        long heapBefore = Metrics.heapCommittedBytes();
+        primaryStage.setScene(null);
+        Controller.INSTANCE = null;
+        DebugWindow.release();
+        System.gc(); // a full collection is also what lets the JVM give unused heap back to the OS
+        Log.info("released window", "residentBeforeMb", residentBefore >> 20, "residentAfterMb",
+                Metrics.residentMemoryBytes() >> 20, "heapBeforeMb", heapBefore >> 20,
+                "heapAfterMb", Metrics.heapCommittedBytes() >> 20);
+    }
+
+    /**
+     * Releases the window after {@link #RELEASE_WINDOW_DELAY}, unless it's shown again before then.
+     * Must be called on the JavaFX application thread.
+     */
+    static void releaseWindowLater() {
+        if (releaseWindowTimer == null) {
+            releaseWindowTimer = new PauseTransition(RELEASE_WINDOW_DELAY);
+            releaseWindowTimer.setOnFinished(event -> {
+                if (Background.inBackground) {
+                    releaseWindow();
+                }
+            });
+        }
+        releaseWindowTimer.playFromStart();
+    }
+
     static void showStage() {
+        if (releaseWindowTimer != null) {
+            releaseWindowTimer.stop();
+        }
+        if (primaryStage.getScene() == null) {
+            try {
+                createScene();
+            } catch (IOException e) {
+                Log.error("unable to rebuild the window", e);
+                return;
+            }
+            Log.info("rebuilt window", "residentMb", Metrics.residentMemoryBytes() >> 20);
+        }
         if (PlatformUtil.isMac()) {
             DockVisibility.show();
         }
@@ -88,6 +219,9 @@ public class Main {
         if (PlatformUtil.isMac()) {
             DockVisibility.hide();
         }
+        if (Background.inBackground) {
+            releaseWindowLater();
+        }
     }
 
     public static class JavaFxApplication extends Application {
@@ -98,11 +232,10 @@ public class Main {
 
         @Override
         public void start(Stage primaryStage) throws IOException {
+            StartupTimer.mark("javafx started");
             Main.primaryStage = primaryStage;
-            Parent root = FXMLLoader.load(getClass().getResource("blobsaver.fxml"));
+            createScene();
             primaryStage.setTitle("blobsaver " + Main.appVersion);
-            primaryStage.setScene(new Scene(root));
-            primaryStage.getScene().getStylesheets().add(getClass().getResource("app.css").toExternalForm());
             if (PlatformUtil.isMac()) { // setup the dock icon
                 com.apple.eawt.Application.getApplication().setDockIconImage(javax.imageio.ImageIO.read(getClass().getResourceAsStream("blob_emoji.png")));
             } else {
@@ -110,10 +243,32 @@ public class Main {
                 primaryStage.getIcons().add(new Image(getClass().getResourceAsStream("blob_emoji.png")));
             }
             primaryStage.setResizable(false);
-            Controller.afterStageShowing();
             Platform.setImplicitExit(false);
             showStage();
-            if (appPrefs.getBoolean("Start background immediately", false)) {
+            StartupTimer.mark("stage shown");
+            new AnimationTimer() {
+                private int frames = 0;
+
+                @Override
+                public void handle(long now) {
+                    // this is called before each frame is drawn, so the first one has been drawn by the second call
+                    if (++frames < 2) {
+                        return;
+                    }
+                    stop();
+                    StartupTimer.firstWindowShown();
+                    if (exitAfterStartup) {
+                        runInBackground("startup warm up", () -> {
+                            warmUp();
+                            Platform.runLater(Platform::exit);
+                        });
+                        return;
+                    }
+                    checkForUpdates(false);
+                    runInBackground("startup warm up", Main::warmUp);
+                }
+            }.start();
+            if (appPrefs.getBoolean("Start background immediately", false) && !exitAfterStartup) {
                 /* I have to show the stage then hide it again in Platform.runLater() otherwise
                  * the needed initialization code won't run at the right time when starting the background
                  * (for example, the macOS menu bar won't work properly if I don't do this)
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * BuildManifests from .ipsw files, saved in {@code ~/.blobsaver_bin/manifests}. tsschecker normally finds the
+ * manifest through ipsw.me, so when ipsw.me is down it is given one of these with {@code -m} instead. The .ipsw
+ * itself is on Apple's servers, so the manifest can still be downloaded while ipsw.me is down.
+ */
+class ManifestCache {
+
+    /**
+     * @return the BuildManifest.plist for the firmware, downloading it if it hasn't been already
+     */
+    static File get(Firmware firmware) throws IOException {
+        if (firmware.url.isEmpty()) {
+            throw new IOException("No .ipsw URL for " + firmware);
+        }
+        File manifestsFolder = new File(Shared.getExecutablesFolder(), "manifests");
+        //noinspection ResultOfMethodCallIgnored
+        manifestsFolder.mkdirs();
+        File manifest = new File(manifestsFolder, firmware.identifier + "_" + firmware.buildId + "_BuildManifest.plist");
+        if (manifest.length() > 0) {
+            return manifest;
+        }
+        long start = System.nanoTime();
+        byte[] bytes;
+        try {
+            bytes = RemoteZip.readEntry(new URL(firmware.url), "BuildManifest.plist");
+        } finally {
+            Metrics.manifestDownload.observeSince(start);
+        }
+        // write to a temp file first so that a failed download can't leave a half written manifest
+        File tempFile = new File(manifestsFolder, manifest.getName() + ".tmp");
+        Files.write(tempFile.toPath(), bytes);
+        Files.move(tempFile.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Log.info("downloaded BuildManifest", "identifier", firmware.identifier, "version", firmware.version,
+                "build", firmware.buildId, "size", bytes.length);
+        return manifest;
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import com.sun.javafx.PlatformUtil;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms, result counters, and gauges for saving blobs.
+ * <p>
+ * Everything is registered as MBeans under the {@code com.airsquared.blobsaver} domain, so it can be viewed with
+ * JConsole or VisualVM. If the system property {@code blobsaver.metricsPort} is set, the metrics are also served
+ * in the Prometheus text format at {@code http://localhost:<port>/metrics}.
+ */
+class Metrics {
+
+    static final Histogram versionLookup = new Histogram("version_lookup", "Time to get the signed versions from ipsw.me");
+    static final Histogram manifestDownload = new Histogram("manifest_download", "Time to get the BuildManifest from an .ipsw");
+    static final Histogram processSpawn = new Histogram("process_spawn", "Time to start a tsschecker process");
+    static final Histogram tssRoundTrip = new Histogram("tss_round_trip", "Time for a tsschecker process to exit");
+    static final Histogram presetSave = new Histogram("preset_save", "Time to save all signed versions for a background preset");
+
+    private static final Histogram[] histograms = {versionLookup, manifestDownload, processSpawn, tssRoundTrip, presetSave};
+
+    private static final EnumMap<TSSCheckerResult, Counter> results = new EnumMap<>(TSSCheckerResult.class);
+
+    /**
+     * The number of presets waiting to be saved in the current background sweep.
+     */
+    static final AtomicInteger queueDepth = new AtomicInteger();
+    /**
+     * The number of tsschecker processes that are currently running.
+     */
+    static final AtomicInteger inFlight = new AtomicInteger();
+
+    private static HttpServer httpServer = null;
+
+    static {
+        for (TSSCheckerResult result : TSSCheckerResult.values()) {
+            results.put(result, new Counter());
+        }
+    }
+
+    static void countResult(TSSCheckerResult result) {
+        results.get(result).increment();
+    }
+
+    /**
+     * Registers the MBeans and starts the HTTP endpoint if it is enabled. Failures are logged and otherwise ignored,
+     * since blobsaver works fine without metrics.
+     */
+    static void init() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (Histogram histogram : histograms) {
+                server.registerMBean(histogram, new ObjectName("com.airsquared.blobsaver:type=Latency,name=" + histogram.name));
+            }
+            for (Map.Entry<TSSCheckerResult, Counter> entry : results.entrySet()) {
+                server.registerMBean(entry.getValue(), new ObjectName("com.airsquared.blobsaver:type=Result,name=" + entry.getKey()));
+            }
+            server.registerMBean(new Pipeline(), new ObjectName("com.airsquared.blobsaver:type=Pipeline"));
+        } catch (JMException e) {
+            Log.error("unable to register metrics", e);
+        }
+        Integer port = Integer.getInteger("blobsaver.metricsPort");
+        if (port != null) {
+            startHttpServer(port);
+        }
+    }
+
+    private static void startHttpServer(int port) {
+        try {
+            // only bind to localhost, these shouldn't be reachable from other machines
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException e) {
+            Log.error("unable to start metrics server", e, "port", port);
+            return;
+        }
+        httpServer.createContext("/metrics", exchange -> {
+            byte[] response = toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        });
+        httpServer.setExecutor(null); // handle requests on the server's own thread
+        httpServer.start();
+        Log.info("serving metrics on http://localhost:" + port + "/metrics");
+    }
+
+    static String toPrometheusText() {
+        StringBuilder builder = new StringBuilder();
+        for (Histogram histogram : histograms) {
+            histogram.appendPrometheusText(builder);
+        }
+        builder.append("# HELP blobsaver_tsschecker_results_total tsschecker runs by result\n")
+                .append("# TYPE blobsaver_tsschecker_results_total counter\n");
+        results.forEach((result, counter) -> builder.append("blobsaver_tsschecker_results_total{result=\"")
+                .append(result.toString().toLowerCase(Locale.ROOT)).append("\"} ").append(counter.getCount()).append('\n'));
+        builder.append("# HELP blobsaver_queue_depth Presets waiting to be saved in the current background sweep\n")
+                .append("# TYPE blobsaver_queue_depth gauge\n")
+                .append("blobsaver_queue_depth ").append(queueDepth.get()).append('\n');
+        builder.append("# HELP blobsaver_in_flight_jobs tsschecker processes that are currently running\n")
+                .append("# TYPE blobsaver_in_flight_jobs gauge\n")
+                .append("blobsaver_in_flight_jobs ").append(inFlight.get()).append('\n');
+        long resident = residentMemoryBytes();
+        if (resident >= 0) {
+            builder.append("# HELP blobsaver_resident_memory_bytes Resident set size of the process\n")
+                    .append("# TYPE blobsaver_resident_memory_bytes gauge\n")
+                    .append("blobsaver_resident_memory_bytes ").append(resident).append('\n');
+        }
+        builder.append("# HELP blobsaver_heap_committed_bytes Memory the JVM has reserved for the heap\n")
+                .append("# TYPE blobsaver_heap_committed_bytes gauge\n")
+                .append("blobsaver_heap_committed_bytes ").append(heapCommittedBytes()).append('\n');
+        return builder.toString();
+    }
+
+    /**
+     * @return how much memory the process is actually using (its resident set size), or -1 if it can't be found
+     */
+    static long residentMemoryBytes() {
+        try {
+            if (PlatformUtil.isLinux()) {
+                for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                    if (line.startsWith("VmRSS:")) { // in kB
+                        return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+                    }
+                }
+                return -1;
+            }
+            String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+            if (PlatformUtil.isMac()) { // in kB
+                return Long.parseLong(run("ps", "-o", "rss=", "-p", pid).trim()) * 1024;
+            } else if (PlatformUtil.isWindows()) { // "blobsaver.exe","1234","Console","1","45,120 K"
+                String[] columns = run("tasklist", "/FI", "PID eq " + pid, "/FO", "CSV", "/NH").trim().split("\",\"");
+                return Long.parseLong(columns[columns.length - 1].replaceAll("[^0-9]", "")) * 1024;
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.warn("unable to get resident memory", "error", e.toString());
+        }
+        return -1;
+    }
+
+    // not Shared.executeProgram(), so that these don't count towards the tsschecker metrics
+    private static String run(String... command) throws IOException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        return Shared.readProcessOutput(process, 5, TimeUnit.SECONDS);
+    }
+
+    static long heapCommittedBytes() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getCommitted();
+    }
+
+    public interface HistogramMBean {
+        long getCount();
+
+        double getMeanMillis();
+
+        long getMaxMillis();
+
+        double getP50Millis();
+
+        double getP99Millis();
+    }
+
+    /**
+     * Fixed-bucket latency histogram. Recording is lock-free, so it can be called from any thread.
+     */
+    static class Histogram implements HistogramMBean {
+
+        // upper bounds of the buckets in milliseconds, the last bucket is everything bigger
+        private static final long[] BOUNDS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000};
+
+        private final String name;
+        private final String help;
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumMillis = new LongAdder();
+        private volatile long maxMillis = 0;
+
+        Histogram(String name, String help) {
+            this.name = name;
+            this.help = help;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * @param startNanos the value of {@link System#nanoTime()} when the measured operation started
+         */
+        void observeSince(long startNanos) {
+            observe(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+
+        void observe(long millis) {
+            int i = 0;
+            while (i < BOUNDS.length && millis > BOUNDS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            count.increment();
+            sumMillis.add(millis);
+            if (millis > maxMillis) {
+                maxMillis = millis; // racy, but only ever off by one observation
+            }
+        }
+
+        @Override
+        public long getCount() { return count.sum(); }
+
+        @Override
+        public double getMeanMillis() {
+            long count = getCount();
+            return count == 0 ? 0 : (double) sumMillis.sum() / count;
+        }
+
+        @Override
+        public long getMaxMillis() { return maxMillis; }
+
+        @Override
+        public double getP50Millis() { return quantile(0.5); }
+
+        @Override
+        public double getP99Millis() { return quantile(0.99); }
+
+        /**
+         * @return the upper bound of the bucket containing the quantile, or the max if it's in the last bucket
+         */
+        double quantile(double q) {
+            long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(q * count);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank) {
+                    return Math.min(BOUNDS[i], maxMillis);
+                }
+            }
+            return maxMillis;
+        }
+
+        void appendPrometheusText(StringBuilder builder) {
+            String metric = "blobsaver_" + name + "_seconds";
+            builder.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+            builder.append("# TYPE ").append(metric).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                cumulative += buckets[i].sum();
+                builder.append(metric).append("_bucket{le=\"").append(BOUNDS[i] / 1000.0).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += buckets[BOUNDS.length].sum();
+            builder.append(metric).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            builder.append(metric).append("_sum ").append(sumMillis.sum() / 1000.0).append('\n');
+            builder.append(metric).append("_count ").append(cumulative).append('\n');
+        }
+    }
+
+    public interface CounterMBean {
+        long getCount();
+    }
+
+    static class Counter implements CounterMBean {
+
+        private final LongAdder count = new LongAdder();
+
+        void increment() { count.increment(); }
+
+        @Override
+        public long getCount() { return count.sum(); }
+    }
+
+    public interface PipelineMBean {
+        int getQueueDepth();
+
+        int getInFlightJobs();
+
+        long getResidentMemoryBytes();
+
+        long getHeapCommittedBytes();
+    }
+
+    static class Pipeline implements PipelineMBean {
+
+        @Override
+        public int getQueueDepth() { return queueDepth.get(); }
+
+        @Override
+        public int getInFlightJobs() { return inFlight.get(); }
+
+        @Override
+        public long getResidentMemoryBytes() { return residentMemoryBytes(); }
+
+        @Override
+        public long getHeapCommittedBytes() { return heapCommittedBytes(); }
+    }
+}
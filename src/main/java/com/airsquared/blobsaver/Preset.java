@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.prefs.Preferences;
+
+import static com.airsquared.blobsaver.Main.appPrefs;
+
+/**
+ * The values of a saved preset, read once so that they can be used off the JavaFX application thread.
+ */
+class Preset {
+
+    final int number;
+    final String name;
+    /**
+     * The device model from the device picker, or "none" if the identifier was specified manually.
+     */
+    final String deviceModel;
+    final String deviceIdentifier;
+    final String ecid;
+    final String path;
+    /**
+     * The board config, or "none" if the device doesn't need one.
+     */
+    final String boardConfig;
+    /**
+     * Apnonces separated by commas or spaces, or empty to use the generators.
+     */
+    final String apnonce;
+    /**
+     * Generators separated by commas or spaces, or empty for just {@link NonceSet#DEFAULT_GENERATOR}.
+     */
+    final String generators;
+
+    Preset(int number, String name, String deviceModel, String deviceIdentifier, String ecid, String path,
+           String boardConfig, String apnonce) {
+        this(number, name, deviceModel, deviceIdentifier, ecid, path, boardConfig, apnonce, "");
+    }
+
+    Preset(int number, String name, String deviceModel, String deviceIdentifier, String ecid, String path,
+           String boardConfig, String apnonce, String generators) {
+        this.number = number;
+        this.name = name;
+        this.deviceModel = deviceModel;
+        this.deviceIdentifier = deviceIdentifier;
+        this.ecid = ecid;
+        this.path = path;
+        this.boardConfig = boardConfig;
+        this.apnonce = apnonce;
+        this.generators = generators;
+    }
+
+    static Preset load(int number) {
+        Preferences presetPrefs = Preferences.userRoot().node("airsquared/blobsaver/preset" + number);
+        String name = appPrefs.get("Name Preset" + number, "");
+        return new Preset(number, "".equals(name) ? "Preset " + number : name,
+                presetPrefs.get("Device Model", ""), presetPrefs.get("Device Identifier", ""),
+                presetPrefs.get("ECID", ""), presetPrefs.get("Path", ""), presetPrefs.get("Board Config", ""),
+                presetPrefs.get("Apnonce", ""), presetPrefs.get("Generators", ""));
+    }
+
+    /**
+     * @return the device identifier, or {@code null} if the device model could not be found
+     */
+    String getIdentifier() {
+        if ("none".equals(deviceModel)) {
+            return deviceIdentifier;
+        } else {
+            return Shared.textToIdentifier(deviceModel);
+        }
+    }
+
+    List<NonceSet> getNonceSets() {
+        return NonceSet.combine(generators, apnonce, getIdentifier());
+    }
+
+    boolean needsBoardConfig() {
+        return !"none".equals(boardConfig) && !"".equals(boardConfig);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * The generator and apnonce to give tsschecker for one request. Each is saved separately, so a preset with more
+     * than one is saved with a batch of requests for each version.
+     */
+    static final class NonceSet {
+        static final String DEFAULT_GENERATOR = "0x1111111111111111";
+
+        final String generator;
+        /**
+         * {@code null} to let tsschecker get the apnonce from the generator
+         */
+        final String apnonce;
+
+        NonceSet(String generator, String apnonce) {
+            this.generator = generator;
+            this.apnonce = apnonce;
+        }
+
+        /**
+         * An apnonce that one of the generators gives (like ones filled in from {@link ApnonceEngine}) is only
+         * saved with that generator, since it wouldn't match any of the others.
+         *
+         * @param generators generators separated by commas or spaces, or empty for {@link #DEFAULT_GENERATOR}
+         * @param apnonces   apnonces separated by commas or spaces, or empty for none
+         * @param identifier the device, to work out which apnonces go with which generator, or {@code null}
+         * @return every combination of a generator and an apnonce, or one for each generator if there are no apnonces
+         */
+        static List<NonceSet> combine(String generators, String apnonces, String identifier) {
+            List<String> generatorList = split(generators);
+            if (generatorList.isEmpty()) {
+                generatorList.add(DEFAULT_GENERATOR);
+            }
+            List<String> apnonceList = split(apnonces);
+            Map<String, String> paired = identifier == null || apnonceList.isEmpty()
+                    ? Collections.emptyMap() : ApnonceEngine.apnoncesIfKnown(generatorList, identifier);
+            Collection<String> claimed = paired.values();
+            List<NonceSet> nonceSets = new ArrayList<>();
+            for (String generator : generatorList) {
+                boolean added = false;
+                for (String apnonce : apnonceList) {
+                    String normalized = ApnonceEngine.normalizeApnonce(apnonce);
+                    if (!claimed.contains(normalized) || normalized.equals(paired.get(generator))) {
+                        nonceSets.add(new NonceSet(generator, apnonce));
+                        added = true;
+                    }
+                }
+                if (!added) {
+                    nonceSets.add(new NonceSet(generator, null));
+                }
+            }
+            return nonceSets;
+        }
+
+        private static List<String> split(String list) {
+            List<String> values = new ArrayList<>();
+            for (String value : list.trim().split("[,\\s]+")) {
+                if (!value.isEmpty() && !values.contains(value)) {
+                    values.add(value);
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public String toString() {
+            return "generator " + generator + (apnonce == null ? "" : ", apnonce " + apnonce);
+        }
+    }
+}
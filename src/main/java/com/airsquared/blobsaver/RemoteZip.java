@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a single file out of a zip on a web server with HTTP range requests, without downloading the whole zip.
+ * An .ipsw is a few GB, but the BuildManifest.plist in it is only a few hundred KB.
+ * <p>
+ * Only the parts of the zip format that are needed for this are supported: the end of central directory record
+ * (including Zip64, since most .ipsw files are bigger than 4 GB), the central directory, and stored or deflated
+ * entries.
+ */
+class RemoteZip {
+
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR = 0x07064b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+    private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50;
+    private static final int LOCAL_FILE_HEADER = 0x04034b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    /**
+     * @throws IOException if the entry isn't in the zip, the server doesn't support range requests, or the zip
+     *                     can't be read
+     */
+    static byte[] readEntry(URL url, String entryName) throws IOException {
+        // the end of central directory record is at the end of the file, followed by a comment of up to 64 KB
+        byte[] tail = readRange(url, "bytes=-" + (END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_LENGTH));
+        int end = -1;
+        for (int i = tail.length - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+            if (int32(tail, i) == END_OF_CENTRAL_DIRECTORY) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            throw new IOException("Not a zip file: " + url);
+        }
+        long centralDirectorySize = uint32(tail, end + 12);
+        long centralDirectoryOffset = uint32(tail, end + 16);
+        if (centralDirectorySize == ZIP64_MAGIC || centralDirectoryOffset == ZIP64_MAGIC) {
+            int locator = end - 20;
+            if (locator < 0 || int32(tail, locator) != ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR) {
+                throw new IOException("Zip64 end of central directory locator is missing: " + url);
+            }
+            long zip64EndOffset = int64(tail, locator + 8);
+            byte[] zip64End = readRange(url, zip64EndOffset, 56);
+            if (int32(zip64End, 0) != ZIP64_END_OF_CENTRAL_DIRECTORY) {
+                throw new IOException("Invalid Zip64 end of central directory: " + url);
+            }
+            centralDirectorySize = int64(zip64End, 40);
+            centralDirectoryOffset = int64(zip64End, 48);
+        }
+        if (centralDirectorySize > Integer.MAX_VALUE) {
+            throw new IOException("Central directory is too big: " + url);
+        }
+
+        byte[] centralDirectory = readRange(url, centralDirectoryOffset, (int) centralDirectorySize);
+        byte[] nameBytes = entryName.getBytes(StandardCharsets.UTF_8);
+        int i = 0;
+        while (i + 46 <= centralDirectory.length && int32(centralDirectory, i) == CENTRAL_DIRECTORY_HEADER) {
+            int nameLength = uint16(centralDirectory, i + 28);
+            int extraLength = uint16(centralDirectory, i + 30);
+            int commentLength = uint16(centralDirectory, i + 32);
+            if (nameMatches(centralDirectory, i + 46, nameLength, nameBytes)) {
+                int method = uint16(centralDirectory, i + 10);
+                long compressedSize = uint32(centralDirectory, i + 20);
+                long uncompressedSize = uint32(centralDirectory, i + 24);
+                long localHeaderOffset = uint32(centralDirectory, i + 42);
+                // the Zip64 extra field only has the values that didn't fit, in this order
+                int extra = i + 46 + nameLength;
+                int extraEnd = extra + extraLength;
+                while (extra + 4 <= extraEnd) {
+                    int id = uint16(centralDirectory, extra);
+                    int size = uint16(centralDirectory, extra + 2);
+                    if (id == 0x0001) {
+                        int field = extra + 4;
+                        if (uncompressedSize == ZIP64_MAGIC) {
+                            uncompressedSize = int64(centralDirectory, field);
+                            field += 8;
+                        }
+                        if (compressedSize == ZIP64_MAGIC) {
+                            compressedSize = int64(centralDirectory, field);
+                            field += 8;
+                        }
+                        if (localHeaderOffset == ZIP64_MAGIC) {
+                            localHeaderOffset = int64(centralDirectory, field);
+                        }
+                    }
+                    extra += 4 + size;
+                }
+                return readLocalEntry(url, localHeaderOffset, method, compressedSize, uncompressedSize);
+            }
+            i += 46 + nameLength + extraLength + commentLength;
+        }
+        throw new IOException(entryName + " is not in " + url);
+    }
+
+    private static byte[] readLocalEntry(URL url, long offset, int method, long compressedSize, long uncompressedSize) throws IOException {
+        if (compressedSize > Integer.MAX_VALUE || uncompressedSize > Integer.MAX_VALUE) {
+            throw new IOException("Entry is too big: " + url);
+        }
+        byte[] localHeader = readRange(url, offset, 30);
+        if (int32(localHeader, 0) != LOCAL_FILE_HEADER) {
+            throw new IOException("Invalid local file header: " + url);
+        }
+        // the local extra field can be different from the one in the central directory
+        long dataOffset = offset + 30 + uint16(localHeader, 26) + uint16(localHeader, 28);
+        byte[] data = readRange(url, dataOffset, (int) compressedSize);
+        if (method == 0) {
+            return data;
+        } else if (method != 8) {
+            throw new IOException("Unsupported compression method " + method + ": " + url);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            byte[] uncompressed = new byte[(int) uncompressedSize];
+            int length = 0;
+            while (length < uncompressed.length && !inflater.finished()) {
+                int read = inflater.inflate(uncompressed, length, uncompressed.length - length);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated entry: " + url);
+                }
+                length += read;
+            }
+            return uncompressed;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed data: " + url, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] readRange(URL url, long offset, int length) throws IOException {
+        byte[] bytes = readRange(url, "bytes=" + offset + "-" + (offset + length - 1));
+        if (bytes.length != length) {
+            throw new IOException("Expected " + length + " bytes but got " + bytes.length + ": " + url);
+        }
+        return bytes;
+    }
+
+    private static byte[] readRange(URL url, String range) throws IOException {
+        URLConnection connection = Shared.openConnection(url);
+        connection.setRequestProperty("Range", range);
+        if (connection instanceof HttpURLConnection && ((HttpURLConnection) connection).getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+            ((HttpURLConnection) connection).disconnect();
+            throw new IOException("Server doesn't support range requests: " + url);
+        }
+        try (InputStream input = connection.getInputStream()) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        }
+    }
+
+    private static boolean nameMatches(byte[] bytes, int offset, int length, byte[] name) {
+        if (length != name.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int uint16(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int int32(byte[] bytes, int offset) {
+        return uint16(bytes, offset) | uint16(bytes, offset + 2) << 16;
+    }
+
+    private static long uint32(byte[] bytes, int offset) {
+        return int32(bytes, offset) & 0xFFFFFFFFL;
+    }
+
+    private static long int64(byte[] bytes, int offset) {
+        return uint32(bytes, offset) | uint32(bytes, offset + 4) << 32;
+    }
+}
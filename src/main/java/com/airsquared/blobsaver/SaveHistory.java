@@ -0,0 +1,537 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A history of every save attempt, in {@code ~/.blobsaver_bin/history/}, so that questions like "when was each
+ * device last saved successfully" or "how slow has tsschecker been this week" can be answered without going through
+ * the logs.
+ * <p>
+ * {@code attempts.db} has one fixed size record per attempt and is only ever appended to. Two indexes are built
+ * from it and kept up to date as attempts are recorded, both memory-mapped so that queries don't have to read the
+ * attempts at all:
+ * <ul>
+ * <li>{@code hours.idx} has an entry for every hour since the first attempt, with the number of attempts and a
+ * histogram of how long tsschecker took</li>
+ * <li>{@code devices.idx} has an entry for every ECID, with its last attempt and last successful attempt</li>
+ * </ul>
+ * Each index remembers how many attempts it has indexed, so if blobsaver quits before an index is written, it
+ * catches up the next time it is opened. If an index is unreadable, it is rebuilt from the attempts.
+ * <p>
+ * Like {@link JobJournal}, the history isn't needed to save blobs, so if it can't be read or written, the problem is
+ * logged and recording does nothing.
+ */
+class SaveHistory {
+
+    private static final int MAGIC = 0x42534841; // "BSHA"
+    private static final int HOURS_MAGIC = 0x42534848; // "BSHH"
+    private static final int DEVICES_MAGIC = 0x42534844; // "BSHD"
+    private static final short FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    // attempt records
+    static final int RECORD_SIZE = 64;
+    private static final int TIMESTAMP = 0, ECID = 8, PRESET = 16, RESULT = 20, FLAGS = 21, LOOKUP_MILLIS = 24,
+            TSS_MILLIS = 28, DURATION_MILLIS = 32, BYTES_WRITTEN = 36, IDENTIFIER = 40, VERSION = 52;
+    private static final int TEXT_SIZE = 12;
+    private static final byte STALE = 1;
+
+    /**
+     * Upper bounds of the tsschecker time histogram buckets in milliseconds, each 25% bigger than the last, from 10ms
+     * up to about 50 minutes. The last bucket is for everything longer.
+     */
+    static final long[] LATENCY_BOUNDS = new long[56];
+
+    static {
+        double bound = 10;
+        for (int i = 0; i < LATENCY_BOUNDS.length; i++) {
+            LATENCY_BOUNDS[i] = Math.round(bound);
+            bound *= 1.25;
+        }
+    }
+
+    // both indexes: magic, version, indexed attempts, then base hour (hours) or device count (devices)
+    private static final int INDEX_HEADER_SIZE = 32;
+    private static final int INDEXED = 8, EXTRA = 16;
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+    // attempts, saved, failed, histogram
+    private static final int HOUR_ENTRY_SIZE = 4 * (3 + LATENCY_BOUNDS.length + 1);
+    // ecid, last attempt, last success, attempts
+    private static final int DEVICE_ENTRY_SIZE = 8 + 8 + 8 + 8;
+    private static final long NONE = -1;
+
+    private static volatile SaveHistory instance;
+
+    private final File folder;
+    private FileChannel attempts;
+    private long size;
+
+    private FileChannel hoursChannel, devicesChannel;
+    private MappedByteBuffer hours, devices;
+    /**
+     * ECID to device index entry. The index itself is a flat array, so this is built when it's opened.
+     */
+    private final Map<Long, Integer> deviceEntries = new HashMap<>();
+
+    private SaveHistory(File folder) {
+        this.folder = folder;
+    }
+
+    static SaveHistory get() {
+        SaveHistory history = instance;
+        if (history == null) {
+            synchronized (SaveHistory.class) {
+                if (instance == null) {
+                    File folder = null;
+                    try {
+                        folder = new File(Shared.getExecutablesFolder(), "history");
+                    } catch (IOException e) {
+                        Log.error("unable to get the executables folder, save attempts won't be recorded", e);
+                    }
+                    instance = open(folder);
+                }
+                history = instance;
+            }
+        }
+        return history;
+    }
+
+    static SaveHistory open(File folder) {
+        SaveHistory history = new SaveHistory(folder);
+        if (folder != null) {
+            try {
+                history.load();
+            } catch (IOException | RuntimeException e) {
+                Log.error("unable to open save history, save attempts won't be recorded", e, "folder", folder);
+                history.closeQuietly();
+            }
+        }
+        return history;
+    }
+
+    private void load() throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        folder.mkdirs();
+        attempts = FileChannel.open(new File(folder, "attempts.db").toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (attempts.read(header, 0) < HEADER_SIZE || header.getInt(0) != MAGIC || header.getShort(4) != FORMAT_VERSION) {
+            if (attempts.size() > 0) {
+                Log.warn("ignoring save history from a different version", "folder", folder);
+            }
+            attempts.truncate(0);
+            header.clear();
+            header.putInt(MAGIC).putShort(FORMAT_VERSION).position(HEADER_SIZE);
+            header.flip();
+            attempts.write(header, 0);
+        }
+        size = (attempts.size() - HEADER_SIZE) / RECORD_SIZE;
+        long validEnd = HEADER_SIZE + size * RECORD_SIZE;
+        if (validEnd < attempts.size()) {
+            Log.warn("cutting off an incomplete save history record", "folder", folder,
+                    "bytes", attempts.size() - validEnd);
+            attempts.truncate(validEnd);
+        }
+
+        hoursChannel = openIndex("hours.idx");
+        hours = openIndex(hoursChannel, HOURS_MAGIC, HOUR_ENTRY_SIZE);
+        devicesChannel = openIndex("devices.idx");
+        devices = openIndex(devicesChannel, DEVICES_MAGIC, DEVICE_ENTRY_SIZE);
+        for (int i = 0; i < devices.getInt(EXTRA); i++) {
+            deviceEntries.put(devices.getLong(deviceEntry(i)), i);
+        }
+        catchUp();
+    }
+
+    private FileChannel openIndex(String name) throws IOException {
+        return FileChannel.open(new File(folder, name).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Maps the index, starting it over if it's from a different version or has indexed attempts that aren't there
+     * anymore (if {@code attempts.db} was deleted or cut off).
+     */
+    private MappedByteBuffer openIndex(FileChannel channel, int magic, int entrySize) throws IOException {
+        long fileSize = Math.max(channel.size(), INDEX_HEADER_SIZE + 64L * entrySize);
+        MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        if (index.getInt(0) != magic || index.getShort(4) != FORMAT_VERSION || index.getLong(INDEXED) > size
+                || index.getLong(INDEXED) < 0) {
+            if (index.getInt(0) != 0) {
+                Log.warn("rebuilding save history index", "folder", folder, "magic", Integer.toHexString(magic));
+            }
+            for (int i = 0; i < index.capacity(); i += 8) {
+                index.putLong(i, 0);
+            }
+            index.putInt(0, magic).putShort(4, FORMAT_VERSION).putLong(INDEXED, 0);
+            index.putLong(EXTRA, magic == HOURS_MAGIC ? NONE : 0);
+        }
+        return index;
+    }
+
+    /**
+     * Indexes the attempts that are in {@code attempts.db} but that one or both of the indexes haven't seen yet.
+     */
+    private void catchUp() throws IOException {
+        long from = Math.min(hours.getLong(INDEXED), devices.getLong(INDEXED));
+        if (from == size) {
+            return;
+        }
+        long start = System.nanoTime();
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 256);
+        for (long record = from; record < size; ) {
+            buffer.clear();
+            int count = (int) Math.min(256, size - record);
+            buffer.limit(count * RECORD_SIZE);
+            readFully(buffer, HEADER_SIZE + record * RECORD_SIZE);
+            for (int i = 0; i < count; i++, record++) {
+                ByteBuffer slice = slice(buffer, i * RECORD_SIZE);
+                if (record >= hours.getLong(INDEXED)) {
+                    indexHour(slice, record);
+                }
+                if (record >= devices.getLong(INDEXED)) {
+                    indexDevice(slice, record);
+                }
+            }
+        }
+        Log.info("caught up save history indexes", "attempts", size - from, "duration",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset).limit(offset + RECORD_SIZE);
+        return slice.slice();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (attempts.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of save history");
+            }
+        }
+        buffer.flip();
+    }
+
+    synchronized void record(SaveResult result) {
+        if (attempts == null) {
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putLong(TIMESTAMP, result.timestamp)
+                .putLong(ECID, Shared.parseEcid(result.preset.ecid))
+                .putInt(PRESET, result.preset.number)
+                .put(RESULT, (byte) result.result.ordinal())
+                .put(FLAGS, result.isBasedOnStaleMetadata() ? STALE : 0)
+                .putInt(LOOKUP_MILLIS, clamp(result.lookupMillis))
+                .putInt(TSS_MILLIS, clamp(result.tssMillis))
+                .putInt(DURATION_MILLIS, clamp(result.durationMillis))
+                .putInt(BYTES_WRITTEN, clamp(result.bytesWritten));
+        putText(record, IDENTIFIER, result.preset.getIdentifier());
+        putText(record, VERSION, result.version);
+        try {
+            while (record.hasRemaining()) {
+                attempts.write(record, HEADER_SIZE + size * RECORD_SIZE + record.position());
+            }
+            indexHour(record, size);
+            indexDevice(record, size);
+            size++;
+        } catch (IOException | RuntimeException e) {
+            Log.error("unable to record save attempt, save attempts won't be recorded anymore", e, "folder", folder);
+            closeQuietly();
+        }
+    }
+
+    private static int clamp(long value) {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, value));
+    }
+
+    private static void putText(ByteBuffer record, int offset, String text) {
+        if (text != null) {
+            byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+            for (int i = 0; i < Math.min(bytes.length, TEXT_SIZE); i++) {
+                record.put(offset + i, bytes[i]);
+            }
+        }
+    }
+
+    private static String getText(ByteBuffer record, int offset) {
+        int length = 0;
+        while (length < TEXT_SIZE && record.get(offset + length) != 0) {
+            length++;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = record.get(offset + i);
+        }
+        return length == 0 ? null : new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private void indexHour(ByteBuffer record, long recordNumber) throws IOException {
+        long hour = record.getLong(TIMESTAMP) / HOUR_MILLIS;
+        long baseHour = hours.getLong(EXTRA);
+        if (baseHour == NONE) {
+            baseHour = hour;
+            hours.putLong(EXTRA, hour);
+        }
+        // the clock could have gone backwards, there's nowhere before the first hour to put it
+        long entry = hourEntry(Math.max(0, hour - baseHour));
+        hours = ensureCapacity(hoursChannel, hours, entry + HOUR_ENTRY_SIZE);
+        int position = (int) entry;
+        TSSCheckerResult result = TSSCheckerResult.values()[record.get(RESULT)];
+        increment(hours, position);
+        if (result == TSSCheckerResult.SAVED) {
+            increment(hours, position + 4);
+        } else if (result != TSSCheckerResult.NOT_SIGNED) {
+            increment(hours, position + 8);
+        }
+        int tssMillis = record.getInt(TSS_MILLIS);
+        if (tssMillis > 0) {
+            increment(hours, position + 12 + 4 * bucket(tssMillis));
+        }
+        hours.putLong(INDEXED, recordNumber + 1);
+    }
+
+    private void indexDevice(ByteBuffer record, long recordNumber) throws IOException {
+        long ecid = record.getLong(ECID);
+        Integer index = deviceEntries.get(ecid);
+        if (index == null) {
+            index = devices.getInt(EXTRA);
+            devices = ensureCapacity(devicesChannel, devices, deviceEntry(index) + DEVICE_ENTRY_SIZE);
+            devices.putLong(deviceEntry(index), ecid)
+                    .putLong(deviceEntry(index) + 16, NONE);
+            devices.putInt(EXTRA, index + 1);
+            deviceEntries.put(ecid, index);
+        }
+        int position = deviceEntry(index);
+        devices.putLong(position + 8, recordNumber);
+        if (TSSCheckerResult.values()[record.get(RESULT)] == TSSCheckerResult.SAVED) {
+            devices.putLong(position + 16, recordNumber);
+        }
+        devices.putLong(position + 24, devices.getLong(position + 24) + 1);
+        devices.putLong(INDEXED, recordNumber + 1);
+    }
+
+    private static void increment(ByteBuffer index, int position) {
+        index.putInt(position, index.getInt(position) + 1);
+    }
+
+    private static long hourEntry(long hour) {
+        return INDEX_HEADER_SIZE + hour * HOUR_ENTRY_SIZE;
+    }
+
+    private static int deviceEntry(int index) {
+        return INDEX_HEADER_SIZE + index * DEVICE_ENTRY_SIZE;
+    }
+
+    /**
+     * Mappings can't grow, so the file is mapped again, at least twice as big, once an entry would go past the end.
+     */
+    private static MappedByteBuffer ensureCapacity(FileChannel channel, MappedByteBuffer index, long needed)
+            throws IOException {
+        if (needed <= index.capacity()) {
+            return index;
+        }
+        long newSize = Math.max(needed, 2L * index.capacity());
+        if (newSize > Integer.MAX_VALUE) {
+            throw new IOException("save history index is too big");
+        }
+        index.force();
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+    }
+
+    static int bucket(long millis) {
+        for (int i = 0; i < LATENCY_BOUNDS.length; i++) {
+            if (millis <= LATENCY_BOUNDS[i]) {
+                return i;
+            }
+        }
+        return LATENCY_BOUNDS.length;
+    }
+
+    /**
+     * @return the number of attempts that have been recorded
+     */
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @param number 0 for the first attempt that was recorded
+     */
+    synchronized Attempt getAttempt(long number) throws IOException {
+        if (attempts == null) {
+            throw new IOException("save history isn't open");
+        }
+        if (number < 0 || number >= size) {
+            throw new IndexOutOfBoundsException("attempt " + number + " of " + size);
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        readFully(record, HEADER_SIZE + number * RECORD_SIZE);
+        return new Attempt(record);
+    }
+
+    /**
+     * @return the last successful attempt for every ECID that has had one, keyed by the ECID in hex
+     */
+    synchronized Map<String, Attempt> getLastSuccessPerDevice() throws IOException {
+        Map<String, Attempt> lastSuccess = new LinkedHashMap<>();
+        if (devices == null) {
+            return lastSuccess;
+        }
+        for (int i = 0; i < devices.getInt(EXTRA); i++) {
+            long record = devices.getLong(deviceEntry(i) + 16);
+            if (record != NONE) {
+                lastSuccess.put(Long.toHexString(devices.getLong(deviceEntry(i))).toUpperCase(), getAttempt(record));
+            }
+        }
+        return lastSuccess;
+    }
+
+    /**
+     * Only the hour of each attempt is indexed, so {@code from} and {@code to} are rounded out to whole hours. The
+     * answer is the upper bound of the histogram bucket the percentile falls in, so it can be up to 25% too high.
+     *
+     * @param percentile between 0 and 1, e.g. 0.95 for p95
+     * @return how long tsschecker took for that percentile of the attempts between {@code from} and {@code to}, in
+     * milliseconds, or -1 if tsschecker wasn't run in that time. {@link Long#MAX_VALUE} if it's past the last bucket.
+     */
+    synchronized long getTssLatencyPercentile(double percentile, long from, long to) {
+        if (hours == null || hours.getLong(EXTRA) == NONE) {
+            return -1;
+        }
+        long baseHour = hours.getLong(EXTRA);
+        long lastHour = (hours.capacity() - INDEX_HEADER_SIZE) / HOUR_ENTRY_SIZE - 1;
+        long fromHour = Math.max(0, from / HOUR_MILLIS - baseHour);
+        long toHour = Math.min(lastHour, to / HOUR_MILLIS - baseHour);
+        long[] histogram = new long[LATENCY_BOUNDS.length + 1];
+        long total = 0;
+        for (long hour = fromHour; hour <= toHour; hour++) {
+            int position = (int) hourEntry(hour) + 12;
+            for (int i = 0; i < histogram.length; i++) {
+                int count = hours.getInt(position + 4 * i);
+                histogram[i] += count;
+                total += count;
+            }
+        }
+        if (total == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(Math.min(1, Math.max(0, percentile)) * total);
+        long seen = 0;
+        for (int i = 0; i < LATENCY_BOUNDS.length; i++) {
+            seen += histogram[i];
+            if (seen >= Math.max(1, rank)) {
+                return LATENCY_BOUNDS[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the number of attempts, successful saves, and failures (anything but saved or not signed) between
+     * {@code from} and {@code to}, rounded out to whole hours
+     */
+    synchronized long[] getCounts(long from, long to) {
+        long[] counts = new long[3];
+        if (hours == null || hours.getLong(EXTRA) == NONE) {
+            return counts;
+        }
+        long baseHour = hours.getLong(EXTRA);
+        long lastHour = (hours.capacity() - INDEX_HEADER_SIZE) / HOUR_ENTRY_SIZE - 1;
+        for (long hour = Math.max(0, from / HOUR_MILLIS - baseHour); hour <= Math.min(lastHour, to / HOUR_MILLIS - baseHour); hour++) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += hours.getInt((int) hourEntry(hour) + 4 * i);
+            }
+        }
+        return counts;
+    }
+
+    synchronized void close() {
+        closeQuietly();
+    }
+
+    private void closeQuietly() {
+        if (hours != null) {
+            hours.force();
+            devices.force();
+        }
+        hours = null;
+        devices = null;
+        deviceEntries.clear();
+        for (FileChannel channel : new FileChannel[]{attempts, hoursChannel, devicesChannel}) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        attempts = hoursChannel = devicesChannel = null;
+    }
+
+    static final class Attempt {
+        final long timestamp;
+        /**
+         * In hex, or {@code null} if the preset's ECID wasn't valid hex.
+         */
+        final String ecid;
+        final int preset;
+        final String identifier;
+        final String version;
+        final TSSCheckerResult result;
+        final boolean basedOnStaleMetadata;
+        final long lookupMillis;
+        final long tssMillis;
+        final long durationMillis;
+        final long bytesWritten;
+
+        private Attempt(ByteBuffer record) {
+            timestamp = record.getLong(TIMESTAMP);
+            long ecidValue = record.getLong(ECID);
+            ecid = ecidValue == 0 ? null : Long.toHexString(ecidValue).toUpperCase();
+            preset = record.getInt(PRESET);
+            identifier = getText(record, IDENTIFIER);
+            version = getText(record, VERSION);
+            result = TSSCheckerResult.values()[record.get(RESULT)];
+            basedOnStaleMetadata = (record.get(FLAGS) & STALE) != 0;
+            lookupMillis = record.getInt(LOOKUP_MILLIS);
+            tssMillis = record.getInt(TSS_MILLIS);
+            durationMillis = record.getInt(DURATION_MILLIS);
+            bytesWritten = record.getInt(BYTES_WRITTEN);
+        }
+
+        @Override
+        public String toString() {
+            return "Preset " + preset + (version == null ? "" : " " + version) + ": " + result + " at " + timestamp;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+/**
+ * The outcome of saving blobs for one version of a preset.
+ */
+class SaveResult {
+
+    final Preset preset;
+    /**
+     * The version, or {@code null} if the preset failed before any version was tried.
+     */
+    final String version;
+    final TSSCheckerResult result;
+    /**
+     * The tsschecker log, or an error message if tsschecker wasn't run.
+     */
+    final String log;
+    final long durationMillis;
+    final long timestamp = System.currentTimeMillis();
+    /**
+     * If ipsw.me couldn't be reached and the last known signed versions were used instead, when those were
+     * fetched. 0 if the signed versions were up to date.
+     */
+    final long staleSince;
+    /**
+     * How long getting the signed versions for the preset took. It's the same for every version of the preset.
+     */
+    final long lookupMillis;
+    /**
+     * How long tsschecker ran for, or 0 if it wasn't run.
+     */
+    final long tssMillis;
+    /**
+     * The size of the blobs that tsschecker saved.
+     */
+    final long bytesWritten;
+    /**
+     * The generator and apnonce that were used, or {@code null} if tsschecker wasn't run for a specific one.
+     */
+    final Preset.NonceSet nonceSet;
+
+    SaveResult(Preset preset, String version, TSSCheckerResult result, String log, long durationMillis) {
+        this(preset, version, result, log, durationMillis, 0);
+    }
+
+    SaveResult(Preset preset, String version, TSSCheckerResult result, String log, long durationMillis, long staleSince) {
+        this(preset, version, result, log, durationMillis, staleSince, 0, 0, 0);
+    }
+
+    SaveResult(Preset preset, String version, TSSCheckerResult result, String log, long durationMillis, long staleSince,
+               long lookupMillis, long tssMillis, long bytesWritten) {
+        this(preset, version, result, log, durationMillis, staleSince, lookupMillis, tssMillis, bytesWritten, null);
+    }
+
+    SaveResult(Preset preset, String version, TSSCheckerResult result, String log, long durationMillis, long staleSince,
+               long lookupMillis, long tssMillis, long bytesWritten, Preset.NonceSet nonceSet) {
+        this.preset = preset;
+        this.version = version;
+        this.result = result;
+        this.log = log;
+        this.durationMillis = durationMillis;
+        this.staleSince = staleSince;
+        this.lookupMillis = lookupMillis;
+        this.tssMillis = tssMillis;
+        this.bytesWritten = bytesWritten;
+        this.nonceSet = nonceSet;
+    }
+
+    boolean isBasedOnStaleMetadata() {
+        return staleSince != 0;
+    }
+
+    @Override
+    public String toString() {
+        return preset + (version == null ? "" : " " + version) + (nonceSet == null ? "" : " (" + nonceSet + ")")
+                + ": " + result + (isBasedOnStaleMetadata() ? " (stale)" : "");
+    }
+}
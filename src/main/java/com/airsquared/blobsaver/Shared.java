@@ -26,7 +26,6 @@ import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonBar;
 import javafx.scene.control.ButtonType;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -39,7 +38,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.lang.reflect.Method;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -52,11 +53,15 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.CountDownLatch;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Stream;
 
 import static com.airsquared.blobsaver.Main.appPrefs;
@@ -70,9 +75,36 @@ class Shared {
     static ButtonType redditPM = new ButtonType("PM on Reddit");
     static ButtonType githubIssue = new ButtonType("Create Issue on Github");
 
+    /**
+     * Timeouts for each stage of saving blobs, so that a hung server or process can't block forever.
+     */
+    static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    static final int READ_TIMEOUT_MILLIS = 60 * 1000;
+    static final long TSSCHECKER_TIMEOUT_MINUTES = 5;
+
+    /**
+     * Can be pointed somewhere else with system properties, which is how the load test runs without touching
+     * ipsw.me or Apple's servers. {@code blobsaver.dataDir} does the same for {@link #getExecutablesFolder()}.
+     */
+    static final String IPSW_API = System.getProperty("blobsaver.ipswApi", "https://api.ipsw.me/v4/");
+    private static final String TSSCHECKER_OVERRIDE = System.getProperty("blobsaver.tsschecker");
+
+    private static final ScheduledExecutorService processKiller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "process killer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @return the identifier, or {@code null} if it could not be found. An error alert is only shown
+     * when this is called from the JavaFX application thread.
+     */
     static String textToIdentifier(String deviceModel) {
-        String toReturn = Devices.getDeviceModelIdentifiersMap().getOrDefault(deviceModel, "");
-        if ("".equals(toReturn)) { // this will never happen in background
+        String toReturn = Devices.nameToIdentifier(deviceModel);
+        if (toReturn == null && !Platform.isFxApplicationThread()) {
+            Log.info("Could not find: \"" + deviceModel + "\"");
+            return null;
+        } else if (toReturn == null) {
             Alert alert = new Alert(Alert.AlertType.ERROR, "Could not find: \"" + deviceModel + "\"" + "\n\nPlease create a new issue on Github or PM me on Reddit.", new ButtonType("Create Issue on Github"), new ButtonType("PM on Reddit"), ButtonType.CANCEL);
             resizeAlertButtons(alert);
             alert.showAndWait();
@@ -145,11 +177,11 @@ class Shared {
                 };
             }
         };
-        service.start();
+        runSafe(service::start); // services can only be started from the FX thread
     }
 
     static String makeRequest(URL url) throws IOException {
-        URLConnection urlConnection = url.openConnection();
+        URLConnection urlConnection = openConnection(url);
         BufferedReader in = new BufferedReader(new InputStreamReader(urlConnection.getInputStream()));
         String inputLine;
         StringBuilder response = new StringBuilder();
@@ -160,7 +192,17 @@ class Shared {
         return response.toString();
     }
 
-    static File getTsschecker() throws IOException {
+    static URLConnection openConnection(URL url) throws IOException {
+        URLConnection urlConnection = url.openConnection();
+        urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        urlConnection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        return urlConnection;
+    }
+
+    static synchronized File getTsschecker() throws IOException {
+        if (TSSCHECKER_OVERRIDE != null) {
+            return new File(TSSCHECKER_OVERRIDE);
+        }
         File executablesFolder = getExecutablesFolder();
         File tsschecker = new File(executablesFolder, "tsschecker");
         if (tsschecker.exists() && appPrefs.getBoolean("tsschecker last update v2.2.3", false)) {
@@ -186,7 +228,7 @@ class Shared {
         }
     }
 
-    static File getLibimobiledeviceFolder() throws IOException {
+    static synchronized File getLibimobiledeviceFolder() throws IOException {
         File libimobiledeviceFolder;
         if (PlatformUtil.isMac()) {
             libimobiledeviceFolder = new File(getExecutablesFolder(), "libimobiledevice_mac/");
@@ -207,11 +249,11 @@ class Shared {
                 copyDirFromJar(jarPath, libimobiledeviceFolder.toPath());
                 try (Stream<Path> paths = Files.walk(new File(System.getProperty("user.home"), ".blobsaver_bin").toPath())) {
                     paths.forEach(path -> {
-                        System.out.println("in for each loop");
+                        Log.info("in for each loop");
                         File file = path.toFile();
                         String fileName = file.getName();
                         if (!file.isDirectory() && (fileName.contains("ideviceinfo") || fileName.contains("idevicepair") || fileName.contains("iproxy"))) {
-                            System.out.println("setting " + fileName + " to readable and executable");
+                            Log.info("setting " + fileName + " to readable and executable");
                             file.setReadable(true, false);
                             file.setExecutable(true, false);
                         }
@@ -220,10 +262,10 @@ class Shared {
                     e.printStackTrace();
                     return null;
                 }
-                System.out.println("returning from libimobiledevice");
+                Log.info("returning from libimobiledevice");
                 return libimobiledeviceFolder;
             } else { // if being run directly from IDEA
-                System.out.println("run from idea");
+                Log.info("run from idea");
                 final Path targetPath = libimobiledeviceFolder.toPath();
                 final Path sourcePath;
                 try {
@@ -258,8 +300,9 @@ class Shared {
         return libimobiledeviceFolder;
     }
 
-    private static File getExecutablesFolder() throws IOException {
-        File executablesFolder = new File(System.getProperty("user.home"), ".blobsaver_bin");
+    static File getExecutablesFolder() throws IOException {
+        File executablesFolder = new File(System.getProperty("blobsaver.dataDir",
+                new File(System.getProperty("user.home"), ".blobsaver_bin").getPath()));
         if (!executablesFolder.exists()) {
             executablesFolder.mkdir();
             if (PlatformUtil.isWindows()) {
@@ -287,7 +330,7 @@ class Shared {
         final java.nio.file.FileSystem fileSystem = FileSystems.newFileSystem(resource, Collections.<String, String>emptyMap());
 
         final Path jarPath = fileSystem.getPath(pathToSourceInJar);
-        System.out.println("jarPath:" + jarPath.toString());
+        Log.info("jarPath:" + jarPath.toString());
         Files.walkFileTree(jarPath, new SimpleFileVisitor<Path>() {
             @Override
             public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
@@ -334,20 +377,86 @@ class Shared {
     }
 
     static String executeProgram(String... command) throws IOException {
+        Process process = startProgram(Arrays.asList(command));
+        return getProcessOutput(process, TSSCHECKER_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+    }
+
+    static Process startProgram(List<String> command) throws IOException {
+        long start = System.nanoTime();
         Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        Metrics.processSpawn.observeSince(start);
+        return process;
+    }
+
+    /**
+     * Reads the output of the process until it exits. The output is read before waiting for the process,
+     * otherwise the process can block forever when its output buffer fills up.
+     * <p>
+     * If the process is destroyed from another thread, this returns whatever was output before that.
+     *
+     * @throws InterruptedIOException if the process did not exit before the timeout, in which case the
+     *                                process (and any processes it started) are killed
+     */
+    static String getProcessOutput(Process process, long timeout, TimeUnit unit) throws IOException {
+        long start = System.nanoTime();
+        Metrics.inFlight.incrementAndGet();
         try {
-            process.waitFor();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            return readProcessOutput(process, timeout, unit);
+        } finally {
+            Metrics.inFlight.decrementAndGet();
+            Metrics.tssRoundTrip.observeSince(start);
         }
+    }
+
+    static String readProcessOutput(Process process, long timeout, TimeUnit unit) throws IOException {
+        AtomicBoolean timedOut = new AtomicBoolean(false);
+        ScheduledFuture<?> killer = processKiller.schedule(() -> {
+            timedOut.set(true);
+            killProcessTree(process);
+        }, timeout, unit);
+        StringBuilder logBuilder = new StringBuilder();
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-            StringBuilder logBuilder = new StringBuilder();
             String line;
             while ((line = reader.readLine()) != null) {
                 logBuilder.append(line).append("\n");
             }
-            return logBuilder.toString();
+        } catch (IOException e) {
+            if (!timedOut.get()) {
+                throw e;
+            }
+        } finally {
+            killer.cancel(false);
         }
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        if (timedOut.get()) {
+            Log.warn("process timed out", "timeout", timeout + " " + unit.toString().toLowerCase(), "log", logBuilder);
+            throw new InterruptedIOException("Process did not exit after " + timeout + " " + unit.toString().toLowerCase());
+        }
+        return logBuilder.toString();
+    }
+
+    /**
+     * Forcibly destroys the process and all of its descendants. {@code ProcessHandle} is only available on
+     * Java 9+, so it is accessed with reflection; on Java 8, only the process itself is destroyed.
+     */
+    static void killProcessTree(Process process) {
+        try {
+            @SuppressWarnings("unchecked") Stream<Object> descendants =
+                    (Stream<Object>) Process.class.getMethod("descendants").invoke(process);
+            Method destroyForcibly = Class.forName("java.lang.ProcessHandle").getMethod("destroyForcibly");
+            descendants.forEach(processHandle -> {
+                try {
+                    destroyForcibly.invoke(processHandle);
+                } catch (ReflectiveOperationException ignored) {
+                }
+            });
+        } catch (ReflectiveOperationException ignored) { // Java 8
+        }
+        process.destroyForcibly();
     }
 
     static String getJarLocation() {
@@ -408,10 +517,32 @@ class Shared {
     }
 
     static List<String> getAllSignedVersions(String deviceIdentifier) throws IOException {
-        String response = makeRequest(new URL("https://api.ipsw.me/v4/device/" + deviceIdentifier));
-        JSONArray firmwareListJson = new JSONObject(response).getJSONArray("firmwares");
-        @SuppressWarnings("unchecked") List<Map<String, Object>> firmwareList = (List) firmwareListJson.toList();
-        return firmwareList.stream().filter(map -> Boolean.TRUE.equals(map.get("signed"))).map(map -> map.get("version").toString()).collect(Collectors.toList());
+        return FirmwareStore.get().getSignedVersions(deviceIdentifier);
+    }
+
+    /**
+     * @param plistXml an XML plist containing a single integer, like the ones returned by {@code plist_to_xml()}
+     */
+    static String plistIntegerValue(String plistXml) {
+        return plistXml.substring(plistXml.indexOf("<integer>") + "<integer>".length(), plistXml.indexOf("</integer>"));
+    }
+
+    /**
+     * ECIDs are entered as hex, sometimes with {@code 0x} in front. Anything else is stored as 0.
+     */
+    static long parseEcid(String ecid) {
+        if (ecid == null) {
+            return 0;
+        }
+        String hex = ecid.trim();
+        if (hex.startsWith("0x") || hex.startsWith("0X")) {
+            hex = hex.substring(2);
+        }
+        try {
+            return Long.parseUnsignedLong(hex, 16);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
     // temporary until ProGuard is implemented
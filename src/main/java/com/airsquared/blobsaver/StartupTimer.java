@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each part of startup takes, and logs it once the first window has been drawn.
+ * <p>
+ * The target for time-to-first-window, counted from when the JVM started, can be changed with
+ * {@code -Dblobsaver.startupTargetMillis}, and missing it is logged as a warning so that it shows up.
+ */
+class StartupTimer {
+
+    private static final long TARGET_MILLIS = Long.getLong("blobsaver.startupTargetMillis", 1500);
+
+    private static final long start = System.nanoTime();
+    private static final List<String> phases = new ArrayList<>();
+    private static final List<Long> times = new ArrayList<>();
+    private static boolean reported;
+
+    /**
+     * Records that a phase has finished.
+     */
+    static synchronized void mark(String phase) {
+        if (!reported) {
+            phases.add(phase);
+            times.add(System.nanoTime());
+        }
+    }
+
+    /**
+     * Records the first window being drawn and logs the report. Only the first call does anything.
+     */
+    static void firstWindowShown() {
+        List<Object> fields = new ArrayList<>();
+        long totalMillis;
+        synchronized (StartupTimer.class) {
+            if (reported) {
+                return;
+            }
+            mark("first window");
+            reported = true;
+            long previous = start;
+            for (int i = 0; i < phases.size(); i++) {
+                fields.add(phases.get(i).replace(' ', '_'));
+                fields.add(TimeUnit.NANOSECONDS.toMillis(times.get(i) - previous));
+                previous = times.get(i);
+            }
+            totalMillis = TimeUnit.NANOSECONDS.toMillis(previous - start);
+        }
+        // the JVM starting up before main() counts too, but getting it is slow so it isn't done until now
+        long uptimeMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        long sinceStartMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long beforeMainMillis = Math.max(0, uptimeMillis - sinceStartMillis);
+        // the target is for what the user waits for, which starts when the JVM does, not when main() does
+        long sinceJvmStartMillis = beforeMainMillis + totalMillis;
+        fields.add(0, "before_main");
+        fields.add(1, beforeMainMillis);
+        fields.add("total");
+        fields.add(totalMillis);
+        fields.add("since_jvm_start");
+        fields.add(sinceJvmStartMillis);
+        fields.add("target");
+        fields.add(TARGET_MILLIS);
+        // "sharing" is only there when classes were loaded from a class data sharing archive
+        fields.add("class_sharing");
+        fields.add(System.getProperty("java.vm.info", "").contains("sharing"));
+        if (sinceJvmStartMillis <= TARGET_MILLIS) {
+            Log.info("startup timing (ms)", fields.toArray());
+        } else {
+            Log.warn("startup took longer than the target (ms)", fields.toArray());
+        }
+    }
+}
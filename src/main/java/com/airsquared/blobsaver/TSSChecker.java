@@ -18,17 +18,22 @@
 
 package com.airsquared.blobsaver;
 
+import javafx.application.Platform;
+import javafx.concurrent.Task;
 import javafx.scene.control.Alert;
 import javafx.scene.control.ButtonType;
 import javafx.scene.effect.Effect;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -36,138 +41,306 @@ import static com.airsquared.blobsaver.Shared.*;
 
 /**
  * For executing the tsschecker program(currently only used in {@link Controller}).
+ * <p>
+ * All of the values from the {@link Controller} are read when this task is created, so it must be created on the
+ * JavaFX application thread. Everything else (getting the signed versions, reading the BuildManifest from the .ipsw,
+ * and running tsschecker) happens in {@link #call()} on a background thread. Progress and messages are reported with
+ * {@link #updateProgress(long, long)} and {@link #updateMessage(String)}, which coalesce updates so that the FX
+ * thread isn't flooded. Cancelling the task destroys the running tsschecker process.
  * TODO: fix this class to separate GUI logic
  */
-class TSSChecker {
+class TSSChecker extends Task<Void> {
 
-    static void run(String device) {
-        Controller controller = Controller.INSTANCE;
-        if (controller.versionCheckBox.isSelected()) {
+    /**
+     * Kept so that errors can still be shown on the fields if {@link Controller#INSTANCE} is released meanwhile.
+     */
+    private final Controller controller;
+    private final String device;
+    private final String ecid;
+    private final String savePath;
+    private final String boardConfig;
+    private final String apnonce;
+    private final String generators;
+    private final String ipswURL;
+    private final String buildID;
+    private final String version;
+
+    private final boolean saveAllSignedVersions;
+    private final boolean useBoardConfig;
+    private final boolean useApnonce;
+    private final boolean beta;
+
+    private volatile Process process;
+    private volatile InputStream ipswStream;
+
+    private List<String> savedVersions = Collections.emptyList();
+
+    TSSChecker(String device) {
+        this.controller = Controller.INSTANCE;
+        this.device = device;
+        this.ecid = controller.ecidField.getText();
+        this.savePath = controller.pathField.getText();
+        this.boardConfig = controller.boardConfigField.getText();
+        this.apnonce = controller.apnonceField.getText();
+        this.generators = controller.generatorField.getText();
+        this.ipswURL = controller.ipswField.getText();
+        this.buildID = controller.buildIDField.getText();
+        this.version = controller.versionField.getText();
+        this.saveAllSignedVersions = controller.versionCheckBox.isSelected();
+        this.useBoardConfig = controller.getBoardConfig;
+        this.useApnonce = controller.apnonceCheckBox.isSelected();
+        this.beta = controller.betaCheckBox.isSelected();
+    }
+
+    @Override
+    protected Void call() throws Exception {
+        if (saveAllSignedVersions) {
+            updateMessage("Getting signed versions...");
             List<String> signedVersions;
             try {
                 signedVersions = getAllSignedVersions(device);
             } catch (IOException e) {
-                Alert alert = new Alert(Alert.AlertType.ERROR,
-                        "Saving blobs failed. Check your internet connection.\n\nIf your internet is working and you can connect to the website ipsw.me in your browser, please create a new issue on Github or PM me on Reddit. The log has been copied to your clipboard.",
-                        githubIssue, redditPM, ButtonType.OK);
-                resizeAlertButtons(alert);
-                alert.showAndWait();
-                reportError(alert, e.getMessage());
-                return;
+                Platform.runLater(() -> {
+                    Alert alert = new Alert(Alert.AlertType.ERROR,
+                            "Saving blobs failed. Check your internet connection.\n\nIf your internet is working and you can connect to the website ipsw.me in your browser, please create a new issue on Github or PM me on Reddit. The log has been copied to your clipboard.",
+                            githubIssue, redditPM, ButtonType.OK);
+                    resizeAlertButtons(alert);
+                    alert.showAndWait();
+                    reportError(alert, e.getMessage());
+                });
+                throw new TSSCheckerException(e);
             }
-            try {
-                // can't use the `forEach()` method because exception won't be caught properly
-                for (String version : signedVersions) {
-                    run(device, version);
+            // can't use the `forEach()` method because exception won't be caught properly
+            for (int i = 0; i < signedVersions.size(); i++) {
+                if (isCancelled()) {
+                    return null;
                 }
-            } catch (TSSCheckerException e) { // exception is only needed so lambda doesn't keep on going after an error
-                return; // the error alert should already be shown
+                updateProgress(i, signedVersions.size());
+                updateMessage("Saving blobs for " + signedVersions.get(i) + " (" + (i + 1) + "/" + signedVersions.size() + ")");
+                saveBlobs(signedVersions.get(i));
             }
-            String signedVersionsString = signedVersions.toString().substring(1, signedVersions.toString().length() - 1);
-            Alert alert = new Alert(Alert.AlertType.INFORMATION, "Successfully saved blobs in\n" + controller.pathField.getText()
+            updateProgress(signedVersions.size(), signedVersions.size());
+            savedVersions = signedVersions;
+        } else {
+            updateProgress(-1, 1);
+            updateMessage("Saving blobs for " + version);
+            saveBlobs(version);
+            savedVersions = Collections.singletonList(version);
+        }
+        return null;
+    }
+
+    /**
+     * Shows the success message. Errors are shown while the task is running, so there is nothing else to do
+     * when the task fails.
+     */
+    @Override
+    protected void succeeded() {
+        if (savedVersions.isEmpty()) {
+            return;
+        }
+        Alert alert;
+        if (saveAllSignedVersions) {
+            String signedVersionsString = savedVersions.toString().substring(1, savedVersions.toString().length() - 1);
+            alert = new Alert(Alert.AlertType.INFORMATION, "Successfully saved blobs in\n" + savePath
                     + "\n\nFor versions " + signedVersionsString, ButtonType.OK);
-            alert.setHeaderText("Success!");
-            alert.showAndWait();
         } else {
+            alert = new Alert(Alert.AlertType.INFORMATION, "Successfully saved blobs for version" + version + " in\n" + savePath, ButtonType.OK);
+        }
+        alert.setHeaderText("Success!");
+        alert.showAndWait();
+    }
+
+    @Override
+    protected void failed() {
+        Throwable e = getException();
+        if (!(e instanceof TSSCheckerException)) { // TSSCheckerExceptions have already been shown to the user
+            Log.error("saving blobs failed", e, "ecid", ecid);
+            newReportableError("Saving blobs failed.", e.toString());
+        }
+    }
+
+    /**
+     * Cancels the task and kills tsschecker and/or the .ipsw download if either of them are currently running.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        Process currentProcess = process;
+        if (currentProcess != null) {
+            killProcessTree(currentProcess);
+        }
+        InputStream currentIpswStream = ipswStream;
+        if (currentIpswStream != null) {
             try {
-                run(device, controller.versionField.getText());
-            } catch (TSSCheckerException e) {
-                // the error alert should already be shown
+                currentIpswStream.close();
+            } catch (IOException ignored) {
             }
-
         }
+        return cancelled;
     }
 
-    private static void run(String device, String version) {
+    private void saveBlobs(String version) {
         if ("".equals(device)) {
             return;
         }
 
-        Controller controller = Controller.INSTANCE;
-        String ecid = controller.ecidField.getText();
-        String savePath = controller.pathField.getText();
-        String boardConfig = controller.boardConfigField.getText();
-        String apnonce = controller.apnonceField.getText();
-        String ipswURL = controller.ipswField.getText();
-
-        Effect errorBorder = Controller.errorBorder;
-
         File tsschecker;
         File buildManifestPlist = null;
 
         try {
             tsschecker = getTsschecker();
         } catch (IOException e) {
-            newReportableError("There was an error creating tsschecker.", e.getMessage());
-            return;
+            Platform.runLater(() -> newReportableError("There was an error creating tsschecker.", e.getMessage()));
+            throw new TSSCheckerException(e);
         }
 
-        File locationToSaveBlobs = new File(controller.pathField.getText());
-        //noinspection ResultOfMethodCallIgnored
-        locationToSaveBlobs.mkdirs();
-        ArrayList<String> args = new ArrayList<>(Arrays.asList(tsschecker.getPath(), "--generator", "0x1111111111111111", "--nocache", "-d", device, "-s", "-e", ecid, "--save-path", savePath));
-        if (controller.getBoardConfig) {
+        ArrayList<String> args = new ArrayList<>(Arrays.asList(tsschecker.getPath(), "--nocache", "-d", device, "-s", "-e", ecid));
+        if (useBoardConfig) {
             Collections.addAll(args, "--boardconfig", boardConfig);
         }
-        if (controller.apnonceCheckBox.isSelected()) {
-            Collections.addAll(args, "--apnonce", apnonce);
-        }
-        if (controller.betaCheckBox.isSelected()) {
+        if (beta) {
             try {
                 if (!ipswURL.matches("https?://.*apple.*\\.ipsw")) {
-                    newUnreportableError("\"" + ipswURL + "\" is not a valid URL.\n\nMake sure it starts with \"http://\" or \"https://\", has \"apple\" in it, and ends with \".ipsw\"");
-                    return;
+                    Platform.runLater(() -> newUnreportableError("\"" + ipswURL + "\" is not a valid URL.\n\nMake sure it starts with \"http://\" or \"https://\", has \"apple\" in it, and ends with \".ipsw\""));
+                    throw new TSSCheckerException();
                 }
                 buildManifestPlist = File.createTempFile("BuildManifest", ".plist");
                 ZipInputStream zin;
                 try {
-                    URL url = new URL(ipswURL);
-                    zin = new ZipInputStream(url.openStream());
+                    zin = new ZipInputStream(openConnection(new URL(ipswURL)).getInputStream());
                 } catch (IOException e) {
-                    newUnreportableError("\"" + ipswURL + "\" is not a valid URL.\n\nMake sure it starts with \"http://\" or \"https://\", has \"apple\" in it, and ends with \".ipsw\"");
+                    Platform.runLater(() -> newUnreportableError("\"" + ipswURL + "\" is not a valid URL.\n\nMake sure it starts with \"http://\" or \"https://\", has \"apple\" in it, and ends with \".ipsw\""));
                     deleteTempFiles(buildManifestPlist);
-                    return;
+                    throw new TSSCheckerException(e);
                 }
-                ZipEntry ze;
-                while ((ze = zin.getNextEntry()) != null) {
-                    if ("BuildManifest.plist".equals(ze.getName())) {
-                        copyStreamToFile(zin, buildManifestPlist);
-                        break;
+                ipswStream = zin;
+                long start = System.nanoTime();
+                try {
+                    updateMessage("Getting BuildManifest from .ipsw...");
+                    ZipEntry ze;
+                    while (!isCancelled() && (ze = zin.getNextEntry()) != null) {
+                        if ("BuildManifest.plist".equals(ze.getName())) {
+                            copyStreamToFile(zin, buildManifestPlist);
+                            break;
+                        }
                     }
+                } finally {
+                    ipswStream = null;
+                    zin.close();
+                    Metrics.manifestDownload.observeSince(start);
                 }
                 buildManifestPlist.deleteOnExit();
             } catch (IOException e) {
-                newReportableError("Unable to get BuildManifest from .ipsw.", e.getMessage());
-                e.printStackTrace();
                 deleteTempFiles(buildManifestPlist);
-                return;
+                if (isCancelled()) {
+                    throw new TSSCheckerException(e);
+                }
+                Platform.runLater(() -> newReportableError("Unable to get BuildManifest from .ipsw.", e.getMessage()));
+                Log.error("unable to get BuildManifest", e, "ecid", ecid, "version", version, "stage", "manifest");
+                throw new TSSCheckerException(e);
             }
-            Collections.addAll(args, "-i", version, "--beta", "--buildid", controller.buildIDField.getText(), "-m", buildManifestPlist.toString());
+            Collections.addAll(args, "-i", version, "--beta", "--buildid", buildID, "-m", buildManifestPlist.toString());
         } else {
             Collections.addAll(args, "-i", version);
         }
+        // the BuildManifest is only gotten once, and then used for every generator/apnonce
+        try {
+            for (Preset.NonceSet nonceSet : Preset.NonceSet.combine(generators, useApnonce ? apnonce : "", device)) {
+                if (isCancelled()) {
+                    throw new TSSCheckerException();
+                }
+                saveBlobs(version, args, nonceSet);
+            }
+        } finally {
+            deleteTempFiles(buildManifestPlist);
+        }
+    }
+
+    private void saveBlobs(String version, List<String> baseArgs, Preset.NonceSet nonceSet) {
+        ArrayList<String> args = new ArrayList<>(baseArgs);
+        Collections.addAll(args, "--generator", nonceSet.generator);
+        if (nonceSet.apnonce != null) {
+            Collections.addAll(args, "--apnonce", nonceSet.apnonce);
+        }
+        File stagingFolder;
+        try {
+            stagingFolder = BlobLayout.createStagingFolder(savePath);
+        } catch (IOException e) {
+            Platform.runLater(() -> {
+                newUnreportableError("\'" + savePath + "\' is not a valid path");
+                controller.pathField.setEffect(Controller.errorBorder);
+            });
+            throw new TSSCheckerException(e);
+        }
+        // blobs are saved to a staging folder first and then moved to where the BlobLayout puts them
+        Collections.addAll(args, "--save-path", stagingFolder.getPath());
         String tsscheckerLog;
+        long tsscheckerStart = System.nanoTime();
         try {
-            System.out.println("Running: " + args.toString());
-            tsscheckerLog = executeProgram(args.toArray(new String[0]));
+            Log.info("running tsschecker " + args, "ecid", ecid, "version", version, "nonceSet", nonceSet,
+                    "stage", "tsschecker");
+            process = startProgram(args);
+            if (isCancelled()) {
+                // cancel() may have run just before process was set, in which case it had nothing to kill
+                killProcessTree(process);
+            }
+            tsscheckerLog = getProcessOutput(process, TSSCHECKER_TIMEOUT_MINUTES, TimeUnit.MINUTES);
         } catch (IOException e) {
-            newReportableError("There was an error starting tsschecker.", e.toString());
-            e.printStackTrace();
-            deleteTempFiles(buildManifestPlist);
-            return;
+            BlobLayout.deleteStagingFolder(stagingFolder);
+            if (isCancelled()) {
+                Metrics.countResult(TSSCheckerResult.CANCELLED);
+                throw new TSSCheckerException(e);
+            } else if (e instanceof InterruptedIOException) {
+                Metrics.countResult(TSSCheckerResult.TIMEOUT);
+                Platform.runLater(() -> newReportableError("tsschecker timed out and was stopped.", e.toString()));
+                throw new TSSCheckerException(e);
+            }
+            Platform.runLater(() -> newReportableError("There was an error starting tsschecker.", e.toString()));
+            Log.error("error starting tsschecker", e, "ecid", ecid, "version", version, "stage", "tsschecker");
+            throw new TSSCheckerException(e);
+        } finally {
+            process = null;
+        }
+        TSSCheckerResult result = isCancelled() ? TSSCheckerResult.CANCELLED : TSSCheckerResult.fromLog(tsscheckerLog);
+        String problem = result == TSSCheckerResult.SAVED
+                ? BlobValidator.validateSaved(stagingFolder, ecid, nonceSet.apnonce == null ? "" : nonceSet.apnonce)
+                : null;
+        if (problem != null) {
+            result = TSSCheckerResult.INVALID_BLOB;
         }
+        try {
+            BlobLayout.commit(stagingFolder, savePath);
+        } catch (IOException e) {
+            Log.error("unable to move blobs out of staging folder", e, "ecid", ecid, "version", version,
+                    "folder", stagingFolder);
+            Platform.runLater(() -> newReportableError("Unable to move the saved blobs to " + savePath, e.toString()));
+            throw new TSSCheckerException(e);
+        }
+        Metrics.countResult(result);
+        Log.info("tsschecker finished", "ecid", ecid, "version", version, "nonceSet", nonceSet, "stage", result,
+                "duration", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - tsscheckerStart));
 
-        if (tsscheckerLog.contains("Saved shsh blobs")) {
+        if (problem != null) {
+            Log.warn("saved blob isn't valid", "ecid", ecid, "version", version, "nonceSet", nonceSet,
+                    "problem", problem);
+            Platform.runLater(() -> newReportableError("tsschecker saved blobs for " + version
+                    + ", but they aren't valid:\n" + problem, tsscheckerLog));
+            throw new TSSCheckerException();
+        } else if (tsscheckerLog.contains("Saved shsh blobs")) {
             // if multiple versions are being saved at the same time, do not show success message multiple times
             // the success message will be shown after saving everything is completed
-            if (!controller.versionCheckBox.isSelected()) {
-                Alert alert = new Alert(Alert.AlertType.INFORMATION, "Successfully saved blobs for version" + version + " in\n" + savePath, ButtonType.OK);
-                alert.setHeaderText("Success!");
-                alert.showAndWait();
-            }
-            deleteTempFiles(buildManifestPlist);
             return;
-        } else if (tsscheckerLog.contains("[Error] [TSSC] manually specified ecid=" + ecid + ", but parsing failed")) {
+        } else if (isCancelled()) {
+            throw new TSSCheckerException();
+        }
+        Platform.runLater(() -> showError(tsscheckerLog, version, nonceSet));
+        throw new TSSCheckerException();
+    }
+
+    private void showError(String tsscheckerLog, String version, Preset.NonceSet nonceSet) {
+        Effect errorBorder = Controller.errorBorder;
+        if (tsscheckerLog.contains("[Error] [TSSC] manually specified ecid=" + ecid + ", but parsing failed")) {
             newUnreportableError("\"" + ecid + "\"" + " is not a valid ECID. Try getting it from iTunes.\n\nIf this was done to test whether the preset works in the background, please cancel that preset, fix the error, and try again.");
             controller.ecidField.setEffect(errorBorder);
         } else if (tsscheckerLog.contains("[Error] [TSSC] device " + device + " could not be found in devicelist")) {
@@ -180,8 +353,8 @@ class TSSChecker {
             newUnreportableError("Could not find device \"" + device + "\" on iOS/tvOS " + version +
                     "\n\nThe version doesn't exist or isn't compatible with the device");
             controller.versionField.setEffect(errorBorder);
-        } else if (tsscheckerLog.contains("[Error] [TSSC] manually specified apnonce=" + apnonce + ", but parsing failed")) {
-            newUnreportableError("\"" + apnonce + "\" is not a valid apnonce");
+        } else if (tsscheckerLog.contains("[Error] [TSSC] manually specified apnonce=" + nonceSet.apnonce + ", but parsing failed")) {
+            newUnreportableError("\"" + nonceSet.apnonce + "\" is not a valid apnonce");
             controller.apnonceField.setEffect(errorBorder);
         } else if (tsscheckerLog.contains("[WARNING] [TSSC] could not get id0 for installType=Erase. Using fallback installType=Update since user did not specify installType manually")
                 && tsscheckerLog.contains("[Error] [TSSR] Error: could not get id0 for installType=Update")
@@ -200,15 +373,15 @@ class TSSChecker {
             resizeAlertButtons(alert);
             alert.showAndWait();
             reportError(alert, tsscheckerLog);
-        } else if (tsscheckerLog.contains("[Error] [Error] can't save shsh at " + savePath)) {
+        } else if (tsscheckerLog.contains("[Error] [Error] can't save shsh at ")) {
             newUnreportableError("\'" + savePath + "\' is not a valid path\n\nIf this was done to test whether the preset works in the background, please cancel that preset, fix the error, and try again.");
             controller.pathField.setEffect(errorBorder);
-        } else if (tsscheckerLog.contains("iOS " + version + " for device " + device + " IS NOT being signed!") || tsscheckerLog.contains("Build " + controller.buildIDField.getText() + " for device" + device + "IS NOT being signed!")) {
+        } else if (tsscheckerLog.contains("iOS " + version + " for device " + device + " IS NOT being signed!") || tsscheckerLog.contains("Build " + buildID + " for device" + device + "IS NOT being signed!")) {
             newUnreportableError("iOS/tvOS " + version + " is not being signed for device " + device);
-            if (version.equals(controller.versionField.getText())) {
+            if (version.equals(this.version)) {
                 controller.versionField.setEffect(errorBorder);
             }
-            if (controller.betaCheckBox.isSelected()) {
+            if (beta) {
                 controller.buildIDField.setEffect(errorBorder);
                 controller.ipswField.setEffect(errorBorder);
             }
@@ -226,8 +399,6 @@ class TSSChecker {
         } else {
             newReportableError("Unknown result.\n\nIf this was done to test whether the preset works in the background, please cancel that preset, fix the error, and try again.", tsscheckerLog);
         }
-        deleteTempFiles(buildManifestPlist);
-        throw new TSSCheckerException();
     }
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
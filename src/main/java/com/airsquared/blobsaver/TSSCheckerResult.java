@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import static com.airsquared.blobsaver.Shared.containsIgnoreCase;
+
+/**
+ * The kinds of results that saving blobs can have. Most of them come from the tsschecker log, the rest are for
+ * when tsschecker couldn't be run at all. Used for counting results and keeping history, the user-facing error
+ * messages are still chosen in {@link TSSChecker} and {@link Background}.
+ */
+enum TSSCheckerResult {
+
+    SAVED, NOT_SIGNED, INVALID_ECID, INVALID_APNONCE, DEVICE_NOT_FOUND, VERSION_NOT_FOUND, BOARD_CONFIG,
+    NO_CONNECTION, INVALID_PATH, MANIFEST, ERROR, UNKNOWN, TIMEOUT, CANCELLED, VERSION_LOOKUP_FAILED,
+    TSSCHECKER_FAILED,
+    /**
+     * tsschecker said it saved the blobs, but {@link BlobValidator} found something wrong with them. Only added to the
+     * end, since {@link SaveHistory} stores the ordinal.
+     */
+    INVALID_BLOB;
+
+    static TSSCheckerResult fromLog(String tsscheckerLog) {
+        if (containsIgnoreCase(tsscheckerLog, "Saved shsh blobs")) {
+            return SAVED;
+        } else if (containsIgnoreCase(tsscheckerLog, "IS NOT being signed")) {
+            return NOT_SIGNED;
+        } else if (containsIgnoreCase(tsscheckerLog, "[TSSC] manually specified ecid=")) {
+            return INVALID_ECID;
+        } else if (containsIgnoreCase(tsscheckerLog, "[TSSC] manually specified apnonce=")) {
+            return INVALID_APNONCE;
+        } else if (containsIgnoreCase(tsscheckerLog, "could not be found in devicelist")) {
+            return DEVICE_NOT_FOUND;
+        } else if (containsIgnoreCase(tsscheckerLog, "could not get url for device")) {
+            return VERSION_NOT_FOUND;
+        } else if (containsIgnoreCase(tsscheckerLog, "could not get id0 for installType=Update")) {
+            return BOARD_CONFIG;
+        } else if (containsIgnoreCase(tsscheckerLog, "Could not resolve host")) {
+            return NO_CONNECTION;
+        } else if (containsIgnoreCase(tsscheckerLog, "can't save shsh at")) {
+            return INVALID_PATH;
+        } else if (containsIgnoreCase(tsscheckerLog, "failed to load manifest")
+                || containsIgnoreCase(tsscheckerLog, "can't be used with that buildmanifest")) {
+            return MANIFEST;
+        } else if (containsIgnoreCase(tsscheckerLog, "[Error]")) {
+            return ERROR;
+        } else {
+            return UNKNOWN;
+        }
+    }
+}
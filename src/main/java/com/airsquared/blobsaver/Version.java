@@ -18,9 +18,32 @@
 
 package com.airsquared.blobsaver;
 
+import java.util.Arrays;
+
+/**
+ * A firmware or app version, like {@code 12.4}, {@code 13.0 beta 2}, {@code 13.0b2} or {@code 2.3-rc1}, or an iOS build
+ * string like {@code 16F203} or {@code 17A5534f}. The string is only parsed once, in the constructor, so comparing
+ * doesn't allocate anything.
+ * <p>
+ * Missing trailing components count as 0, so {@code 12} equals {@code 12.0}. Betas come before release candidates,
+ * which come before the release. Build strings are compared as (major, train letter, build number, suffix letter),
+ * and always come after dotted versions.
+ */
 public class Version implements Comparable<Version> {
 
-    private String version;
+    private static final int BETA = 0;
+    private static final int RC = 1;
+    private static final int RELEASE = 2;
+
+    private final String version;
+    /**
+     * For build strings: major, train letter (A = 1), build number and suffix letter (a = 1, 0 if there isn't one).
+     */
+    private final int[] parts;
+    private final boolean build;
+    private final int stage;
+    private final int stageNumber;
+    private final int hash;
 
     public final String get() {
         return this.version;
@@ -30,10 +53,105 @@ public class Version implements Comparable<Version> {
         if (version == null) {
             throw new IllegalArgumentException("Version can not be null");
         }
-        if (!version.matches("[0-9]+(\\.[0-9]+)*")) {
+        this.version = version;
+        int length = version.length();
+        if (length == 0) {
             throw new IllegalArgumentException("Invalid version format");
         }
-        this.version = version;
+        int i = version.charAt(0) == 'v' || version.charAt(0) == 'V' ? 1 : 0; // GitHub tags
+        int[] parts = new int[4];
+        int count = 0;
+        int start = i;
+        while (i < length && isDigit(version.charAt(i))) {
+            i++;
+        }
+        if (i == start) {
+            throw new IllegalArgumentException("Invalid version format");
+        }
+        parts[count++] = parseInt(version, start, i);
+        if (i < length && isUpperCase(version.charAt(i))) {
+            // build string, like 16F203 or 17A5534f
+            build = true;
+            parts[count++] = version.charAt(i) - 'A' + 1;
+            start = ++i;
+            while (i < length && isDigit(version.charAt(i))) {
+                i++;
+            }
+            if (i == start) {
+                throw new IllegalArgumentException("Invalid version format");
+            }
+            parts[count++] = parseInt(version, start, i);
+            if (i < length && isLowerCase(version.charAt(i))) {
+                parts[count++] = version.charAt(i++) - 'a' + 1;
+            }
+            if (i != length) {
+                throw new IllegalArgumentException("Invalid version format");
+            }
+            stage = RELEASE;
+            stageNumber = 0;
+        } else {
+            build = false;
+            while (i < length && version.charAt(i) == '.') {
+                start = ++i;
+                while (i < length && isDigit(version.charAt(i))) {
+                    i++;
+                }
+                if (i == start) {
+                    throw new IllegalArgumentException("Invalid version format");
+                }
+                if (count == parts.length) {
+                    parts = Arrays.copyOf(parts, count * 2);
+                }
+                parts[count++] = parseInt(version, start, i);
+            }
+            if (i == length) {
+                stage = RELEASE;
+                stageNumber = 0;
+            } else {
+                // pre-release suffix, like " beta 2", "b2", "-beta2" or " RC"
+                if (version.charAt(i) == ' ' || version.charAt(i) == '-') {
+                    i++;
+                }
+                if (version.regionMatches(true, i, "beta", 0, 4)) {
+                    stage = BETA;
+                    i += 4;
+                } else if (version.regionMatches(true, i, "rc", 0, 2) || version.regionMatches(true, i, "gm", 0, 2)) {
+                    stage = RC;
+                    i += 2;
+                } else if (i < length && (version.charAt(i) == 'b' || version.charAt(i) == 'B')) {
+                    stage = BETA;
+                    i++;
+                } else {
+                    throw new IllegalArgumentException("Invalid version format");
+                }
+                if (i < length && version.charAt(i) == ' ') {
+                    i++;
+                }
+                start = i;
+                while (i < length && isDigit(version.charAt(i))) {
+                    i++;
+                }
+                if (i != length) {
+                    throw new IllegalArgumentException("Invalid version format");
+                }
+                // "13.0 beta" is the first beta
+                stageNumber = i == start ? 1 : parseInt(version, start, i);
+            }
+        }
+        // trailing zeros don't matter when comparing, so leave them out of the hash too
+        while (count > 1 && parts[count - 1] == 0) {
+            count--;
+        }
+        this.parts = Arrays.copyOf(parts, count);
+        this.hash = 31 * (31 * (31 * Arrays.hashCode(this.parts) + (build ? 1 : 0)) + stage) + stageNumber;
+    }
+
+    public boolean isBuild() {
+        return build;
+    }
+
+    public boolean isPreRelease() {
+        return stage != RELEASE;
     }
 
     @Override
@@ -41,34 +159,69 @@ public class Version implements Comparable<Version> {
         if (that == null) {
             return 1;
         }
-        String[] thisParts = this.get().split("\\.");
-        String[] thatParts = that.get().split("\\.");
+        if (this.build != that.build) {
+            return this.build ? 1 : -1;
+        }
+        int[] thisParts = this.parts;
+        int[] thatParts = that.parts;
         int length = Math.max(thisParts.length, thatParts.length);
         for (int i = 0; i < length; i++) {
-            int thisPart = i < thisParts.length ?
-                    Integer.parseInt(thisParts[i]) : 0;
-            int thatPart = i < thatParts.length ?
-                    Integer.parseInt(thatParts[i]) : 0;
-            if (thisPart < thatPart) {
-                return -1;
-            }
-            if (thisPart > thatPart) {
-                return 1;
+            int thisPart = i < thisParts.length ? thisParts[i] : 0;
+            int thatPart = i < thatParts.length ? thatParts[i] : 0;
+            if (thisPart != thatPart) {
+                return thisPart < thatPart ? -1 : 1;
             }
         }
-        return 0;
+        if (this.stage != that.stage) {
+            return this.stage < that.stage ? -1 : 1;
+        }
+        return Integer.compare(this.stageNumber, that.stageNumber);
     }
 
     @Override
     public boolean equals(Object that) {
+        if (this == that) {
+            return true;
+        }
         if (!(that instanceof Version)) {
             return false;
         }
-        return this.compareTo((Version) that) == 0;
+        return this.hash == that.hashCode() && this.compareTo((Version) that) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
     }
 
     @Override
     public String toString() {
         return version;
     }
-}
\ No newline at end of file
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isUpperCase(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean isLowerCase(char c) {
+        return c >= 'a' && c <= 'z';
+    }
+
+    /**
+     * Like {@link Integer#parseInt(String)} on a substring, without making the substring.
+     */
+    private static int parseInt(String s, int start, int end) {
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            result = result * 10 + s.charAt(i) - '0';
+            if (result > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Invalid version format");
+            }
+        }
+        return (int) result;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class ApnonceEngineTest {
+
+    private static final String GENERATOR = "0x1111111111111111";
+    // SHA-1 and the first 32 bytes of SHA-384 of 11 11 11 11 11 11 11 11
+    private static final String SHA1_APNONCE = "3a88b7c3802f2f0510abc432104a15ebd8bd7154";
+    private static final String SHA384_APNONCE = "27325c8258be46e69d9ee57fa9a8fbc28b873df434e5e702a8b27999551138ae";
+
+    @Test
+    public void a7UsesSha1() {
+        int length = ApnonceEngine.nonceLength(0x8960); // iPhone6,1, as ipsw.me gives it
+        assertEquals(20, length);
+        assertEquals(SHA1_APNONCE, ApnonceEngine.apnonce(GENERATOR, length));
+    }
+
+    @Test
+    public void a11UsesSha1() {
+        int length = ApnonceEngine.nonceLength(0x8015); // iPhone10,3
+        assertEquals(20, length);
+        assertEquals(SHA1_APNONCE, ApnonceEngine.apnonce(GENERATOR, length));
+    }
+
+    @Test
+    public void a12UsesSha384() {
+        int length = ApnonceEngine.nonceLength(0x8020); // iPhone11,2
+        assertEquals(32, length);
+        assertEquals(SHA384_APNONCE, ApnonceEngine.apnonce(GENERATOR, length));
+        assertEquals(32, ApnonceEngine.nonceLength(0x8101)); // A14
+    }
+
+    @Test
+    public void olderChipsUseSha1() {
+        for (int cpid : new int[]{0, 0x8940, 0x8950, 0x7000, 0x8000, 0x8010}) {
+            assertEquals(Integer.toHexString(cpid), 20, ApnonceEngine.nonceLength(cpid));
+        }
+    }
+
+    @Test
+    public void largeListKeepsOrder() {
+        List<String> generators = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            generators.add("0x" + Long.toHexString(0x1111111111111111L + i));
+        }
+        Map<String, String> apnonces = ApnonceEngine.apnonces(generators, 32);
+        assertEquals(generators, new ArrayList<>(apnonces.keySet()));
+        assertEquals(SHA384_APNONCE, apnonces.get(GENERATOR));
+        assertEquals(Arrays.asList(SHA1_APNONCE), new ArrayList<>(
+                ApnonceEngine.apnonces(Arrays.asList("1111111111111111"), 20).values()));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlobArchiveTest {
+
+    private static final String BLOB_1 = "1_iPhone10,3_d22ap_14.0-18A373_ab.shsh2";
+    private static final String BLOB_2 = "1_iPhone10,3_d22ap_14.1-18A8395_ab.shsh2";
+    private static final String BLOB_3 = "2_iPhone11,2_d321ap_14.0-18A373_cd.shsh2";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void tornTailEntryIsCutOff() throws IOException {
+        BlobArchive archive = open();
+        archive.add(BLOB_1, blob("one"));
+        archive.sync();
+        archive.close();
+        File segment = new File(archiveFolder(), "segment-00001.dat");
+        long length = segment.length();
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            // as if it quit halfway through appending a blob, before the index was updated
+            raf.seek(length);
+            raf.write(new byte[]{0x42, 0x4c, 0x4f, 0x42, 0, 40, 1, 2, 3});
+        }
+
+        archive = open();
+        assertEquals(length, segment.length());
+        assertEquals(names(BLOB_1), names(archive));
+        archive.add(BLOB_2, blob("two"));
+        archive.sync();
+        archive.close();
+
+        archive = open();
+        assertEquals(names(BLOB_1, BLOB_2), names(archive));
+        assertArrayEquals(blob("two"), archive.read(archive.list().get(1)));
+        archive.close();
+    }
+
+    @Test
+    public void indexIsRebuiltFromSegments() throws IOException {
+        BlobArchive archive = open();
+        archive.add(BLOB_1, blob("one"));
+        archive.add(BLOB_3, blob("three"));
+        archive.sync();
+        archive.close();
+        File index = new File(archiveFolder(), "index-00001.idx");
+        Files.write(index.toPath(), new byte[100]); // not an index
+
+        archive = open();
+        assertEquals(names(BLOB_1, BLOB_3), names(archive));
+        assertEquals(1, archive.find(2, "14.0", "CD").size());
+        archive.close();
+
+        assertTrue(index.delete());
+        archive = open();
+        assertEquals(names(BLOB_1, BLOB_3), names(archive));
+        archive.close();
+    }
+
+    @Test
+    public void reopenAfterCompaction() throws IOException {
+        BlobArchive archive = open();
+        archive.add(BLOB_1, blob("old"));
+        archive.add(BLOB_3, blob("three"));
+        archive.add(BLOB_1, blob("new")); // replaces the first one
+        archive.sync();
+        archive.compact();
+        assertEquals(names(BLOB_3, BLOB_1), names(archive));
+        archive.close();
+
+        assertFalse(new File(archiveFolder(), "index-00001.idx").exists());
+        assertFalse(new File(archiveFolder(), "segment-00001.dat").exists());
+        archive = open();
+        assertEquals(names(BLOB_3, BLOB_1), names(archive));
+        assertArrayEquals(blob("new"), archive.read(archive.find(1, "14.0", null).get(0)));
+        archive.add(BLOB_2, blob("two"));
+        archive.sync();
+        archive.close();
+
+        archive = open();
+        assertEquals(names(BLOB_3, BLOB_1, BLOB_2), names(archive));
+        archive.close();
+    }
+
+    @Test
+    public void unfinishedCompactionUsesOldIndex() throws IOException {
+        BlobArchive archive = open();
+        archive.add(BLOB_1, blob("one"));
+        archive.add(BLOB_3, blob("three"));
+        archive.sync();
+        archive.close();
+        // as if it quit while compacting, before the new index was finished
+        File unfinished = new File(archiveFolder(), "index-00002.idx");
+        Files.write(unfinished.toPath(), new byte[4096]);
+
+        archive = open();
+        assertEquals(names(BLOB_1, BLOB_3), names(archive));
+        assertFalse(unfinished.exists());
+        archive.close();
+    }
+
+    private BlobArchive open() throws IOException {
+        return BlobArchive.open(folder.getRoot().getPath());
+    }
+
+    private File archiveFolder() {
+        return new File(folder.getRoot(), BlobArchive.FOLDER);
+    }
+
+    private static byte[] blob(String contents) {
+        return ("<plist>" + contents + "</plist>").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> names(BlobArchive archive) throws IOException {
+        List<String> names = new ArrayList<>();
+        for (BlobArchive.Entry entry : archive.list()) {
+            names.add(entry.name);
+        }
+        return names;
+    }
+
+    private static List<String> names(String... names) {
+        return Arrays.asList(names);
+    }
+}
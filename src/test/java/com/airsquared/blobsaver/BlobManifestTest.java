@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlobManifestTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void stopWatching() {
+        BlobManifest.stopWatching();
+    }
+
+    @Test
+    public void hashesAreTheSameAfterReading() throws IOException {
+        write("iPhone10,3/1_iPhone10,3_d22ap_14.0-18A373_ab.shsh2", "blob 1");
+        write("2_iPhone11,2_d321ap_14.0-18A373_cd.shsh2", "blob 2");
+        BlobManifest manifest = BlobManifest.get(folder.getRoot().getPath());
+        assertEquals(2, manifest.refresh());
+
+        BlobManifest read = BlobManifest.read(folder.getRoot());
+        assertNotNull(read.getHash("."));
+        assertEquals(manifest.getHash("."), read.getHash("."));
+        assertEquals(manifest.getHash("iPhone10,3"), read.getHash("iPhone10,3"));
+        assertTrue(read.verify(true).isEmpty());
+    }
+
+    @Test
+    public void verifyFindsChanges() throws IOException {
+        File blob = write("1_iPhone10,3_d22ap_14.0-18A373_ab.shsh2", "blob 1");
+        BlobManifest manifest = BlobManifest.get(folder.getRoot().getPath());
+        manifest.refresh();
+        String rootHash = manifest.getHash(".");
+
+        long modified = blob.lastModified();
+        write(blob.getName(), "blob 2"); // same size
+        //noinspection ResultOfMethodCallIgnored
+        blob.setLastModified(modified);
+        File added = write("2_iPhone10,3_d22ap_14.0-18A373_cd.shsh2", "new");
+        assertEquals("{" + added.getName() + "=not in manifest}", manifest.verify(false).toString());
+        Map<String, String> problems = manifest.verify(true);
+        assertEquals("contents changed", problems.get(blob.getName()));
+
+        manifest.update(Collections.singletonList(added));
+        assertNull(manifest.verify(false).get(added.getName()));
+        assertNotEquals(rootHash, manifest.getHash("."));
+    }
+
+    @Test
+    public void watchingAgainKeepsWatching() throws Exception {
+        String savePath = folder.getRoot().getPath();
+        write("1_iPhone10,3_d22ap_14.0-18A373_ab.shsh2", "blob 1");
+        // like reloadSettings() does when the presets change
+        BlobManifest.watch(Collections.singletonList(savePath));
+        BlobManifest.watch(Collections.singletonList(savePath));
+        BlobManifest manifest = BlobManifest.get(savePath);
+        waitFor(manifest, "1_iPhone10,3_d22ap_14.0-18A373_ab.shsh2");
+
+        write("2_iPhone10,3_d22ap_14.0-18A373_cd.shsh2", "blob 2");
+        waitFor(manifest, "2_iPhone10,3_d22ap_14.0-18A373_cd.shsh2");
+    }
+
+    private static void waitFor(BlobManifest manifest, String path) throws InterruptedException {
+        for (int i = 0; i < 100 && manifest.getHash(path) == null; i++) {
+            Thread.sleep(100);
+        }
+        assertNotNull(path + " was never added", manifest.getHash(path));
+    }
+
+    private File write(String path, String contents) throws IOException {
+        File file = new File(folder.getRoot(), path);
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlobValidatorTest {
+
+    private static final long ECID = 0x1A2B3C4D5EL;
+    private static final String GENERATOR = "0x1111111111111111";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void validBlob() throws Exception {
+        byte[] nonce = MessageDigest.getInstance("SHA-1").digest(generatorBytes());
+        assertNull(BlobValidator.validate(shsh2(ticket(ECID, nonce), GENERATOR), ECID, null));
+    }
+
+    @Test
+    public void validBlobWith32ByteNonce() throws Exception {
+        byte[] nonce = Arrays.copyOf(MessageDigest.getInstance("SHA-384").digest(generatorBytes()), 32);
+        assertNull(BlobValidator.validate(shsh2(ticket(ECID, nonce), GENERATOR), ECID, null));
+    }
+
+    @Test
+    public void wrongEcid() throws Exception {
+        byte[] nonce = MessageDigest.getInstance("SHA-1").digest(generatorBytes());
+        String problem = BlobValidator.validate(shsh2(ticket(ECID + 1, nonce), GENERATOR), ECID, null);
+        assertNotNull(problem);
+        assertTrue(problem, problem.contains("ECID"));
+    }
+
+    @Test
+    public void generatorDoesNotMatchNonce() {
+        byte[] nonce = new byte[20];
+        String problem = BlobValidator.validate(shsh2(ticket(ECID, nonce), GENERATOR), ECID, null);
+        assertNotNull(problem);
+        assertTrue(problem, problem.contains("generator"));
+        // fine if that nonce is the apnonce that was asked for
+        assertNull(BlobValidator.validate(shsh2(ticket(ECID, nonce), GENERATOR), ECID, BlobValidator.toHex(nonce)));
+    }
+
+    @Test
+    public void notATicket() {
+        assertNotNull(BlobValidator.validate(shsh2(new byte[]{0x30, 0x05, 1, 2}, GENERATOR), ECID, null));
+        assertNotNull(BlobValidator.validate("not a plist".getBytes(StandardCharsets.UTF_8), ECID, null));
+        assertEquals("no ApImg4Ticket", BlobValidator.validate(
+                "<plist><dict><key>generator</key><string>0x1</string></dict></plist>".getBytes(StandardCharsets.UTF_8), ECID, null));
+    }
+
+    @Test
+    public void scanAcceptsBlobSavedWithApnonce() throws Exception {
+        byte[] nonce = new byte[32];
+        Arrays.fill(nonce, (byte) 0xab); // not from the generator
+        String name = "_iPhone11,2_d321ap_14.0-18A373_" + BlobValidator.toHex(nonce) + ".shsh2";
+        Files.write(folder.newFile(ECID + name).toPath(), shsh2(ticket(ECID, nonce), GENERATOR));
+        Files.write(folder.newFile((ECID + 1) + name).toPath(), shsh2(ticket(ECID, nonce), GENERATOR));
+
+        BlobValidator.ScanResult result = BlobValidator.scan(folder.getRoot(),
+                Collections.singleton(BlobValidator.toHex(nonce)));
+        assertEquals(2, result.checked);
+        assertEquals(1, result.problems.size());
+        File invalid = result.problems.keySet().iterator().next();
+        assertEquals((ECID + 1) + name, invalid.getName());
+        assertTrue(result.warnings.isEmpty());
+    }
+
+    @Test
+    public void scanFlagsGeneratorThatDoesNotMatchNonce() throws Exception {
+        byte[] nonce = new byte[20];
+        Arrays.fill(nonce, (byte) 0xcd); // not from the generator, and not a known apnonce
+        String name = ECID + "_iPhone10,3_d22ap_14.0-18A373_" + BlobValidator.toHex(nonce) + ".shsh2";
+        File blob = folder.newFile(name);
+        Files.write(blob.toPath(), shsh2(ticket(ECID, nonce), GENERATOR));
+        byte[] matching = MessageDigest.getInstance("SHA-1").digest(generatorBytes());
+        Files.write(folder.newFile(ECID + "_iPhone10,3_d22ap_14.1-18A8395_" + BlobValidator.toHex(matching) + ".shsh2")
+                .toPath(), shsh2(ticket(ECID, matching), GENERATOR));
+
+        BlobValidator.ScanResult result = BlobValidator.scan(folder.getRoot(), Collections.emptySet());
+        assertEquals(2, result.checked);
+        assertTrue(result.problems.isEmpty());
+        assertEquals(Collections.singleton(blob), result.warnings.keySet());
+        assertTrue(result.warnings.get(blob), result.warnings.get(blob).contains("generator"));
+    }
+
+    private static byte[] generatorBytes() {
+        byte[] bytes = new byte[8];
+        Arrays.fill(bytes, (byte) 0x11);
+        return bytes;
+    }
+
+    private static byte[] shsh2(byte[] ticket, String generator) {
+        return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<!DOCTYPE plist PUBLIC \"-//Apple//DTD PLIST 1.0//EN\" \"http://www.apple.com/DTDs/PropertyList-1.0.dtd\">\n"
+                + "<plist version=\"1.0\"><dict>\n"
+                + "<key>ApImg4Ticket</key>\n<data>\n" + Base64.getMimeEncoder().encodeToString(ticket) + "\n</data>\n"
+                + "<key>BBTicket</key><dict><key>x</key><true/></dict>\n"
+                + "<key>generator</key>\n<string>" + generator + "</string>\n"
+                + "</dict></plist>\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] ticket(long ecid, byte[] nonce) {
+        byte[] manp = set(
+                property("ECID", der(0x02, integer(ecid))),
+                property("BNCH", der(0x04, nonce)),
+                property("CHIP", der(0x02, integer(0x8015))));
+        byte[] manb = set(property("MANB", set(property("MANP", manp))));
+        return der(0x30, concat(der(0x16, "IM4M".getBytes(StandardCharsets.US_ASCII)), der(0x02, new byte[]{0}), manb,
+                der(0x04, new byte[64]), der(0x30, new byte[0])));
+    }
+
+    /**
+     * [PRIVATE name] SEQUENCE { IA5String name, value }
+     */
+    private static byte[] property(String name, byte[] value) {
+        byte[] sequence = der(0x30, concat(der(0x16, name.getBytes(StandardCharsets.US_ASCII)), value));
+        byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+        int code = (nameBytes[0] << 24) | (nameBytes[1] << 16) | (nameBytes[2] << 8) | nameBytes[3];
+        ByteArrayOutputStream tag = new ByteArrayOutputStream();
+        tag.write(0xff);
+        for (int shift = 28; shift > 0; shift -= 7) {
+            if ((code >>> shift) != 0) {
+                tag.write(0x80 | ((code >>> shift) & 0x7f));
+            }
+        }
+        tag.write(code & 0x7f);
+        return concat(tag.toByteArray(), length(sequence.length), sequence);
+    }
+
+    private static byte[] set(byte[]... elements) {
+        return der(0x31, concat(elements));
+    }
+
+    private static byte[] der(int tag, byte[] content) {
+        return concat(new byte[]{(byte) tag}, length(content.length), content);
+    }
+
+    private static byte[] length(int length) {
+        if (length < 0x80) {
+            return new byte[]{(byte) length};
+        }
+        return new byte[]{(byte) 0x82, (byte) (length >> 8), (byte) length};
+    }
+
+    private static byte[] integer(long value) {
+        byte[] bytes = new byte[9];
+        for (int i = 0; i < 8; i++) {
+            bytes[8 - i] = (byte) (value >>> (8 * i));
+        }
+        int start = 0;
+        while (start < 8 && bytes[start] == 0 && (bytes[start + 1] & 0x80) == 0) {
+            start++;
+        }
+        return Arrays.copyOfRange(bytes, start, 9);
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+}
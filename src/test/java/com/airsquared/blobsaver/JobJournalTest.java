@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JobJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void unfinishedPresetsArePendingAfterReopening() throws IOException {
+        File file = folder.newFile("jobs.journal");
+        JobJournal journal = JobJournal.open(file);
+        journal.queued(Arrays.asList(1, 2, 3));
+        journal.done(2);
+        journal.close();
+
+        journal = JobJournal.open(file);
+        assertEquals("[1, 3]", journal.getPending().toString());
+        assertTrue(journal.getLastDone(2) > 0);
+        assertEquals(0, journal.getLastDone(1));
+        journal.close();
+    }
+
+    @Test
+    public void partlyWrittenRecordIsCutOff() throws IOException {
+        File file = folder.newFile("jobs.journal");
+        JobJournal journal = JobJournal.open(file);
+        journal.queued(Arrays.asList(1, 2));
+        journal.done(1);
+        journal.close();
+        long length = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length - 3); // as if it crashed while writing done(1)
+        }
+
+        journal = JobJournal.open(file);
+        assertEquals("[1, 2]", journal.getPending().toString());
+        journal.done(2);
+        journal.close();
+        journal = JobJournal.open(file);
+        assertEquals("[1]", journal.getPending().toString());
+        journal.close();
+    }
+
+    @Test
+    public void compactionKeepsLatestState() throws IOException {
+        File file = folder.newFile("jobs.journal");
+        JobJournal journal = JobJournal.open(file);
+        for (int i = 0; i < JobJournal.COMPACT_AFTER; i++) {
+            journal.queued(Collections.singletonList(i % 5));
+            journal.done(i % 5);
+        }
+        journal.queued(Arrays.asList(3, 4));
+        journal.close();
+        assertTrue(file.length() < 1000);
+
+        journal = JobJournal.open(file);
+        assertEquals("[3, 4]", journal.getPending().toString());
+        for (int preset = 0; preset < 5; preset++) {
+            assertTrue(journal.getLastDone(preset) > 0);
+        }
+        journal.close();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class JobSchedulerTest {
+
+    @Test
+    public void backgroundJobRunsOnIdleWorkers() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            Thread.sleep(20); // let every worker go back to waiting
+            Future<?> job = JobScheduler.submit(JobScheduler.Lane.BACKGROUND, "test " + i, () -> {
+            });
+            job.get(3, TimeUnit.SECONDS);
+            assertEquals(0, JobScheduler.queued(JobScheduler.Lane.BACKGROUND));
+        }
+    }
+
+    @Test
+    public void interactiveJobRunsWhileOtherWorkersAreBusy() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<?>> busy = new ArrayList<>();
+        for (int i = 0; i < JobScheduler.WORKERS; i++) {
+            busy.add(JobScheduler.submit(JobScheduler.Lane.BACKGROUND, "busy " + i, () -> {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }));
+        }
+        try {
+            JobScheduler.submit(JobScheduler.Lane.INTERACTIVE, "interactive", () -> {
+            }).get(3, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+        }
+        for (Future<?> future : busy) {
+            future.get(3, TimeUnit.SECONDS);
+        }
+    }
+}
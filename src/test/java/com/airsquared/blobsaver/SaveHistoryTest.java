@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SaveHistoryTest {
+
+    private static final Preset PRESET_1 = new Preset(1, "Preset 1", "none", "iPhone10,3", "1A2B3C", "/blobs", "",
+            "");
+    private static final Preset PRESET_2 = new Preset(2, "Preset 2", "none", "iPhone11,2", "4D5E6F", "/blobs", "",
+            "");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void attemptsAreReadBackAfterReopening() throws IOException {
+        SaveHistory history = SaveHistory.open(folder.getRoot());
+        record(history);
+        history.close();
+
+        history = SaveHistory.open(folder.getRoot());
+        assertEquals(3, history.size());
+        SaveHistory.Attempt attempt = history.getAttempt(1);
+        assertEquals(2, attempt.preset);
+        assertEquals("iPhone11,2", attempt.identifier);
+        assertEquals("14.1", attempt.version);
+        assertEquals(TSSCheckerResult.NO_CONNECTION, attempt.result);
+        assertEquals(700, attempt.tssMillis);
+        assertCounts(history);
+        Map<String, SaveHistory.Attempt> lastSuccess = history.getLastSuccessPerDevice();
+        assertEquals(1, lastSuccess.size());
+        assertEquals("14.2", lastSuccess.get("1A2B3C").version);
+        history.close();
+    }
+
+    @Test
+    public void tornTailRecordIsCutOff() throws IOException {
+        SaveHistory history = SaveHistory.open(folder.getRoot());
+        record(history);
+        history.close();
+        File attempts = new File(folder.getRoot(), "attempts.db");
+        long length = attempts.length();
+        try (RandomAccessFile raf = new RandomAccessFile(attempts, "rw")) {
+            // as if it quit halfway through writing a record
+            raf.setLength(length - SaveHistory.RECORD_SIZE / 2);
+        }
+
+        history = SaveHistory.open(folder.getRoot());
+        assertEquals(2, history.size());
+        assertEquals(length - SaveHistory.RECORD_SIZE, attempts.length());
+        assertTrue(history.getLastSuccessPerDevice().isEmpty());
+        history.record(new SaveResult(PRESET_2, "14.2", TSSCheckerResult.SAVED, "", 1000, 0, 0, 800, 0));
+        history.close();
+
+        history = SaveHistory.open(folder.getRoot());
+        assertEquals(3, history.size());
+        assertEquals("iPhone11,2", history.getAttempt(2).identifier);
+        assertEquals(1, history.getLastSuccessPerDevice().size());
+        history.close();
+    }
+
+    @Test
+    public void indexesAreRebuilt() throws IOException {
+        SaveHistory history = SaveHistory.open(folder.getRoot());
+        record(history);
+        history.close();
+        //noinspection ResultOfMethodCallIgnored
+        new File(folder.getRoot(), "hours.idx").delete();
+        try (RandomAccessFile raf = new RandomAccessFile(new File(folder.getRoot(), "devices.idx"), "rw")) {
+            raf.writeInt(0xdeadbeef);
+        }
+
+        history = SaveHistory.open(folder.getRoot());
+        assertCounts(history);
+        assertEquals("14.2", history.getLastSuccessPerDevice().get("1A2B3C").version);
+        history.close();
+    }
+
+    private static void record(SaveHistory history) {
+        history.record(new SaveResult(PRESET_1, "14.0", TSSCheckerResult.NOT_SIGNED, "", 1000, 0, 0, 500, 0));
+        history.record(new SaveResult(PRESET_2, "14.1", TSSCheckerResult.NO_CONNECTION, "", 1000, 0, 0, 700, 0));
+        history.record(new SaveResult(PRESET_1, "14.2", TSSCheckerResult.SAVED, "", 1000, 0, 0, 600, 9000));
+    }
+
+    private static void assertCounts(SaveHistory history) {
+        long now = System.currentTimeMillis();
+        assertArrayEquals(new long[]{3, 1, 1}, history.getCounts(now - 3_600_000, now));
+        assertTrue(history.getTssLatencyPercentile(0.5, now - 3_600_000, now) >= 600);
+    }
+}
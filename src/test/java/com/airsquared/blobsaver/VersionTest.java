@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2019  airsquared
+ *
+ * This file is part of blobsaver.
+ *
+ * blobsaver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * blobsaver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with blobsaver.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.airsquared.blobsaver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VersionTest {
+
+    @Test
+    public void compareDottedVersions() {
+        assertTrue(new Version("12.3.1").compareTo(new Version("12.4")) < 0);
+        assertTrue(new Version("12.10").compareTo(new Version("12.9")) > 0);
+        assertTrue(new Version("2.3.1").compareTo(new Version("v2.3.1")) == 0);
+        assertEquals(1, new Version("1").compareTo(null));
+    }
+
+    @Test
+    public void trailingZerosAreEqual() {
+        assertEquals(new Version("12"), new Version("12.0.0"));
+        assertEquals(new Version("12").hashCode(), new Version("12.0.0").hashCode());
+        assertEquals(2, new HashSet<>(Arrays.asList(new Version("12"), new Version("12.0"), new Version("12.0.1"))).size());
+    }
+
+    @Test
+    public void betasComeBeforeRelease() {
+        List<Version> versions = new ArrayList<>();
+        for (String version : new String[]{"13.0", "13.0 GM", "13.0b2", "13.0 beta", "12.4", "13.0-beta3"}) {
+            versions.add(new Version(version));
+        }
+        Collections.sort(versions);
+        assertEquals("[12.4, 13.0 beta, 13.0b2, 13.0-beta3, 13.0 GM, 13.0]", versions.toString());
+        assertEquals(new Version("13.0 beta 2"), new Version("13.0b2"));
+        assertTrue(new Version("13.0b2").isPreRelease());
+        assertFalse(new Version("13.0").isPreRelease());
+    }
+
+    @Test
+    public void buildStrings() {
+        assertTrue(new Version("16F203").isBuild());
+        assertTrue(new Version("16F203").compareTo(new Version("16G77")) < 0);
+        assertTrue(new Version("17A5534f").compareTo(new Version("17A577")) > 0);
+        assertTrue(new Version("17A5534e").compareTo(new Version("17A5534f")) < 0);
+        assertNotEquals(new Version("16.6.203"), new Version("16F203"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsGarbage() {
+        new Version("12.");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOverflow() {
+        new Version("99999999999");
+    }
+}